@@ -18,6 +18,7 @@ package org.commonjava.util.sidecar.config;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.quarkus.runtime.Startup;
 import io.quarkus.runtime.annotations.RegisterForReflection;
+import io.quarkus.scheduler.Scheduled;
 import io.vertx.core.json.JsonObject;
 import io.vertx.mutiny.core.eventbus.EventBus;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -33,11 +34,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static io.quarkus.scheduler.Scheduled.ConcurrentExecution.SKIP;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.EVENT_PROXY_CONFIG_CHANGE;
 
@@ -52,46 +57,96 @@ public class ProxyConfiguration
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final Set<ServiceConfig> services = Collections.synchronizedSet( new HashSet<>() );
-
     @Inject
     transient EventBus bus;
 
     @Inject
     SidecarConfig sidecarConfig;
 
+    // the fields below only hold what was parsed from one yaml, the loaded config is published in the snapshot
+
     @JsonProperty( "read-timeout" )
     private String readTimeout;
 
-    private volatile Retry retry;
+    @JsonProperty( "body-memory-threshold" )
+    private Integer bodyMemoryThreshold;
+
+    @JsonProperty( "retry" )
+    private Retry retry;
+
+    @JsonProperty( "circuit-breaker" )
+    private Breaker circuitBreaker;
+
+    @JsonProperty( "hedge" )
+    private Hedge hedge;
+
+    @JsonProperty( "services" )
+    private List<ServiceConfig> services;
+
+    private volatile Snapshot snapshot;
 
     private transient String stateHash; // used to check whether the custom proxy.yaml has changed
 
+    private transient volatile long fileStamp; // last modified time of the custom proxy.yaml when it was last read
+
+    /**
+     * The config as of the last load. Read it once and take everything from it to get values that belong together.
+     */
+    public Snapshot getSnapshot()
+    {
+        Snapshot s = snapshot;
+        if ( s == null )
+        {
+            // not loaded from proxy.yaml, e.g. mapped from json directly
+            s = new Snapshot( readTimeout, bodyMemoryThreshold, retry, circuitBreaker, hedge, services );
+            snapshot = s;
+        }
+        return s;
+    }
+
     public String getReadTimeout()
     {
-        return readTimeout;
+        return getSnapshot().getReadTimeout();
+    }
+
+    /**
+     * Size up to which post/put bodies are kept in memory for retries, larger ones go to a temp file.
+     */
+    public Integer getBodyMemoryThreshold()
+    {
+        return getSnapshot().getBodyMemoryThreshold();
     }
 
-    public Set<ServiceConfig> getServices()
+    public List<ServiceConfig> getServices()
     {
-        return services;
+        return getSnapshot().getServices();
     }
 
     public Retry getRetry()
     {
-        return retry;
+        return getSnapshot().getRetry();
+    }
+
+    public Breaker getCircuitBreaker()
+    {
+        return getSnapshot().getCircuitBreaker();
+    }
+
+    public Hedge getHedge()
+    {
+        return getSnapshot().getHedge();
     }
 
     @Override
     public String toString()
     {
-        return "ProxyConfiguration{" + "readTimeout='" + readTimeout + '\'' + ", retry=" + retry + ", services="
-                        + services + '}';
+        return "ProxyConfiguration" + getSnapshot();
     }
 
     @PostConstruct
     void init()
     {
+        fileStamp = getConfigFile().lastModified();
         load( true );
         logger.info( "Proxy config, {}", this );
     }
@@ -101,7 +156,7 @@ public class ProxyConfiguration
      */
     public void load( boolean init )
     {
-        File file = new File( USER_DIR, "config/" + PROXY_YAML );
+        File file = getConfigFile();
         if ( file.exists() )
         {
             logger.info( "Load proxy config from file, {}", file );
@@ -129,7 +184,30 @@ public class ProxyConfiguration
         }
     }
 
-    private void doLoad( InputStream res )
+    /**
+     * Pick up changes to '${user.dir}/config/proxy.yaml' without a restart. The file is only read when its modified
+     * time changes, and services that stay the same keep their clients.
+     */
+    @Scheduled( every = "${sidecar.proxy-config-reload:30s}", concurrentExecution = SKIP )
+    void reload()
+    {
+        long stamp = getConfigFile().lastModified(); // 0 when there is no such file
+        if ( stamp != fileStamp )
+        {
+            fileStamp = stamp;
+            load( false );
+        }
+    }
+
+    private static File getConfigFile()
+    {
+        return new File( USER_DIR, "config/" + PROXY_YAML );
+    }
+
+    /**
+     * Parse the yaml into a new snapshot and publish it in one write, so readers never see a half-applied reload.
+     */
+    synchronized void doLoad( InputStream res )
     {
         try
         {
@@ -144,30 +222,17 @@ public class ProxyConfiguration
             ProxyConfiguration parsed = parseConfig( str );
             logger.debug( "Loaded from proxy yaml: {}", parsed );
 
-            if ( parsed.readTimeout != null )
-            {
-                this.readTimeout = parsed.readTimeout;
-            }
-
-            this.retry = parsed.retry;
-            String countEnv = System.getenv( "retry_count" );
-            String intervalEnv = System.getenv( "retry_interval" );
-            String maxBackOffEnv = System.getenv( "retry_maxBackOff" );
-            this.retry.count = ( countEnv != null && !countEnv.trim().isEmpty() ) ?
-                            Integer.valueOf( countEnv ) :
-                            parsed.retry.count;
-            this.retry.interval = ( intervalEnv != null && !intervalEnv.trim().isEmpty() ) ?
-                            Long.valueOf( intervalEnv ) :
-                            parsed.retry.interval;
-            this.retry.maxBackOff = ( maxBackOffEnv != null && !maxBackOffEnv.trim().isEmpty() ) ?
-                            Long.valueOf( maxBackOffEnv ) :
-                            parsed.retry.maxBackOff;
-
+            // the yaml is the whole config: a key left out of it takes its default, and a service left out of it is
+            // removed and no longer routed to
+            Set<ServiceConfig> services = new LinkedHashSet<>();
             if ( parsed.services != null )
             {
-                parsed.services.forEach( this::overrideIfPresent );
+                services.addAll( parsed.services );
             }
 
+            snapshot = new Snapshot( parsed.readTimeout, parsed.bodyMemoryThreshold, withRetryEnv( parsed.retry ),
+                                     parsed.circuitBreaker, parsed.hedge, services );
+
             if ( stateHash != null )
             {
                 bus.publish( EVENT_PROXY_CONFIG_CHANGE, "" );
@@ -182,10 +247,42 @@ public class ProxyConfiguration
         }
     }
 
-    private void overrideIfPresent( ServiceConfig sv )
+    /**
+     * Copy of the parsed retry with the values from the environment, if set.
+     */
+    private Retry withRetryEnv( Retry parsed )
     {
-        this.services.remove( sv ); // remove first so it can replace the old one
-        this.services.add( sv );
+        Retry ret = new Retry();
+        if ( parsed != null )
+        {
+            ret.count = parsed.count;
+            ret.interval = parsed.interval;
+            ret.maxBackOff = parsed.maxBackOff;
+        }
+        else
+        {
+            // not in the yaml, take the defaults
+            ret.count = -1;
+            ret.interval = -1;
+            ret.maxBackOff = -1;
+        }
+
+        String countEnv = System.getenv( "retry_count" );
+        String intervalEnv = System.getenv( "retry_interval" );
+        String maxBackOffEnv = System.getenv( "retry_maxBackOff" );
+        if ( countEnv != null && !countEnv.trim().isEmpty() )
+        {
+            ret.count = Integer.parseInt( countEnv );
+        }
+        if ( intervalEnv != null && !intervalEnv.trim().isEmpty() )
+        {
+            ret.interval = Long.parseLong( intervalEnv );
+        }
+        if ( maxBackOffEnv != null && !maxBackOffEnv.trim().isEmpty() )
+        {
+            ret.maxBackOff = Long.parseLong( maxBackOffEnv );
+        }
+        return ret;
     }
 
     private ProxyConfiguration parseConfig( String str )
@@ -202,6 +299,82 @@ public class ProxyConfiguration
         return ret;
     }
 
+    /**
+     * Immutable view of one loaded proxy.yaml. It keeps copies of what it was built from, and hands out copies of the
+     * nested settings. The services are its own, in an unmodifiable list, and must not be changed by their users.
+     */
+    public static final class Snapshot
+    {
+        private final String readTimeout;
+
+        private final Integer bodyMemoryThreshold;
+
+        private final Retry retry;
+
+        private final Breaker circuitBreaker;
+
+        private final Hedge hedge;
+
+        private final List<ServiceConfig> services;
+
+        Snapshot( String readTimeout, Integer bodyMemoryThreshold, Retry retry, Breaker circuitBreaker, Hedge hedge,
+                  Collection<ServiceConfig> services )
+        {
+            this.readTimeout = readTimeout;
+            this.bodyMemoryThreshold = bodyMemoryThreshold;
+            this.retry = retry == null ? null : retry.copy();
+            this.circuitBreaker = circuitBreaker == null ? null : circuitBreaker.copy();
+            this.hedge = hedge == null ? null : hedge.copy();
+            List<ServiceConfig> copies = new ArrayList<>();
+            if ( services != null )
+            {
+                services.forEach( service -> copies.add( service.copy() ) );
+            }
+            this.services = Collections.unmodifiableList( copies );
+        }
+
+        public String getReadTimeout()
+        {
+            return readTimeout;
+        }
+
+        public Integer getBodyMemoryThreshold()
+        {
+            return bodyMemoryThreshold;
+        }
+
+        public Retry getRetry()
+        {
+            return retry == null ? null : retry.copy();
+        }
+
+        public Breaker getCircuitBreaker()
+        {
+            return circuitBreaker == null ? null : circuitBreaker.copy();
+        }
+
+        public Hedge getHedge()
+        {
+            return hedge == null ? null : hedge.copy();
+        }
+
+        /**
+         * Services in the order they are matched.
+         */
+        public List<ServiceConfig> getServices()
+        {
+            return services;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "{" + "readTimeout='" + readTimeout + '\'' + ", bodyMemoryThreshold=" + bodyMemoryThreshold
+                            + ", retry=" + retry + ", circuitBreaker=" + circuitBreaker + ", hedge=" + hedge
+                            + ", services=" + services + '}';
+        }
+    }
+
     @RegisterForReflection
     public static class Retry
     {
@@ -211,6 +384,15 @@ public class ProxyConfiguration
 
         public long maxBackOff; // millis
 
+        Retry copy()
+        {
+            Retry ret = new Retry();
+            ret.count = count;
+            ret.interval = interval;
+            ret.maxBackOff = maxBackOff;
+            return ret;
+        }
+
         @Override
         public String toString()
         {
@@ -219,4 +401,84 @@ public class ProxyConfiguration
 
     }
 
-}
\ No newline at end of file
+    /**
+     * Circuit breaker settings, each service gets its own breaker with them. Unset values take the defaults.
+     */
+    @RegisterForReflection
+    public static class Breaker
+    {
+        public Boolean enabled;
+
+        @JsonProperty( "failure-rate" )
+        public Integer failureRate; // percent of the calls in the window
+
+        @JsonProperty( "slow-call-rate" )
+        public Integer slowCallRate; // percent of the calls in the window
+
+        @JsonProperty( "slow-call-duration" )
+        public String slowCallDuration; // e.g. 60s
+
+        public Integer window; // number of last calls the rates are taken over
+
+        @JsonProperty( "minimum-calls" )
+        public Integer minimumCalls; // calls in the window before it can open
+
+        @JsonProperty( "open-duration" )
+        public String openDuration; // e.g. 30s
+
+        @JsonProperty( "half-open-calls" )
+        public Integer halfOpenCalls; // trial calls that have to succeed to close it again
+
+        Breaker copy()
+        {
+            Breaker ret = new Breaker();
+            ret.enabled = enabled;
+            ret.failureRate = failureRate;
+            ret.slowCallRate = slowCallRate;
+            ret.slowCallDuration = slowCallDuration;
+            ret.window = window;
+            ret.minimumCalls = minimumCalls;
+            ret.openDuration = openDuration;
+            ret.halfOpenCalls = halfOpenCalls;
+            return ret;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Breaker{" + "enabled=" + enabled + ", failureRate=" + failureRate + ", slowCallRate="
+                            + slowCallRate + ", slowCallDuration='" + slowCallDuration + '\'' + ", window=" + window
+                            + ", minimumCalls=" + minimumCalls + ", openDuration='" + openDuration + '\''
+                            + ", halfOpenCalls=" + halfOpenCalls + '}';
+        }
+    }
+
+    /**
+     * Hedging of upstream GET and HEAD calls, off unless enabled.
+     */
+    @RegisterForReflection
+    public static class Hedge
+    {
+        public boolean enabled;
+
+        public String delay; // e.g. 0.5s, or p95 (default) for the observed 95th percentile response time
+
+        public Integer budget; // hedged calls as percent of all GET and HEAD calls
+
+        Hedge copy()
+        {
+            Hedge ret = new Hedge();
+            ret.enabled = enabled;
+            ret.delay = delay;
+            ret.budget = budget;
+            return ret;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Hedge{" + "enabled=" + enabled + ", delay='" + delay + '\'' + ", budget=" + budget + '}';
+        }
+    }
+
+}
@@ -2,7 +2,12 @@ package org.commonjava.util.sidecar.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.quarkus.runtime.annotations.RegisterForReflection;
+import org.commonjava.util.sidecar.util.LoadBalancer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 @RegisterForReflection
@@ -19,6 +24,56 @@ public class ServiceConfig
     @JsonProperty( "path-pattern" )
     public String pathPattern;
 
+    public String transport; // okhttp (default) or vertx
+
+    @JsonProperty( "max-requests-per-host" )
+    public Integer maxRequestsPerHost; // concurrent upstream calls, more are queued
+
+    @JsonProperty( "max-idle-connections" )
+    public Integer maxIdleConnections;
+
+    @JsonProperty( "keep-alive" )
+    public String keepAlive; // how long an idle connection is kept, e.g. 5m
+
+    public Boolean http2; // true: prefer HTTP/2, false: HTTP/1.1 only, unset: transport default
+
+    public List<String> endpoints; // host:port of each replica to balance over, instead of host and port
+
+    public String balancer; // p2c (default) or least-requests
+
+    @JsonProperty( "max-failures" )
+    public Integer maxFailures; // consecutive failures that eject an endpoint
+
+    @JsonProperty( "ejection-time" )
+    public String ejectionTime; // e.g. 30s
+
+    @JsonProperty( "health-check-path" )
+    public String healthCheckPath; // probed on each endpoint when set, e.g. /api/stats/version-info
+
+    @JsonProperty( "health-check-interval" )
+    public String healthCheckInterval;
+
+    private transient List<Object> clientKey;
+
+    /**
+     * Identifies the client for this service by its routing entry and everything the client is built from. Unlike
+     * equals, which only tells the routing entry, it changes when the upstream host, port or any pool setting changes.
+     * It is taken once, a service is not changed after it is published in a config snapshot.
+     */
+    public List<Object> clientKey()
+    {
+        List<Object> key = clientKey;
+        if ( key == null )
+        {
+            key = Collections.unmodifiableList(
+                            Arrays.asList( methods, pathPattern, host, port, ssl, transport, maxRequestsPerHost,
+                                           maxIdleConnections, keepAlive, http2, endpoints, balancer, maxFailures,
+                                           ejectionTime, healthCheckPath, healthCheckInterval ) );
+            clientKey = key;
+        }
+        return key;
+    }
+
     @Override
     public boolean equals( Object o )
     {
@@ -40,7 +95,37 @@ public class ServiceConfig
     public String toString()
     {
         return "ServiceConfig{" + "host='" + host + '\'' + ", port=" + port + ", ssl=" + ssl + ", methods='" + methods
-                        + '\'' + ", pathPattern='" + pathPattern + '\'' + '}';
+                        + '\'' + ", pathPattern='" + pathPattern + '\'' + ", transport='" + transport + '\''
+                        + ", maxRequestsPerHost=" + maxRequestsPerHost + ", maxIdleConnections=" + maxIdleConnections
+                        + ", keepAlive='" + keepAlive + '\'' + ", http2=" + http2 + ", endpoints="
+                        + endpoints + ", balancer='" + balancer + '\'' + ", maxFailures=" + maxFailures
+                        + ", ejectionTime='" + ejectionTime + '\'' + ", healthCheckPath='" + healthCheckPath + '\''
+                        + ", healthCheckInterval='" + healthCheckInterval + '\'' + '}';
+    }
+
+    /**
+     * A copy for a snapshot, with its own unmodifiable list of endpoints.
+     */
+    ServiceConfig copy()
+    {
+        ServiceConfig ret = new ServiceConfig();
+        ret.host = host;
+        ret.port = port;
+        ret.ssl = ssl;
+        ret.methods = methods;
+        ret.pathPattern = pathPattern;
+        ret.transport = transport;
+        ret.maxRequestsPerHost = maxRequestsPerHost;
+        ret.maxIdleConnections = maxIdleConnections;
+        ret.keepAlive = keepAlive;
+        ret.http2 = http2;
+        ret.endpoints = endpoints == null ? null : Collections.unmodifiableList( new ArrayList<>( endpoints ) );
+        ret.balancer = balancer;
+        ret.maxFailures = maxFailures;
+        ret.ejectionTime = ejectionTime;
+        ret.healthCheckPath = healthCheckPath;
+        ret.healthCheckInterval = healthCheckInterval;
+        return ret;
     }
 
     void normalize()
@@ -49,5 +134,20 @@ public class ServiceConfig
         {
             methods = methods.toUpperCase();
         }
+        if ( transport != null )
+        {
+            transport = transport.toLowerCase();
+        }
+        if ( balancer != null )
+        {
+            balancer = balancer.toLowerCase();
+        }
+        if ( host == null && endpoints != null && !endpoints.isEmpty() )
+        {
+            // name the service after its first endpoint, e.g. in logs and the origin URL of tracked content
+            LoadBalancer.Endpoint first = LoadBalancer.Endpoint.parse( endpoints.get( 0 ) );
+            host = first.getHost();
+            port = first.getPort();
+        }
     }
 }
@@ -16,8 +16,10 @@
 package org.commonjava.util.sidecar.config;
 
 import io.quarkus.arc.config.ConfigProperties;
+import io.quarkus.runtime.configuration.MemorySize;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import java.time.Duration;
 import java.util.Optional;
 
 @ConfigProperties( prefix = "sidecar" )
@@ -28,4 +30,60 @@ public class SidecarConfig
 
     @ConfigProperty( name = "local-repository" )
     public Optional<String> localRepository;
+
+    /**
+     * How the historical archive is pre-seeded: 'extract' unpacks it into the local repository, 'direct' keeps the
+     * archive file as-is and serves entries straight out of it.
+     */
+    @ConfigProperty( name = "archive-mode" )
+    public Optional<String> archiveMode;
+
+    /**
+     * Store extracted archive entries once per sha256 in a deduplicated blob store instead of once per path.
+     */
+    @ConfigProperty( name = "content-addressable" )
+    public Optional<Boolean> contentAddressable;
+
+    /**
+     * Number of workers writing historical archive entries into the local repository while the archive streams in.
+     */
+    @ConfigProperty( name = "archive-extract-workers" )
+    public Optional<Integer> archiveExtractWorkers;
+
+    /**
+     * Serve pre-seeded content with a zero-copy sendfile from the event loop instead of a worker thread copy loop.
+     */
+    @ConfigProperty( name = "send-file" )
+    public Optional<Boolean> sendFile;
+
+    /**
+     * Maximum number of maven-metadata.xml and package.json responses kept in memory, 0 disables the cache.
+     */
+    @ConfigProperty( name = "metadata-cache-size" )
+    public Optional<Integer> metadataCacheSize;
+
+    /**
+     * How long cached maven-metadata.xml is served before it is revalidated upstream.
+     */
+    @ConfigProperty( name = "maven-metadata-ttl" )
+    public Optional<Duration> mavenMetadataTtl;
+
+    /**
+     * How long cached npm package.json is served before it is revalidated upstream.
+     */
+    @ConfigProperty( name = "npm-metadata-ttl" )
+    public Optional<Duration> npmMetadataTtl;
+
+    /**
+     * Let identical concurrent upstream GETs share one upstream call and body.
+     */
+    @ConfigProperty( name = "coalesce-requests" )
+    public Optional<Boolean> coalesceRequests;
+
+    /**
+     * Disk space for immutable content proxied from Indy and kept in the local repository for repeat requests, 0
+     * disables the cache.
+     */
+    @ConfigProperty( name = "proxy-cache-size" )
+    public Optional<MemorySize> proxyCacheSize;
 }
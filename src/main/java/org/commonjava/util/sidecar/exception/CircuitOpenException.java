@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.exception;
+
+import java.io.IOException;
+
+/**
+ * The circuit breaker of a service rejected a call without sending it.
+ */
+public class CircuitOpenException
+                extends IOException
+{
+    private final long retryAfterMillis;
+
+    public CircuitOpenException( String message, long retryAfterMillis )
+    {
+        super( message );
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * How long until the breaker lets trial calls through again.
+     */
+    public long getRetryAfterMillis()
+    {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.health;
+
+import org.commonjava.util.sidecar.services.MetadataCache;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+/**
+ * Reports the metadata cache counters with '/q/health/ready', to size metadata-cache-size and the TTLs by. The cache
+ * never makes the sidecar unready.
+ */
+@Readiness
+@ApplicationScoped
+public class MetadataCacheHealthCheck
+                implements HealthCheck
+{
+    @Inject
+    MetadataCache metadataCache;
+
+    @Override
+    public HealthCheckResponse call()
+    {
+        return HealthCheckResponse.named( "metadata-cache" )
+                                  .up()
+                                  .withData( "size", metadataCache.size() )
+                                  .withData( "hits", metadataCache.getHits() )
+                                  .withData( "misses", metadataCache.getMisses() )
+                                  .withData( "revalidations", metadataCache.getRevalidations() )
+                                  .withData( "stale-hits", metadataCache.getStaleHits() )
+                                  .build();
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.health;
+
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.services.Classifier;
+import org.commonjava.util.sidecar.util.LoadBalancer;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
+import org.eclipse.microprofile.health.Readiness;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Reports queued and running upstream calls per service with '/q/health/ready', next to the configured limit, to
+ * size max-requests-per-host by, the state of its circuit breaker, and which endpoints of a balanced service are
+ * ejected. None of it makes the sidecar unready: queued calls only wait longer, and while a circuit is open the
+ * sidecar still serves what it has locally.
+ */
+@Readiness
+@ApplicationScoped
+public class UpstreamCallsHealthCheck
+                implements HealthCheck
+{
+    @Inject
+    Classifier classifier;
+
+    @Override
+    public HealthCheckResponse call()
+    {
+        HealthCheckResponseBuilder builder = HealthCheckResponse.named( "upstream-calls" ).up();
+        classifier.getClients().forEach( client -> {
+            // services on the same host and port may still differ in path pattern
+            ServiceConfig service = client.getServiceConfig();
+            String name = service.host + ":" + service.port + " " + service.pathPattern;
+            if ( service.methods != null )
+            {
+                name += " " + service.methods;
+            }
+            builder.withData( name + ".running", client.getRunningCalls() );
+            builder.withData( name + ".queued", client.getQueuedCalls() );
+            builder.withData( name + ".limit", client.getMaxRequestsPerHost() );
+            builder.withData( name + ".circuit", client.getCircuitBreaker().getState().name() );
+
+            List<LoadBalancer.Endpoint> endpoints = client.getBalancer().getEndpoints();
+            if ( endpoints.size() > 1 )
+            {
+                long now = System.currentTimeMillis();
+                builder.withData( name + ".endpoints", endpoints.stream()
+                                                                .map( e -> e + ( e.isAvailable( now ) ? "" : " (ejected)" ) )
+                                                                .collect( Collectors.joining( ", " ) ) );
+            }
+        } );
+        return builder.build();
+    }
+}
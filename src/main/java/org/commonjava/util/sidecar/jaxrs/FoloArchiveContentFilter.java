@@ -0,0 +1,334 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.jaxrs;
+
+import io.quarkus.vertx.web.RouteFilter;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.mutiny.core.eventbus.EventBus;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.commonjava.util.sidecar.services.ArchiveRetrieveService;
+import org.commonjava.util.sidecar.services.ProxyContentCache;
+import org.commonjava.util.sidecar.services.ReportService;
+import org.commonjava.util.sidecar.util.ConditionalContent;
+import org.commonjava.util.sidecar.util.ZipArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
+import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
+import static javax.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.FOLO_BUILD;
+import static org.commonjava.util.sidecar.util.ConditionalContent.etagOf;
+
+/**
+ * Serves folo GETs that hit the pre-seeded repository straight from the event loop with a sendfile, so the kernel
+ * copies the file to the socket and no worker thread is held per download. Conditional and range requests are answered
+ * against a digest known to match the bytes sent: the blob's own in content addressable mode, the one the historical
+ * report recorded for an entry of the archive itself, or the one computed when proxied content was cached. HEADs for
+ * content found here are answered too, with the same checksums, so they never reach Indy. Anything else falls through
+ * to {@link FoloContentAccessResource}.
+ */
+@ApplicationScoped
+public class FoloArchiveContentFilter
+{
+    private static final String FOLO_TRACK_PREFIX = "/api/folo/track/";
+
+    private static final String CHECKSUM_MD5 = "X-Checksum-Md5";
+
+    private static final String CHECKSUM_SHA1 = "X-Checksum-Sha1";
+
+    private static final String CHECKSUM_SHA256 = "X-Checksum-Sha256";
+
+    private static final Pattern FOLO_CONTENT_PATH =
+                    Pattern.compile( "^/api/folo/track/[^/]+/(maven|npm)/(hosted|group|remote)/([^/]+)/(.+)$" );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    @Inject
+    ArchiveRetrieveService archiveService;
+
+    @Inject
+    ReportService reportService;
+
+    @Inject
+    EventBus bus;
+
+    @RouteFilter
+    void sendFile( RoutingContext context )
+    {
+        HttpMethod method = context.request().method();
+        boolean get = method == HttpMethod.GET && sidecarConfig.sendFile.orElse( Boolean.TRUE );
+        if ( !get && method != HttpMethod.HEAD )
+        {
+            context.next();
+            return;
+        }
+
+        Matcher matcher = matchContentPath( context.normalizedPath() );
+        if ( matcher == null )
+        {
+            context.next();
+            return;
+        }
+
+        String packageType = matcher.group( 1 );
+        String type = matcher.group( 2 );
+        String name = matcher.group( 3 );
+        String path = getContentPath( matcher );
+        if ( archiveService.shouldProxy( packageType, type, name, path ) )
+        {
+            context.next();
+            return;
+        }
+
+        // the lookup may fall back to the file system, and the file is stat'ed, neither of which may block the event
+        // loop; the request is paused meanwhile so nothing it sends is lost if it falls through
+        Optional<HistoricalEntryDTO> historical = reportService.getHistoricalEntry( path );
+        context.request().pause();
+        context.vertx().<Located>executeBlocking(
+                        promise -> promise.complete( locate( packageType, type, name, path, historical ) ), false, ar -> {
+            context.request().resume();
+            if ( ar.failed() )
+            {
+                logger.warn( "Failed to look up: " + path, ar.cause() );
+                context.next();
+            }
+            else if ( get )
+            {
+                get( context, path, ar.result(), historical,
+                     cached -> archiveService.trackCached( packageType, type, name, cached ) );
+            }
+            else
+            {
+                head( context, path, ar.result() );
+            }
+        } );
+    }
+
+    /**
+     * @param trackCached records a download served from the proxy cache, which the build's tracking doesn't know yet
+     */
+    private void get( RoutingContext context, String path, Located located, Optional<HistoricalEntryDTO> historical,
+                      Consumer<ProxyContentCache.Cached> trackCached )
+    {
+        if ( located == null || located.offset < 0 )
+        {
+            context.next();
+            return;
+        }
+
+        if ( located.cached != null )
+        {
+            logger.debug( "Send file: {} from proxy cache.", path );
+            sendFile( context, located.file, located.offset,
+                      ConditionalContent.evaluate( context.request(), located.size, located.lastModified,
+                                                   located.etag ), () -> trackCached.accept( located.cached ) );
+            return;
+        }
+
+        logger.debug( "Send file: {} from historical archive.", path );
+        sendFile( context, located.file, located.offset,
+                  ConditionalContent.evaluate( context.request(), located.size, located.lastModified, located.etag ),
+                  () -> bus.publish( FOLO_BUILD, path ) );
+    }
+
+    /**
+     * Describe content the local repository, the archive or the proxy cache has, with the checksums known to match it,
+     * so resolvers checking before a download don't need a round trip to Indy. Content only the historical report
+     * knows is not here, its HEAD falls through like its GET would.
+     */
+    private void head( RoutingContext context, String path, Located located )
+    {
+        if ( located == null )
+        {
+            context.next();
+            return;
+        }
+
+        logger.debug( "Head path: {} from {}.", path, located.cached != null ? "proxy cache" : "historical archive" );
+        ConditionalContent content =
+                        ConditionalContent.evaluate( context.request(), located.size, located.lastModified,
+                                                     located.etag );
+        HttpServerResponse response = context.response().setStatusCode( content.getStatus() );
+        content.getHeaders().forEach( response::putHeader );
+        putIfPresent( response, CHECKSUM_MD5, located.md5 );
+        putIfPresent( response, CHECKSUM_SHA1, located.sha1 );
+        putIfPresent( response, CHECKSUM_SHA256, located.sha256 );
+        response.end();
+    }
+
+    /**
+     * Find the content in the local repository, the archive or the store's proxy cache. Blocking, run it on a worker.
+     *
+     * @return where the content is, or null when none has it
+     */
+    private Located locate( String packageType, String type, String name, String path,
+                            Optional<HistoricalEntryDTO> historical )
+    {
+        Optional<File> download = archiveService.getLocally( path );
+        if ( download.isPresent() && download.get().isFile() )
+        {
+            // an extracted file is not checked against the report, only a blob's digest surely matches its content, and
+            // the report's other checksums only when it recorded that digest
+            File file = download.get();
+            String digest = archiveService.getBlobDigest( path ).orElse( null );
+            Optional<HistoricalEntryDTO> verified =
+                            historical.filter( h -> digest != null && digest.equalsIgnoreCase( h.getSha256() ) );
+            return new Located( file, 0, file.length(), file.lastModified(),
+                                verified.map( HistoricalEntryDTO::getMd5 ).orElse( null ),
+                                verified.map( HistoricalEntryDTO::getSha1 ).orElse( null ), digest, null );
+        }
+
+        Optional<ZipArchive> archive = archiveService.getArchive();
+        Optional<ZipArchive.Entry> entry = archive.flatMap( a -> a.getEntry( path ) );
+        if ( entry.isEmpty() )
+        {
+            Optional<ProxyContentCache.Cached> cached = archiveService.getCached( packageType, type, name, path );
+            if ( cached.isEmpty() )
+            {
+                return null;
+            }
+            File file = cached.get().getFile();
+            return new Located( file, 0, cached.get().getSize(), file.lastModified(), cached.get().getMd5(),
+                                cached.get().getSha1(), cached.get().getSha256(), cached.get() );
+        }
+
+        // stored entries of a directly served archive are a plain region of the archive file
+        File file = archive.get().getFile();
+        long offset = -1;
+        if ( entry.get().isStored() )
+        {
+            try
+            {
+                offset = archive.get().getDataOffset( entry.get() );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to locate archive entry: " + entry.get(), e );
+            }
+        }
+        return new Located( file, offset, entry.get().getSize(), file.lastModified(),
+                            historical.map( HistoricalEntryDTO::getMd5 ).orElse( null ),
+                            historical.map( HistoricalEntryDTO::getSha1 ).orElse( null ),
+                            historical.map( HistoricalEntryDTO::getSha256 ).orElse( null ), null );
+    }
+
+    private static void putIfPresent( HttpServerResponse response, String name, String value )
+    {
+        if ( value != null )
+        {
+            response.putHeader( name, value );
+        }
+    }
+
+    /**
+     * Answer with the part of the file region the conditional and range headers ask for, which may be nothing at all.
+     */
+    private void sendFile( RoutingContext context, File file, long offset, ConditionalContent content, Runnable track )
+    {
+        if ( content.getStatus() != REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode() )
+        {
+            track.run();
+        }
+
+        HttpServerResponse response = context.response().setStatusCode( content.getStatus() );
+        content.getHeaders().forEach( response::putHeader );
+        if ( !content.hasBody() )
+        {
+            response.end();
+            return;
+        }
+
+        response.putHeader( CONTENT_TYPE, APPLICATION_OCTET_STREAM )
+                .sendFile( file.getPath(), offset + content.getOffset(), content.getLength() )
+                .onFailure( t -> logger.warn( "Failed to send file: " + file, t ) );
+    }
+
+    private static Matcher matchContentPath( String requestPath )
+    {
+        if ( requestPath == null || !requestPath.startsWith( FOLO_TRACK_PREFIX ) )
+        {
+            return null;
+        }
+
+        Matcher matcher = FOLO_CONTENT_PATH.matcher( requestPath );
+        return matcher.matches() ? matcher : null;
+    }
+
+    private static String getContentPath( Matcher matcher )
+    {
+        String path = matcher.group( 4 );
+        if ( path.indexOf( '%' ) >= 0 )
+        {
+            // keep '+' literal, it is not an encoded space in a path segment
+            path = URLDecoder.decode( path.replace( "+", "%2B" ), UTF_8 );
+        }
+        return path;
+    }
+
+    private static final class Located
+    {
+        private final File file;
+
+        private final long offset; // of the content in the file, -1 when it can't be sent as a file region
+
+        private final long size;
+
+        private final long lastModified;
+
+        // the checksums known to match the content, null where none is
+        private final String md5;
+
+        private final String sha1;
+
+        private final String sha256;
+
+        private final String etag;
+
+        private final ProxyContentCache.Cached cached; // when served from the proxy cache
+
+        private Located( File file, long offset, long size, long lastModified, String md5, String sha1, String sha256,
+                         ProxyContentCache.Cached cached )
+        {
+            this.file = file;
+            this.offset = offset;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+            this.sha1 = sha1;
+            this.sha256 = sha256;
+            this.etag = etagOf( sha256 != null ? sha256 : sha1 );
+            this.cached = cached;
+        }
+    }
+}
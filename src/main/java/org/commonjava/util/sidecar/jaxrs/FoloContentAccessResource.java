@@ -19,9 +19,14 @@ import io.smallrye.mutiny.Uni;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.mutiny.core.eventbus.EventBus;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.function.IOSupplier;
 import org.commonjava.util.sidecar.services.ArchiveRetrieveService;
+import org.commonjava.util.sidecar.services.ProxyContentCache;
 import org.commonjava.util.sidecar.services.ProxyService;
+import org.commonjava.util.sidecar.services.ReportService;
+import org.commonjava.util.sidecar.util.ConditionalContent;
 import org.commonjava.util.sidecar.util.TransferStreamingOutput;
+import org.commonjava.util.sidecar.util.ZipArchive;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.media.Schema;
 import org.eclipse.microprofile.openapi.annotations.parameters.Parameter;
@@ -40,11 +45,14 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Optional;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
+import static javax.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.FOLO_BUILD;
+import static org.commonjava.util.sidecar.util.ConditionalContent.etagOf;
 import static org.eclipse.microprofile.openapi.annotations.enums.ParameterIn.PATH;
 
 @Path( "/api/folo/track/{id}/{packageType: (maven|npm)}/{type: (hosted|group|remote)}/{name}" )
@@ -61,8 +69,13 @@ public class FoloContentAccessResource
     @Inject
     ArchiveRetrieveService archiveService;
 
+    @Inject
+    ReportService reportService;
+
     @Operation( description = "Retrieve Maven/NPM artifact content from historical archive or proxy" )
     @APIResponse( responseCode = "200", description = "Content stream" )
+    @APIResponse( responseCode = "206", description = "Requested byte range of the content" )
+    @APIResponse( responseCode = "304", description = "Content matches the given entity tag or date" )
     @APIResponse( responseCode = "404", description = "Content is not available" )
     @Path( "{path: (.*)}" )
     @Produces( APPLICATION_OCTET_STREAM )
@@ -76,7 +89,7 @@ public class FoloContentAccessResource
                               @PathParam( "path" ) String path, final @Context HttpServerRequest request )
                     throws Exception
     {
-        if ( archiveService.shouldProxy( path ) )
+        if ( archiveService.shouldProxy( packageType, type, name, path ) )
         {
             logger.debug( "Get proxy resource for folo request: {}", path );
             return proxyService.doGet( packageType, type, name, path, request );
@@ -85,16 +98,64 @@ public class FoloContentAccessResource
         Optional<File> download = archiveService.getLocally( path );
         if ( download.isPresent() && download.get().isFile() )
         {
-            InputStream inputStream = FileUtils.openInputStream( download.get() );
-            final Response.ResponseBuilder builder = Response.ok( new TransferStreamingOutput( inputStream ) );
+            File file = download.get();
+            // only a blob is known to match a digest, an extracted file may differ from what the report recorded
+            String etag = etagOf( archiveService.getBlobDigest( path ).orElse( null ) );
+            ConditionalContent content =
+                            ConditionalContent.evaluate( request, file.length(), file.lastModified(), etag );
             logger.debug( "Download path: {} from historical archive.", path );
-            bus.publish( FOLO_BUILD, path );
-            return Uni.createFrom().item( builder.build() );
+            return Uni.createFrom()
+                      .item( respond( content, () -> FileUtils.openInputStream( file ),
+                                      () -> bus.publish( FOLO_BUILD, path ) ) );
         }
-        else
+
+        Optional<ZipArchive> archive = archiveService.getArchive();
+        Optional<ZipArchive.Entry> entry = archive.flatMap( a -> a.getEntry( path ) );
+        if ( entry.isPresent() )
         {
-            return proxyService.doGet( packageType, type, name, path, request );
+            String etag = etagOf( reportService.getHistoricalEntry( path ) );
+            ConditionalContent content = ConditionalContent.evaluate( request, entry.get().getSize(),
+                                                                      archive.get().getFile().lastModified(), etag );
+            logger.debug( "Download path: {} from historical archive file.", path );
+            return Uni.createFrom()
+                      .item( respond( content, () -> archive.get().openStream( entry.get() ),
+                                      () -> bus.publish( FOLO_BUILD, path ) ) );
+        }
+
+        Optional<ProxyContentCache.Cached> cached = archiveService.getCached( packageType, type, name, path );
+        if ( cached.isPresent() )
+        {
+            File file = cached.get().getFile();
+            ConditionalContent content = ConditionalContent.evaluate( request, cached.get().getSize(),
+                                                                      file.lastModified(),
+                                                                      etagOf( cached.get().getSha256() ) );
+            logger.debug( "Download path: {} from proxy cache.", path );
+            return Uni.createFrom()
+                      .item( respond( content, () -> FileUtils.openInputStream( file ),
+                                      () -> archiveService.trackCached( packageType, type, name, cached.get() ) ) );
+        }
+
+        return proxyService.doGet( packageType, type, name, path, request );
+    }
+
+    /**
+     * @param track records the download, unless the requested range can't be satisfied
+     */
+    private Response respond( ConditionalContent content, IOSupplier<InputStream> stream, Runnable track )
+                    throws IOException
+    {
+        if ( content.getStatus() != REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode() )
+        {
+            track.run();
+        }
+
+        Response.ResponseBuilder builder = Response.status( content.getStatus() );
+        content.getHeaders().forEach( builder::header );
+        if ( content.hasBody() )
+        {
+            builder.entity( new TransferStreamingOutput( content.slice( stream.get() ) ) );
         }
+        return builder.build();
     }
 
     @Operation( description = "Store artifact content under the given artifact store (type/name) and path." )
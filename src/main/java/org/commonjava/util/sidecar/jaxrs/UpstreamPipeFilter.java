@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.jaxrs;
+
+import io.quarkus.vertx.web.RouteFilter;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.RoutingContext;
+import org.commonjava.util.sidecar.services.ProxyService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+/**
+ * Pipes the body of an untracked GET to a service with the Vert.x transport straight into the client's response, with
+ * backpressure both ways, instead of copying it through a worker thread in {@link ProxyResource}. Tracked, cached and
+ * folo requests need the whole body in hand and fall through.
+ */
+@ApplicationScoped
+public class UpstreamPipeFilter
+{
+    private static final String FOLO_TRACK_PREFIX = "/api/folo/track/";
+
+    private static final String QUARKUS_PREFIX = "/q/";
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    ProxyService proxyService;
+
+    @RouteFilter
+    void pipe( RoutingContext context )
+    {
+        String path = context.normalizedPath();
+        if ( context.request().method() != HttpMethod.GET || !isProxyPath( path )
+                        || !proxyService.isPipeable( path, context.request() ) )
+        {
+            context.next();
+            return;
+        }
+
+        logger.debug( "Pipe resource: {}", path );
+        try
+        {
+            proxyService.pipeGet( path, context );
+        }
+        catch ( Exception e )
+        {
+            context.fail( e );
+        }
+    }
+
+    /**
+     * Whether {@link ProxyResource} would take the path; encoded ones are left to it to decode.
+     */
+    private static boolean isProxyPath( String path )
+    {
+        return path != null && !path.startsWith( FOLO_TRACK_PREFIX ) && !path.startsWith( QUARKUS_PREFIX )
+                        && path.indexOf( '%' ) < 0;
+    }
+}
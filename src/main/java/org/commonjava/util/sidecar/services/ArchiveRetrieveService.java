@@ -15,32 +15,71 @@
  */
 package org.commonjava.util.sidecar.services;
 
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.runtime.configuration.MemorySize;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.http.HttpStatus;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.AccessChannel;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.commonjava.util.sidecar.util.UrlUtils;
+import org.commonjava.util.sidecar.util.ZipArchive;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.SocketTimeoutException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.ARCHIVE_MODE_DIRECT;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.ARCHIVE_MODE_EXTRACT;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_ARCHIVE_EXTRACT_WORKERS;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_PROXY_CACHE_SIZE;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.MAVEN_METADATA;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.NPM_METADATA;
+import static org.commonjava.util.sidecar.services.ProxyContentCache.PROXY_CACHE_DIR;
 
 @ApplicationScoped
 public class ArchiveRetrieveService
@@ -54,17 +93,36 @@ public class ArchiveRetrieveService
 
     private final static String BUILD_CONFIG_ID = "build.config.id";
 
-    private final static String MAVEN_META = "maven-metadata.xml";
+    private final static String PART_SUFFIX = ".part";
 
-    private final static String NPM_META = "package.json";
+    private final static String ARCHIVE_SUFFIX = ".zip";
+
+    private final static int MAX_BUFFERED_ENTRY_SIZE = 4 * 1024 * 1024; // 4M, larger entries are written inline
+
+    private final static long SHUTDOWN_CLEANUP_TIMEOUT = 10 * 1000; // 10s, well inside the pod termination grace
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
     @Inject
     SidecarConfig sidecarConfig;
 
+    @Inject
+    ReportService reportService;
+
     private CloseableHttpClient client;
 
+    private volatile boolean stopped;
+
+    private volatile ZipArchive archive;
+
+    private LocalRepositoryIndex localIndex;
+
+    private ContentAddressableStore contentStore;
+
+    private LocalRepositoryCleaner cleaner;
+
+    private ProxyContentCache proxyCache;
+
     @PostConstruct
     public void init()
     {
@@ -104,23 +162,252 @@ public class ArchiveRetrieveService
                                                          return false;
                                                      } );
         client = builder.build();
+        Path root = Paths.get( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) );
+        localIndex = new LocalRepositoryIndex( root );
+        contentStore = new ContentAddressableStore( root );
+        long proxyCacheSize =
+                        sidecarConfig.proxyCacheSize.map( MemorySize::asLongValue ).orElse( DEFAULT_PROXY_CACHE_SIZE );
+        proxyCache = new ProxyContentCache( root.resolve( PROXY_CACHE_DIR ), proxyCacheSize, PART_SUFFIX );
+        cleaner = new LocalRepositoryCleaner( root, Math.max( 2, Runtime.getRuntime().availableProcessors() ) );
+    }
+
+    void onStart( @Observes StartupEvent event )
+    {
+        cleanUpTrash();
+        try
+        {
+            long start = System.currentTimeMillis();
+            localIndex.rebuild( PART_SUFFIX );
+            contentStore.rebuild();
+            logger.info( "Indexed {} local repository paths in {}ms", localIndex.size(),
+                         System.currentTimeMillis() - start );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to index local repository", e );
+        }
+
+        if ( sidecarConfig.archiveApi.isEmpty() || isBlank( getBuildConfigId() ) )
+        {
+            logger.info( "Skip pre-seeding, archive api or build config id is not set." );
+            return;
+        }
+
+        Thread preSeed = new Thread( this::preSeed, "archive-pre-seed" );
+        preSeed.setDaemon( true );
+        preSeed.start();
+    }
+
+    /**
+     * Download the historical archive of the current build. In 'extract' mode it is unpacked into the local repository
+     * while it streams in, and each entry is published with an atomic rename, so it can be served as soon as it is
+     * written. In 'direct' mode the archive file is kept and only its central directory is indexed.
+     */
+    void preSeed()
+    {
+        String url = UrlUtils.buildUrl( sidecarConfig.archiveApi.get(), getBuildConfigId() );
+        Path root = Paths.get( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) );
+        logger.info( "Pre-seeding historical archive from {} into {}", url, root );
+
+        long start = System.currentTimeMillis();
+        try (CloseableHttpResponse response = client.execute( new HttpGet( url ) ))
+        {
+            if ( response.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+            {
+                logger.warn( "Skip pre-seeding, historical archive is not available: {}", response.getStatusLine() );
+                EntityUtils.consumeQuietly( response.getEntity() );
+                return;
+            }
+
+            int count;
+            if ( isDirectArchiveMode() )
+            {
+                count = indexArchive( response.getEntity().getContent(), root );
+            }
+            else
+            {
+                count = extractArchive( response.getEntity().getContent(), root );
+            }
+            logger.info( "Pre-seeded {} entries in {}ms", count, System.currentTimeMillis() - start );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to pre-seed historical archive from " + url, e );
+        }
     }
 
+    private int indexArchive( InputStream in, Path root ) throws IOException
+    {
+        Files.createDirectories( root );
+        Path target = root.resolve( getBuildConfigId() + ARCHIVE_SUFFIX );
+        Path part = root.resolve( getBuildConfigId() + ARCHIVE_SUFFIX + PART_SUFFIX );
+        try (OutputStream out = Files.newOutputStream( part ))
+        {
+            IOUtils.copy( in, out );
+        }
+        Files.move( part, target, ATOMIC_MOVE, REPLACE_EXISTING );
+
+        ZipArchive opened = new ZipArchive( target );
+        archive = opened;
+        return opened.size();
+    }
+
+    private int extractArchive( InputStream archive, Path root ) throws IOException
+    {
+        int workers = sidecarConfig.archiveExtractWorkers.orElse( DEFAULT_ARCHIVE_EXTRACT_WORKERS );
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool( workers, r -> {
+            Thread t = new Thread( r, "archive-extract-" + threadIndex.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        } );
+
+        // bound the number of buffered entries waiting for a worker, so memory stays flat however large the archive is
+        int maxInFlight = workers * 2;
+        Semaphore inFlight = new Semaphore( maxInFlight );
+        AtomicInteger count = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        try (ZipInputStream zip = new ZipInputStream( archive ))
+        {
+            ZipEntry entry;
+            while ( !stopped && ( entry = zip.getNextEntry() ) != null )
+            {
+                if ( entry.isDirectory() )
+                {
+                    continue;
+                }
+
+                Path target = root.resolve( entry.getName().replaceFirst( "^/+", "" ) ).normalize();
+                if ( !target.startsWith( root ) )
+                {
+                    logger.warn( "Skip archive entry outside of local repository: {}", entry.getName() );
+                    continue;
+                }
+
+                if ( isContentAddressable() )
+                {
+                    // the historical report tells the digest up front, known content is not even read
+                    String path = root.relativize( target ).toString();
+                    String expected = getExpectedDigest( path );
+                    if ( contentStore.hasBlob( expected ) )
+                    {
+                        contentStore.link( path, expected );
+                        count.incrementAndGet();
+                        continue;
+                    }
+                }
+
+                byte[] head = zip.readNBytes( MAX_BUFFERED_ENTRY_SIZE );
+                int next = head.length < MAX_BUFFERED_ENTRY_SIZE ? -1 : zip.read();
+                if ( next < 0 )
+                {
+                    inFlight.acquire();
+                    executor.execute( () -> {
+                        try
+                        {
+                            writeEntry( root, target, head, -1, null );
+                            count.incrementAndGet();
+                        }
+                        catch ( IOException e )
+                        {
+                            logger.error( "Failed to extract archive entry " + target, e );
+                            failed.incrementAndGet();
+                        }
+                        finally
+                        {
+                            inFlight.release();
+                        }
+                    } );
+                }
+                else
+                {
+                    writeEntry( root, target, head, next, zip );
+                    count.incrementAndGet();
+                }
+            }
+
+            inFlight.acquire( maxInFlight );
+            if ( stopped || failed.get() > 0 )
+            {
+                throw new IOException( "Historical archive extraction incomplete, failed entries: " + failed.get() );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while extracting historical archive" );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return count.get();
+    }
+
+    /**
+     * Write the buffered head of an entry, followed by the remaining bytes of the entry when it was too large to
+     * buffer, to a part file and rename it into place. In content addressable mode the entry goes to the blob store.
+     */
+    private void writeEntry( Path root, Path target, byte[] head, int next, InputStream rest ) throws IOException
+    {
+        if ( isContentAddressable() )
+        {
+            String path = root.relativize( target ).toString();
+            InputStream content = new ByteArrayInputStream( head );
+            if ( next >= 0 )
+            {
+                content = new SequenceInputStream( content, new SequenceInputStream(
+                                new ByteArrayInputStream( new byte[] { (byte) next } ),
+                                CloseShieldInputStream.wrap( rest ) ) );
+            }
+            String digest = contentStore.store( path, content );
+            String expected = getExpectedDigest( path );
+            if ( expected != null && !expected.equals( digest ) )
+            {
+                logger.warn( "Archive entry {} has sha256 {}, historical report expects {}", path, digest, expected );
+            }
+            logger.trace( "Stored: {} as {}", path, digest );
+            return;
+        }
+
+        Files.createDirectories( target.getParent() );
+        Path part = target.resolveSibling( target.getFileName() + PART_SUFFIX );
+        try (OutputStream out = Files.newOutputStream( part ))
+        {
+            out.write( head );
+            if ( next >= 0 )
+            {
+                out.write( next );
+                IOUtils.copy( rest, out );
+            }
+        }
+        Files.move( part, target, ATOMIC_MOVE, REPLACE_EXISTING );
+        localIndex.addFile( target );
+        logger.trace( "Extracted: {}", target );
+    }
+
+    /**
+     * Empty the local repository. The content is moved to a trash directory first, so whatever can't be deleted
+     * within the shutdown budget is finished by the next start instead of holding up pod termination.
+     */
     @PreDestroy
     public void destroy()
     {
+        stopped = true;
+        localIndex.clear();
+        contentStore.clear();
+        proxyCache.clear();
+        IOUtils.closeQuietly( archive, null );
         try
         {
-            File downloadDir = new File( sidecarConfig.localRepository.get() );
-            List<File> downloads = Files.walk( downloadDir.toPath() )
-                                        .filter( Files::isRegularFile )
-                                        .map( Path::toFile )
-                                        .collect( Collectors.toList() );
-            for ( File content : downloads )
+            long start = System.currentTimeMillis();
+            Optional<Path> trash = cleaner.moveToTrash();
+            if ( trash.isPresent() && cleaner.delete( List.of( trash.get() ), SHUTDOWN_CLEANUP_TIMEOUT,
+                                                      TimeUnit.MILLISECONDS ) )
             {
-                content.delete();
+                new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) ).delete();
             }
-            downloadDir.delete();
+            logger.info( "Cleaned up local repository in {}ms", System.currentTimeMillis() - start );
         }
         catch ( IOException e )
         {
@@ -132,20 +419,132 @@ public class ArchiveRetrieveService
         }
     }
 
+    /**
+     * Delete trash left behind by an earlier run in the background, it is not part of the repository any more.
+     */
+    private void cleanUpTrash()
+    {
+        try
+        {
+            List<Path> trash = cleaner.findTrash();
+            if ( trash.isEmpty() )
+            {
+                return;
+            }
+
+            logger.info( "Deleting {} leftover trash directories from an earlier run", trash.size() );
+            Thread cleanup = new Thread( () -> cleaner.delete( trash, Long.MAX_VALUE, TimeUnit.MILLISECONDS ),
+                                         "repository-cleanup" );
+            cleanup.setDaemon( true );
+            cleanup.start();
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to look up leftover trash in local repository", e );
+        }
+    }
+
     public Optional<File> getLocally( final String path )
     {
-        File download = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) + File.separator + path );
-        if ( !download.exists() )
+        if ( isContentAddressable() )
         {
-            return Optional.empty();
+            Optional<File> blob = contentStore.lookup( path, this::getExpectedDigest );
+            if ( blob.isPresent() )
+            {
+                return blob;
+            }
         }
-        return Optional.of( download );
+        return localIndex.lookup( path );
     }
 
-    public boolean shouldProxy( final String path )
+    /**
+     * The sha256 of the blob {@link #getLocally(String)} resolved a path to in content addressable mode. Files
+     * extracted into the plain repository have none, they are never checked against the historical report.
+     */
+    public Optional<String> getBlobDigest( final String path )
     {
-        return getBuildConfigId() == null || getBuildConfigId().trim().isEmpty() || path.endsWith( MAVEN_META )
-                        || path.endsWith( NPM_META );
+        return isContentAddressable() ? contentStore.digestOf( path ) : Optional.empty();
+    }
+
+    /**
+     * Keep immutable content proxied from Indy below the local repository while it is streamed to the client, so
+     * repeat requests to the same store are served locally.
+     *
+     * @param store the store the content is requested from, packageType/type/name
+     * @param length expected length of the content, or -1 when unknown
+     * @param originUrl where upstream got the content from
+     */
+    public InputStream cacheLocally( String store, String path, InputStream content, long length, String originUrl )
+    {
+        return proxyCache.isCacheable( path ) ? proxyCache.tee( store, path, content, length, originUrl ) : content;
+    }
+
+    /**
+     * Content cached from an earlier proxied download from the same store.
+     */
+    public Optional<ProxyContentCache.Cached> getCached( String packageType, String type, String name, String path )
+    {
+        return proxyCache.lookup( storeOf( packageType, type, name ), path );
+    }
+
+    /**
+     * Track a download served from the proxy cache. The historical report does not know such content, so it is tracked
+     * with what was recorded when it was cached, for the store it is served from.
+     */
+    public void trackCached( String packageType, String type, String name, ProxyContentCache.Cached cached )
+    {
+        String buildConfigId = getBuildConfigId();
+        if ( isBlank( buildConfigId ) )
+        {
+            return;
+        }
+        StoreKey store = new StoreKey( packageType, StoreType.valueOf( type ), name );
+        reportService.appendDownload(
+                        new TrackedContentEntry( new TrackingKey( buildConfigId ), store, AccessChannel.NATIVE,
+                                                 cached.getOriginUrl(), "/" + cached.getPath(), StoreEffect.DOWNLOAD,
+                                                 cached.getSize(), cached.getMd5(), cached.getSha1(),
+                                                 cached.getSha256() ) );
+    }
+
+    public static String storeOf( String packageType, String type, String name )
+    {
+        return String.join( "/", packageType, type, name );
+    }
+
+    private String getExpectedDigest( String path )
+    {
+        return reportService.getHistoricalEntry( path )
+                            .map( HistoricalEntryDTO::getSha256 )
+                            .map( String::toLowerCase )
+                            .orElse( null );
+    }
+
+    public boolean isContentAddressable()
+    {
+        return sidecarConfig.contentAddressable.orElse( Boolean.FALSE );
+    }
+
+    /**
+     * The historical archive when it is served in 'direct' mode and has been indexed.
+     */
+    public Optional<ZipArchive> getArchive()
+    {
+        return Optional.ofNullable( archive );
+    }
+
+    public boolean isDirectArchiveMode()
+    {
+        return ARCHIVE_MODE_DIRECT.equalsIgnoreCase( sidecarConfig.archiveMode.orElse( ARCHIVE_MODE_EXTRACT ) );
+    }
+
+    public boolean shouldProxy( final String packageType, final String type, final String name, final String path )
+    {
+        if ( path.endsWith( MAVEN_METADATA ) || path.endsWith( NPM_METADATA ) )
+        {
+            return true;
+        }
+        // without a build there is no archive, only content cached from earlier proxied downloads is local
+        return isBlank( getBuildConfigId() ) && !proxyCache.contains( storeOf( packageType, type, name ), path );
     }
 
     public String getBuildConfigId()
@@ -17,6 +17,7 @@ package org.commonjava.util.sidecar.services;
 
 import io.opentelemetry.api.trace.Span;
 import io.quarkus.vertx.ConsumeEvent;
+import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import org.apache.commons.io.FilenameUtils;
@@ -29,14 +30,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.EVENT_PROXY_CONFIG_CHANGE;
@@ -47,11 +54,18 @@ public class Classifier
 {
     private static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis( 5 );
 
+    private static final long RETIRE_CHECK_MILLIS = 1000;
+
     private final AtomicLong timeout = new AtomicLong( DEFAULT_TIMEOUT );
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final Map<ServiceConfig, WebClientAdapter> clientMap = new ConcurrentHashMap<>();
+    private final Map<List<Object>, WebClientAdapter> clientMap =
+                    new ConcurrentHashMap<>(); // by ServiceConfig.clientKey()
+
+    private final Object clientLock = new Object(); // taken to add clients and to retire them
+
+    private volatile Routes routes;
 
     @Inject
     ProxyConfiguration proxyConfiguration;
@@ -59,19 +73,68 @@ public class Classifier
     @Inject
     OtelAdapter otel;
 
+    @Inject
+    Vertx vertx;
+
     @PostConstruct
     void init()
     {
         readTimeout();
+        routingTable();
         logger.debug( "Init, timeout: {}", timeout );
     }
 
+    @PreDestroy
+    void destroy()
+    {
+        clientMap.values().forEach( WebClientAdapter::close );
+    }
+
+    /**
+     * Keep the clients, and so their connection pools, of services that are still configured the same way, and retire
+     * those of services that are gone or changed. Their replacements are created by the first request to them.
+     */
     @ConsumeEvent( value = EVENT_PROXY_CONFIG_CHANGE )
     void handleConfigChange( String message )
     {
         readTimeout();
-        clientMap.forEach( ( k, client ) -> client.reinit() );
-        logger.debug( "Handle event {}, refresh timeout: {}", EVENT_PROXY_CONFIG_CHANGE, timeout );
+        synchronized ( clientLock )
+        {
+            Set<List<Object>> live = liveClientKeys( proxyConfiguration.getSnapshot() );
+            clientMap.forEach( ( key, client ) -> {
+                if ( live.contains( key ) )
+                {
+                    client.reinit();
+                }
+                else if ( clientMap.remove( key, client ) )
+                {
+                    logger.info( "Retire client for {}", client.getServiceConfig() );
+                    retire( client );
+                }
+            } );
+        }
+        logger.debug( "Handle event {}, refresh timeout: {}, clients: {}", EVENT_PROXY_CONFIG_CHANGE, timeout,
+                      clientMap.size() );
+    }
+
+    private static Set<List<Object>> liveClientKeys( ProxyConfiguration.Snapshot config )
+    {
+        return config.getServices().stream().map( ServiceConfig::clientKey ).collect( Collectors.toSet() );
+    }
+
+    /**
+     * Close the client once the calls it still has are done, or the read timeout is over.
+     */
+    private void retire( WebClientAdapter client )
+    {
+        long deadline = System.currentTimeMillis() + timeout.get();
+        vertx.setPeriodic( RETIRE_CHECK_MILLIS, id -> {
+            if ( client.getRunningCalls() + client.getQueuedCalls() == 0 || System.currentTimeMillis() > deadline )
+            {
+                vertx.cancelTimer( id );
+                client.close();
+            }
+        } );
     }
 
     private void readTimeout()
@@ -109,7 +172,16 @@ public class Classifier
             span.setAttribute( "path.ext", FilenameUtils.getExtension( path ) );
         }
 
-        ServiceConfig service = getServiceConfig( path, method );
+        ServiceConfig service;
+        WebClientAdapter client;
+        do
+        {
+            // routed with a config that a reload replaced meanwhile, route again with the new one
+            service = getServiceConfig( path, method );
+            client = service == null ? null : getWebClient( service );
+        }
+        while ( service != null && client == null );
+
         if ( service == null )
         {
             if ( otel.enabled() )
@@ -130,31 +202,84 @@ public class Classifier
             span.setAttribute( "target.method", method.name() );
             span.setAttribute( "target.path", path );
         }
-        return action.apply( getWebClient( service ), service );
+        return action.apply( client, service );
+    }
+
+    /**
+     * The service a request would go to, without getting a client for it.
+     */
+    public Optional<ServiceConfig> findService( String path, HttpMethod method )
+    {
+        return Optional.ofNullable( getServiceConfig( path, method ) );
     }
 
     private ServiceConfig getServiceConfig( String path, HttpMethod method )
     {
-        ServiceConfig service = null;
+        return routingTable().route( path, method );
+    }
 
-        Set<ServiceConfig> services = proxyConfiguration.getServices();
-        if ( services != null )
+    /**
+     * Table for the current config snapshot. It is rebuilt by the first request that sees a new snapshot, so routing
+     * follows a reload right away rather than once the change event is handled.
+     */
+    private RoutingTable routingTable()
+    {
+        ProxyConfiguration.Snapshot config = proxyConfiguration.getSnapshot();
+        Routes r = routes;
+        if ( r == null || r.config != config )
         {
-            for ( ServiceConfig sv : services )
+            r = new Routes( config, new RoutingTable( config.getServices() ) );
+            routes = r;
+        }
+        return r.table;
+    }
+
+    /**
+     * Clients of the services configured now, as far as they have been called.
+     */
+    public Collection<WebClientAdapter> getClients()
+    {
+        return Collections.unmodifiableCollection( clientMap.values() );
+    }
+
+    /**
+     * Get the service's client, creating it if the service is in the current config. The check and the creation are
+     * done under the lock config changes retire clients under, so a client is never added for a service a reload just
+     * removed, where nothing would retire it.
+     *
+     * @return null when the service is no longer configured
+     */
+    private WebClientAdapter getWebClient( ServiceConfig service )
+    {
+        List<Object> key = service.clientKey();
+        WebClientAdapter client = clientMap.get( key );
+        if ( client != null )
+        {
+            return client;
+        }
+
+        synchronized ( clientLock )
+        {
+            client = clientMap.get( key );
+            if ( client == null && liveClientKeys( proxyConfiguration.getSnapshot() ).contains( key ) )
             {
-                if ( path.matches( sv.pathPattern ) && ( sv.methods == null || sv.methods.contains( method.name() ) ) )
-                {
-                    service = sv;
-                    break;
-                }
+                client = new WebClientAdapter( service, proxyConfiguration, timeout, otel, vertx );
+                clientMap.put( key, client );
             }
+            return client;
         }
-        return service;
     }
 
-    private WebClientAdapter getWebClient( ServiceConfig service ) throws Exception
+    private static final class Routes
     {
-        return clientMap.computeIfAbsent( service,
-                                          sc -> new WebClientAdapter( sc, proxyConfiguration, timeout, otel ) );
+        private final ProxyConfiguration.Snapshot config;
+
+        private final RoutingTable table;
+
+        private Routes( ProxyConfiguration.Snapshot config, RoutingTable table )
+        {
+            this.config = config;
+            this.table = table;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Deduplicated blob store below the local repository, keyed by sha256. Every distinct content is stored once under
+ * <code>.blobs/&lt;first two hex chars&gt;/&lt;sha256&gt;</code>, and repository paths are mapped to their digest, so
+ * the same jar pulled from several stores costs disk and page cache only once.
+ */
+public class ContentAddressableStore
+{
+    public static final String BLOBS_DIR = ".blobs";
+
+    private static final Pattern SHA256_HEX = Pattern.compile( "[0-9a-f]{64}" );
+
+    private final Path blobs;
+
+    private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+    private final Set<String> stored = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean complete;
+
+    public ContentAddressableStore( Path root )
+    {
+        this.blobs = root.toAbsolutePath().normalize().resolve( BLOBS_DIR );
+    }
+
+    /**
+     * Index the blobs already on disk. Blobs are only ever added through {@link #store(String, InputStream)} from then
+     * on, so a digest that is not indexed has no blob and needs no stat.
+     */
+    public void rebuild() throws IOException
+    {
+        if ( Files.isDirectory( blobs ) )
+        {
+            try (Stream<Path> files = Files.walk( blobs ))
+            {
+                files.filter( Files::isRegularFile )
+                     .map( file -> file.getFileName().toString() )
+                     .filter( ContentAddressableStore::isDigest )
+                     .forEach( stored::add );
+            }
+        }
+        complete = true;
+    }
+
+    /**
+     * Resolve a repository path to its blob. Paths not stored through this store are resolved by the expected digest,
+     * normally taken from the historical report, when a blob with that digest exists.
+     */
+    public Optional<File> lookup( String path, Function<String, String> expectedDigest )
+    {
+        String key = normalize( path );
+        String digest = digests.get( key );
+        if ( digest == null && expectedDigest != null )
+        {
+            digest = expectedDigest.apply( key );
+            if ( !hasBlob( digest ) )
+            {
+                return Optional.empty();
+            }
+            digests.put( key, digest );
+        }
+        return digest == null ? Optional.empty() : Optional.of( blobPath( digest ).toFile() );
+    }
+
+    /**
+     * The digest of the blob a path has been resolved or linked to, the sha256 of the bytes served for it.
+     */
+    public Optional<String> digestOf( String path )
+    {
+        return Optional.ofNullable( digests.get( normalize( path ) ) );
+    }
+
+    public boolean hasBlob( String digest )
+    {
+        if ( !isDigest( digest ) )
+        {
+            return false;
+        }
+        if ( stored.contains( digest ) )
+        {
+            return true;
+        }
+        if ( complete )
+        {
+            return false;
+        }
+
+        if ( Files.isRegularFile( blobPath( digest ) ) )
+        {
+            stored.add( digest );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Map a path to content that is already in the store.
+     */
+    public void link( String path, String digest )
+    {
+        digests.put( normalize( path ), digest );
+    }
+
+    /**
+     * Stream content into the store and map the path to it. Content that is already stored is not kept twice.
+     *
+     * @return sha256 of the content
+     */
+    public String store( String path, InputStream in ) throws IOException
+    {
+        Files.createDirectories( blobs );
+        Path part = Files.createTempFile( blobs, "blob-", ".part" );
+        try
+        {
+            MessageDigest sha256 = DigestUtils.getSha256Digest();
+            try (OutputStream out = new DigestOutputStream( Files.newOutputStream( part ), sha256 ))
+            {
+                IOUtils.copy( in, out );
+            }
+
+            String digest = Hex.encodeHexString( sha256.digest() );
+            Path blob = blobPath( digest );
+            if ( !Files.exists( blob ) )
+            {
+                Files.createDirectories( blob.getParent() );
+                Files.move( part, blob, ATOMIC_MOVE, REPLACE_EXISTING );
+            }
+            stored.add( digest );
+            link( path, digest );
+            return digest;
+        }
+        finally
+        {
+            Files.deleteIfExists( part );
+        }
+    }
+
+    public int size()
+    {
+        return digests.size();
+    }
+
+    public void clear()
+    {
+        digests.clear();
+        stored.clear();
+        complete = false;
+    }
+
+    private Path blobPath( String digest )
+    {
+        return blobs.resolve( digest.substring( 0, 2 ) ).resolve( digest );
+    }
+
+    private static boolean isDigest( String digest )
+    {
+        return digest != null && SHA256_HEX.matcher( digest ).matches();
+    }
+
+    private static String normalize( String path )
+    {
+        int i = 0;
+        while ( i < path.length() && path.charAt( i ) == '/' )
+        {
+            i++;
+        }
+        return i == 0 ? path : path.substring( i );
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Compact, read-only index of the downloads in a historical build report. The report is streamed token by token into
+ * the index, so neither the JSON text nor a DTO tree of it is ever held in memory. Per path it keeps the deduplicated
+ * store key, the size as a primitive and the digests as raw bytes instead of hex strings, and builds a
+ * {@link HistoricalEntryDTO} only when one is asked for.
+ */
+public class HistoricalContentIndex
+{
+    private static final int MD5_LENGTH = 16;
+
+    private static final int SHA1_LENGTH = 20;
+
+    private static final int SHA256_LENGTH = 32;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Stream the downloads of a report file into the index.
+     *
+     * @return number of downloads read
+     */
+    public int load( JsonFactory factory, Path file ) throws IOException
+    {
+        int count = 0;
+        try (JsonParser parser = factory.createParser( file.toFile() ))
+        {
+            if ( parser.nextToken() != JsonToken.START_OBJECT )
+            {
+                logger.warn( "Historical content {} is not a JSON object.", file );
+                return 0;
+            }
+
+            while ( parser.nextToken() == JsonToken.FIELD_NAME )
+            {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ( "downloads".equals( field ) && value == JsonToken.START_ARRAY )
+                {
+                    while ( parser.nextToken() == JsonToken.START_OBJECT )
+                    {
+                        if ( readDownload( parser ) )
+                        {
+                            count++;
+                        }
+                    }
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Look up a download by path, with or without the leading slash the report uses.
+     */
+    public Optional<HistoricalEntryDTO> get( String path )
+    {
+        String key = path.startsWith( "/" ) ? path : "/" + path;
+        Entry entry = entries.get( key );
+        return entry == null ? Optional.empty() : Optional.of( entry.toDTO( key ) );
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    private boolean readDownload( JsonParser parser ) throws IOException
+    {
+        String path = null;
+        Entry entry = new Entry();
+        while ( parser.nextToken() == JsonToken.FIELD_NAME )
+        {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ( value == JsonToken.VALUE_NULL )
+            {
+                continue;
+            }
+
+            switch ( field )
+            {
+                case "path":
+                    path = parser.getText();
+                    break;
+                case "storeKey":
+                    entry.storeKey = readStoreKey( parser, value );
+                    break;
+                case "size":
+                    entry.size = parser.getValueAsLong( -1 );
+                    break;
+                case "md5":
+                    entry.md5 = decode( parser.getText(), MD5_LENGTH );
+                    break;
+                case "sha1":
+                    entry.sha1 = decode( parser.getText(), SHA1_LENGTH );
+                    break;
+                case "sha256":
+                    entry.sha256 = decode( parser.getText(), SHA256_LENGTH );
+                    break;
+                case "originUrl":
+                    entry.originUrl = parser.getText();
+                    break;
+                case "localUrl":
+                    entry.localUrl = parser.getText();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        if ( path == null )
+        {
+            logger.warn( "Skip historical download without a path." );
+            return false;
+        }
+        entries.put( path.startsWith( "/" ) ? path : "/" + path, entry );
+        return true;
+    }
+
+    private StoreKey readStoreKey( JsonParser parser, JsonToken value ) throws IOException
+    {
+        if ( value != JsonToken.START_OBJECT )
+        {
+            return StoreKey.dedupe( StoreKey.fromString( parser.getText() ) );
+        }
+
+        StoreKey key = new StoreKey();
+        while ( parser.nextToken() == JsonToken.FIELD_NAME )
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch ( field )
+            {
+                case "packageType":
+                    key.setPackageType( parser.getText() );
+                    break;
+                case "type":
+                    key.setType( StoreType.get( parser.getText() ) );
+                    break;
+                case "name":
+                    key.setName( parser.getText() );
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return StoreKey.dedupe( key );
+    }
+
+    private byte[] decode( String hex, int length )
+    {
+        try
+        {
+            byte[] digest = Hex.decodeHex( hex );
+            if ( digest.length == length )
+            {
+                return digest;
+            }
+        }
+        catch ( DecoderException e )
+        {
+            // fall through
+        }
+        logger.warn( "Skip malformed digest in historical content: {}", hex );
+        return null;
+    }
+
+    private static String encode( byte[] digest )
+    {
+        return digest == null ? null : Hex.encodeHexString( digest );
+    }
+
+    private static final class Entry
+    {
+        private StoreKey storeKey;
+
+        private long size = -1;
+
+        private byte[] md5;
+
+        private byte[] sha1;
+
+        private byte[] sha256;
+
+        private String originUrl;
+
+        private String localUrl;
+
+        private HistoricalEntryDTO toDTO( String path )
+        {
+            HistoricalEntryDTO dto = new HistoricalEntryDTO( storeKey, path );
+            dto.setSize( size < 0 ? null : size );
+            dto.setMd5( encode( md5 ) );
+            dto.setSha1( encode( sha1 ) );
+            dto.setSha256( encode( sha256 ) );
+            dto.setOriginUrl( originUrl );
+            dto.setLocalUrl( localUrl );
+            return dto;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Empties the local repository without making the caller wait for every file to be unlinked. The content is first
+ * moved into a trash directory inside the repository, a few renames that take no time whatever the repository size,
+ * and the trash is then deleted by a pool of threads, one task per directory. Moving inside the repository rather than
+ * renaming the repository itself keeps this working when the repository is a mounted volume.
+ * <p>
+ * Trash that could not be deleted in time, or was left by a crashed run, is found and deleted at the next startup.
+ */
+public class LocalRepositoryCleaner
+{
+    public static final String TRASH_PREFIX = ".trash-";
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Path root;
+
+    private final int parallelism;
+
+    public LocalRepositoryCleaner( Path root, int parallelism )
+    {
+        this.root = root.toAbsolutePath().normalize();
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Move everything in the repository, apart from earlier trash, into a new trash directory.
+     *
+     * @return the trash directory, empty when there was nothing to move
+     */
+    public Optional<Path> moveToTrash() throws IOException
+    {
+        if ( !Files.isDirectory( root ) )
+        {
+            return Optional.empty();
+        }
+
+        Path trash = null;
+        try (DirectoryStream<Path> children = Files.newDirectoryStream( root ))
+        {
+            for ( Path child : children )
+            {
+                if ( isTrash( child ) )
+                {
+                    continue;
+                }
+                if ( trash == null )
+                {
+                    trash = Files.createDirectory( root.resolve( TRASH_PREFIX + System.nanoTime() ) );
+                }
+                Files.move( child, trash.resolve( child.getFileName() ), ATOMIC_MOVE );
+            }
+        }
+        return Optional.ofNullable( trash );
+    }
+
+    /**
+     * Trash directories currently in the repository.
+     */
+    public List<Path> findTrash() throws IOException
+    {
+        List<Path> trash = new ArrayList<>();
+        if ( Files.isDirectory( root ) )
+        {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream( root, this::isTrash ))
+            {
+                children.forEach( trash::add );
+            }
+        }
+        return trash;
+    }
+
+    /**
+     * Delete the given directories in parallel, waiting at most the given time.
+     *
+     * @return true when everything was deleted in time
+     */
+    public boolean delete( List<Path> dirs, long timeout, TimeUnit unit )
+    {
+        if ( dirs.isEmpty() )
+        {
+            return true;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( parallelism );
+        try
+        {
+            dirs.forEach( dir -> pool.execute( new DeleteAction( dir ) ) );
+            boolean done = pool.awaitQuiescence( timeout, unit );
+            if ( !done )
+            {
+                logger.warn( "Local repository cleanup did not finish in {} {}, the rest is left for the next start.",
+                             timeout, unit );
+            }
+            return done && dirs.stream().noneMatch( Files::exists );
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    private boolean isTrash( Path path )
+    {
+        return path.getFileName().toString().startsWith( TRASH_PREFIX ) && Files.isDirectory( path );
+    }
+
+    private final class DeleteAction
+                    extends RecursiveAction
+    {
+        private final Path dir;
+
+        private DeleteAction( Path dir )
+        {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute()
+        {
+            List<DeleteAction> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream( dir ))
+            {
+                for ( Path child : children )
+                {
+                    if ( Files.isDirectory( child, NOFOLLOW_LINKS ) )
+                    {
+                        subdirs.add( new DeleteAction( child ) );
+                    }
+                    else
+                    {
+                        Files.deleteIfExists( child );
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to clean up {}: {}", dir, e.getMessage() );
+            }
+
+            invokeAll( subdirs );
+            try
+            {
+                Files.deleteIfExists( dir );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to delete {}: {}", dir, e.getMessage() );
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Concurrent in-memory set of the file paths present in the local repository, so a lookup costs a hash probe instead
+ * of file system stats. The index is built by walking the repository at startup and is kept up to date by whoever
+ * writes content into it.
+ * <p>
+ * Until that walk has finished, a miss falls back to the file system and remembers what it finds. Once it has, a miss
+ * is final.
+ */
+public class LocalRepositoryIndex
+{
+    private final Path root;
+
+    private final Set<String> paths = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean complete;
+
+    public LocalRepositoryIndex( Path root )
+    {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Walk the repository and add every regular file, skipping hidden top level directories like the blob store or
+     * cleanup trash. Part files are left over from an interrupted write and are deleted instead. Once the walk is done
+     * the index is complete, whatever is written later is added by its writer.
+     */
+    public void rebuild( String partSuffix ) throws IOException
+    {
+        if ( !Files.isDirectory( root ) )
+        {
+            complete = true;
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk( root ))
+        {
+            files.filter( Files::isRegularFile ).forEach( file -> {
+                String path = root.relativize( file ).toString();
+                if ( path.endsWith( partSuffix ) )
+                {
+                    file.toFile().delete();
+                }
+                else if ( !path.startsWith( "." ) )
+                {
+                    add( path );
+                }
+            } );
+        }
+        complete = true;
+    }
+
+    public Optional<File> lookup( String path )
+    {
+        String key = normalize( path );
+        if ( paths.contains( key ) )
+        {
+            return Optional.of( root.resolve( key ).toFile() );
+        }
+        if ( complete )
+        {
+            return Optional.empty();
+        }
+
+        Path resolved = root.resolve( key ).normalize();
+        if ( !resolved.startsWith( root ) )
+        {
+            return Optional.empty();
+        }
+
+        File file = resolved.toFile();
+        if ( file.isFile() )
+        {
+            paths.add( key );
+            return Optional.of( file );
+        }
+        return Optional.empty();
+    }
+
+    public boolean contains( String path )
+    {
+        return paths.contains( normalize( path ) );
+    }
+
+    public void add( String path )
+    {
+        paths.add( normalize( path ) );
+    }
+
+    /**
+     * Add a file written somewhere below the repository root.
+     */
+    public void addFile( Path file )
+    {
+        add( root.relativize( file.toAbsolutePath().normalize() ).toString() );
+    }
+
+    public void remove( String path )
+    {
+        paths.remove( normalize( path ) );
+    }
+
+    public void clear()
+    {
+        paths.clear();
+        complete = false;
+    }
+
+    public int size()
+    {
+        return paths.size();
+    }
+
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    private static String normalize( String path )
+    {
+        String key = File.separatorChar == '/' ? path : path.replace( File.separatorChar, '/' );
+        int i = 0;
+        while ( i < key.length() && key.charAt( i ) == '/' )
+        {
+            i++;
+        }
+        return i == 0 ? key : key.substring( i );
+    }
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.http.HttpServerRequest;
+import okhttp3.Headers;
+import okhttp3.ResponseBody;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.util.WebClientAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static javax.ws.rs.core.HttpHeaders.ACCEPT;
+import static javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING;
+import static javax.ws.rs.core.HttpHeaders.AUTHORIZATION;
+import static javax.ws.rs.core.HttpHeaders.ETAG;
+import static javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE;
+import static javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH;
+import static javax.ws.rs.core.HttpHeaders.LAST_MODIFIED;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_METADATA_CACHE_SIZE;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_METADATA_TTL;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.MAVEN_METADATA;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.NPM_METADATA;
+
+/**
+ * Bounded in-memory cache of maven-metadata.xml and package.json responses in front of the upstream GET, since
+ * parallel builds ask for the same metadata over and over within seconds. Entries are fresh for a TTL per package
+ * type; after that they are revalidated upstream with If-None-Match / If-Modified-Since, and a 304 makes them fresh
+ * again without a body transfer. A stale entry is also served when the revalidation fails with an error.
+ */
+@ApplicationScoped
+public class MetadataCache
+{
+    private static final int MAX_CACHED_BODY_SIZE = 8 * 1024 * 1024; // 8M, larger metadata is passed through
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong revalidations = new AtomicLong();
+
+    private final AtomicLong staleHits = new AtomicLong();
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    private Map<String, Metadata> entries;
+
+    private int maxSize;
+
+    @PostConstruct
+    void init()
+    {
+        maxSize = sidecarConfig.metadataCacheSize.orElse( DEFAULT_METADATA_CACHE_SIZE );
+        entries = new LinkedHashMap<>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Metadata> eldest )
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public boolean isCacheable( String path )
+    {
+        return maxSize > 0 && ( path.endsWith( MAVEN_METADATA ) || path.endsWith( NPM_METADATA ) );
+    }
+
+    /**
+     * Entries are kept per upstream, per representation and per credentials, metadata fetched for one caller is never
+     * served to another one accepting a different type or encoding, or with different or no Authorization.
+     */
+    public String keyOf( ServiceConfig service, String path, HttpServerRequest request )
+    {
+        // the credentials themselves are not kept around for as long as the entry
+        String authorization = request.getHeader( AUTHORIZATION );
+        return String.join( "|", service.host + ":" + service.port, path, String.valueOf( request.getHeader( ACCEPT ) ),
+                            String.valueOf( request.getHeader( ACCEPT_ENCODING ) ),
+                            authorization == null ? "" : DigestUtils.sha256Hex( authorization ) );
+    }
+
+    /**
+     * Answer a metadata GET from the cache, or send the request upstream, conditionally when a stale entry is there.
+     *
+     * @param key from {@link #keyOf(ServiceConfig, String, HttpServerRequest)}
+     * @param cached builds the response for cached metadata
+     * @param passThrough builds the response for an upstream response that is not cached
+     */
+    public Uni<Response> get( String key, String path, WebClientAdapter.RequestAdapter request,
+                              Function<Metadata, Response> cached, Function<okhttp3.Response, Response> passThrough )
+    {
+        Metadata metadata = lookup( key );
+        if ( metadata != null && metadata.isFresh() )
+        {
+            hits.incrementAndGet();
+            logger.debug( "Metadata cache hit: {}", path );
+            return Uni.createFrom().item( cached.apply( metadata ) );
+        }
+
+        if ( metadata != null )
+        {
+            if ( metadata.etag != null )
+            {
+                request.header( IF_NONE_MATCH, metadata.etag );
+            }
+            if ( metadata.lastModified != null )
+            {
+                request.header( IF_MODIFIED_SINCE, metadata.lastModified );
+            }
+        }
+
+        Uni<Response> ret = request.call().enqueue().onItem().transform( resp -> {
+            if ( metadata != null && resp.code() == Response.Status.NOT_MODIFIED.getStatusCode() )
+            {
+                resp.close();
+                revalidations.incrementAndGet();
+                metadata.revalidated( resp.headers(), getTtl( path ) );
+                logger.debug( "Metadata revalidated: {}", path );
+                return cached.apply( metadata );
+            }
+            if ( metadata != null && resp.code() >= 500 )
+            {
+                resp.close();
+                return stale( path, metadata, cached );
+            }
+
+            misses.incrementAndGet();
+            if ( resp.code() == Response.Status.OK.getStatusCode() )
+            {
+                Metadata fetched = read( resp, getTtl( path ) );
+                if ( fetched != null )
+                {
+                    put( key, fetched );
+                    return cached.apply( fetched );
+                }
+            }
+            return passThrough.apply( resp );
+        } );
+
+        if ( metadata != null )
+        {
+            ret = ret.onFailure().recoverWithItem( t -> stale( path, metadata, cached ) );
+        }
+        return ret;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getRevalidations()
+    {
+        return revalidations.get();
+    }
+
+    public long getStaleHits()
+    {
+        return staleHits.get();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    private Response stale( String path, Metadata metadata, Function<Metadata, Response> cached )
+    {
+        staleHits.incrementAndGet();
+        logger.warn( "Metadata revalidation failed, serving stale: {}", path );
+        return cached.apply( metadata );
+    }
+
+    private synchronized Metadata lookup( String key )
+    {
+        return entries.get( key );
+    }
+
+    private synchronized void put( String key, Metadata metadata )
+    {
+        entries.put( key, metadata );
+    }
+
+    /**
+     * Read a successful response into a cache entry, or leave it untouched when its body is too large to keep.
+     */
+    private Metadata read( okhttp3.Response resp, Duration ttl )
+    {
+        try
+        {
+            // peeking buffers the body without consuming it, so a large body can still be passed through
+            ResponseBody peeked = resp.peekBody( MAX_CACHED_BODY_SIZE + 1L );
+            if ( peeked.contentLength() > MAX_CACHED_BODY_SIZE )
+            {
+                return null;
+            }
+
+            Metadata metadata = new Metadata( resp.message(), resp.headers(), peeked.bytes() );
+            resp.close();
+            metadata.refresh( ttl );
+            return metadata;
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to read metadata for caching: " + resp.request().url(), e );
+            return null;
+        }
+    }
+
+    private Duration getTtl( String path )
+    {
+        Optional<Duration> ttl =
+                        path.endsWith( NPM_METADATA ) ? sidecarConfig.npmMetadataTtl : sidecarConfig.mavenMetadataTtl;
+        return ttl.orElse( DEFAULT_METADATA_TTL );
+    }
+
+    /**
+     * A cached metadata response, with the checksums of its body so downloads served from the cache are tracked the
+     * same as upstream ones.
+     */
+    public static final class Metadata
+    {
+        private final String message;
+
+        private final byte[] body;
+
+        private volatile Headers headers;
+
+        private volatile String etag;
+
+        private volatile String lastModified;
+
+        private final String md5;
+
+        private final String sha1;
+
+        private final String sha256;
+
+        private volatile long expires;
+
+        private Metadata( String message, Headers headers, byte[] body )
+        {
+            this.message = message;
+            this.headers = headers;
+            this.body = body;
+            this.etag = headers.get( ETAG );
+            this.lastModified = headers.get( LAST_MODIFIED );
+            this.md5 = DigestUtils.md5Hex( body );
+            this.sha1 = DigestUtils.sha1Hex( body );
+            this.sha256 = DigestUtils.sha256Hex( body );
+        }
+
+        private void refresh( Duration ttl )
+        {
+            expires = System.nanoTime() + ttl.toNanos();
+        }
+
+        /**
+         * Take the validators a 304 sends along, so the next revalidation and the response to the client use them.
+         */
+        private void revalidated( Headers notModified, Duration ttl )
+        {
+            String newEtag = notModified.get( ETAG );
+            String newLastModified = notModified.get( LAST_MODIFIED );
+            if ( newEtag != null || newLastModified != null )
+            {
+                Headers.Builder builder = headers.newBuilder();
+                if ( newEtag != null )
+                {
+                    builder.set( ETAG, newEtag );
+                    etag = newEtag;
+                }
+                if ( newLastModified != null )
+                {
+                    builder.set( LAST_MODIFIED, newLastModified );
+                    lastModified = newLastModified;
+                }
+                headers = builder.build();
+            }
+            refresh( ttl );
+        }
+
+        private boolean isFresh()
+        {
+            return System.nanoTime() - expires < 0;
+        }
+
+        public String getMessage()
+        {
+            return message;
+        }
+
+        public Headers getHeaders()
+        {
+            return headers;
+        }
+
+        public byte[] getBody()
+        {
+            return body;
+        }
+
+        public String getMd5()
+        {
+            return md5;
+        }
+
+        public String getSha1()
+        {
+            return sha1;
+        }
+
+        public String getSha256()
+        {
+            return sha256;
+        }
+    }
+}
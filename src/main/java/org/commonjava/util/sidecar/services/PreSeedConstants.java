@@ -15,6 +15,7 @@
  */
 package org.commonjava.util.sidecar.services;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 
@@ -32,4 +33,34 @@ public class PreSeedConstants
     public static final String DEFAULT_REPO_PATH = System.getProperty( "user.home" ) + "/preSeedRepo";
 
     public static final String FOLO_BUILD = "folo-build";
+
+    public static final int DEFAULT_ARCHIVE_EXTRACT_WORKERS = 4;
+
+    public static final String ARCHIVE_MODE_EXTRACT = "extract";
+
+    public static final String ARCHIVE_MODE_DIRECT = "direct";
+
+    public static final String MAVEN_METADATA = "maven-metadata.xml";
+
+    public static final String NPM_METADATA = "package.json";
+
+    public static final int DEFAULT_METADATA_CACHE_SIZE = 1000;
+
+    public static final Duration DEFAULT_METADATA_TTL = Duration.ofSeconds( 60 );
+
+    public static final long DEFAULT_PROXY_CACHE_SIZE = 2L * 1024 * 1024 * 1024; // 2G
+
+    public static final int DEFAULT_SPOOL_MEMORY_THRESHOLD = 1024 * 1024; // 1M, larger bodies are spooled to disk
+
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 64;
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+
+    public static final Duration DEFAULT_KEEP_ALIVE = Duration.ofMinutes( 5 );
+
+    public static final int DEFAULT_MAX_FAILURES = 5;
+
+    public static final Duration DEFAULT_EJECTION_TIME = Duration.ofSeconds( 30 );
+
+    public static final Duration DEFAULT_HEALTH_CHECK_INTERVAL = Duration.ofSeconds( 10 );
 }
\ No newline at end of file
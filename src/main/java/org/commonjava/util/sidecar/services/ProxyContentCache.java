@@ -0,0 +1,443 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.util.ChecksumInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.MAVEN_METADATA;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.NPM_METADATA;
+
+/**
+ * Write-through cache of immutable content proxied from Indy. The upstream body is copied below the local repository
+ * while it streams to the client, and published with an atomic rename once it is complete, so a repeat request is
+ * served locally. Metadata, snapshots and anything else that may change upstream is never cached.
+ * <p>
+ * Content is kept per store, <code>&lt;packageType&gt;/&lt;type&gt;/&lt;name&gt;/&lt;path&gt;</code>, since the same
+ * path may be different content in another store, and it is tracked for the store that asks for it. Unlike pre-seeded
+ * content it is only ever found through the cache, which also keeps its checksums to track it with.
+ * <p>
+ * Only cached content counts against the size bound, pre-seeded content is never evicted. The least recently used
+ * files are deleted first.
+ */
+public class ProxyContentCache
+{
+    public static final String PROXY_CACHE_DIR = ".proxy-cache";
+
+    private static final String SNAPSHOT = "-SNAPSHOT";
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Path root;
+
+    private final long maxSize;
+
+    private final String partSuffix;
+
+    private final Map<String, Cached> entries = new LinkedHashMap<>( 16, 0.75f, true );
+
+    private final Set<String> writing = ConcurrentHashMap.newKeySet();
+
+    private long size;
+
+    /**
+     * @param root directory of the cache, hidden below the local repository so it is not indexed as pre-seeded
+     */
+    public ProxyContentCache( Path root, long maxSize, String partSuffix )
+    {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxSize = maxSize;
+        this.partSuffix = partSuffix;
+    }
+
+    public boolean isCacheable( String path )
+    {
+        if ( maxSize <= 0 || path.endsWith( "/" ) || path.startsWith( "." ) || path.contains( SNAPSHOT ) )
+        {
+            return false;
+        }
+
+        // checksums of metadata change with it, and names without an extension are listings or npm package documents
+        String name = path.substring( path.lastIndexOf( '/' ) + 1 );
+        return !name.startsWith( MAVEN_METADATA ) && !name.equals( NPM_METADATA ) && name.indexOf( '.' ) > 0;
+    }
+
+    /**
+     * Copy the content into the cache while it is read. Nothing is published unless the content is read to the end and
+     * has the expected length, and content somebody else is caching already is passed through untouched. The cache file
+     * is only created by the first read, so this does no I/O on the thread the response is built on.
+     *
+     * @param store the store the content is requested from, packageType/type/name
+     * @param length expected length, or -1 when unknown
+     * @param originUrl where upstream got the content from, tracked with each download served from the cache
+     */
+    public InputStream tee( String store, String path, InputStream content, long length, String originUrl )
+    {
+        String key = keyOf( store, path );
+        Path target = root.resolve( key ).normalize();
+        if ( length > maxSize || !target.startsWith( root ) || !writing.add( key ) )
+        {
+            return content;
+        }
+
+        return new CachingInputStream( content, key, normalize( path ), target, length, originUrl );
+    }
+
+    /**
+     * Content cached for the store, which is then evicted last.
+     */
+    public synchronized Optional<Cached> lookup( String store, String path )
+    {
+        return Optional.ofNullable( entries.get( keyOf( store, path ) ) );
+    }
+
+    public synchronized boolean contains( String store, String path )
+    {
+        return entries.containsKey( keyOf( store, path ) );
+    }
+
+    public synchronized long size()
+    {
+        return size;
+    }
+
+    public synchronized int count()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Forget the cached content, the files go with the rest of the local repository.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        size = 0;
+    }
+
+    private void publish( String key, Path part, Cached cached ) throws IOException
+    {
+        Files.move( part, cached.file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING );
+        logger.debug( "Cached: {}, size: {}", key, cached.size );
+
+        List<String> evicted = new ArrayList<>();
+        synchronized ( this )
+        {
+            Cached previous = entries.put( key, cached );
+            size += cached.size - ( previous == null ? 0 : previous.size );
+            Iterator<Map.Entry<String, Cached>> it = entries.entrySet().iterator();
+            while ( size > maxSize && it.hasNext() )
+            {
+                Map.Entry<String, Cached> eldest = it.next();
+                it.remove();
+                size -= eldest.getValue().size;
+                evicted.add( eldest.getKey() );
+            }
+        }
+
+        // a file being sent while it is deleted stays readable until it is closed
+        for ( String path : evicted )
+        {
+            logger.debug( "Evict: {}", path );
+            Files.deleteIfExists( root.resolve( path ) );
+        }
+    }
+
+    private void deleteQuietly( Path part )
+    {
+        try
+        {
+            Files.deleteIfExists( part );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to delete part file: " + part, e );
+        }
+    }
+
+    private static String keyOf( String store, String path )
+    {
+        return normalize( store ) + "/" + normalize( path );
+    }
+
+    private static String normalize( String path )
+    {
+        int i = 0;
+        while ( i < path.length() && path.charAt( i ) == '/' )
+        {
+            i++;
+        }
+        return i == 0 ? path : path.substring( i );
+    }
+
+    /**
+     * Content in the cache, with what a download of it is tracked with.
+     */
+    public static final class Cached
+    {
+        private final File file;
+
+        private final String path;
+
+        private final long size;
+
+        private final String md5;
+
+        private final String sha1;
+
+        private final String sha256;
+
+        private final String originUrl;
+
+        private Cached( File file, String path, long size, String md5, String sha1, String sha256, String originUrl )
+        {
+            this.file = file;
+            this.path = path;
+            this.size = size;
+            this.md5 = md5;
+            this.sha1 = sha1;
+            this.sha256 = sha256;
+            this.originUrl = originUrl;
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        /**
+         * Path in the store, without the store.
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public String getMd5()
+        {
+            return md5;
+        }
+
+        public String getSha1()
+        {
+            return sha1;
+        }
+
+        public String getSha256()
+        {
+            return sha256;
+        }
+
+        public String getOriginUrl()
+        {
+            return originUrl;
+        }
+    }
+
+    private final class CachingInputStream
+                    extends FilterInputStream
+    {
+        private final String key;
+
+        private final String path;
+
+        private final Path target;
+
+        private final long length;
+
+        private final String originUrl;
+
+        private final ChecksumInputStream checksum;
+
+        private boolean caching = true; // until the content is published or given up on
+
+        private Path part;
+
+        private OutputStream out;
+
+        private long written;
+
+        private CachingInputStream( InputStream in, String key, String path, Path target, long length,
+                                    String originUrl )
+        {
+            super( new ChecksumInputStream( in, c -> {
+            } ) );
+            this.key = key;
+            this.path = path;
+            this.target = target;
+            this.length = length;
+            this.originUrl = originUrl;
+            this.checksum = (ChecksumInputStream) this.in;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read( one, 0, 1 ) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if ( caching && out == null )
+            {
+                start();
+            }
+
+            int n;
+            try
+            {
+                n = in.read( b, off, len );
+            }
+            catch ( IOException e )
+            {
+                abort();
+                throw e;
+            }
+
+            if ( n < 0 )
+            {
+                finish();
+            }
+            else if ( n > 0 && out != null )
+            {
+                try
+                {
+                    out.write( b, off, n );
+                    written += n;
+                }
+                catch ( IOException e )
+                {
+                    // the client still gets its content, it is just not cached
+                    logger.warn( "Failed to cache: " + key, e );
+                    abort();
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip( long n ) throws IOException
+        {
+            abort();
+            return super.skip( n );
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            abort();
+            super.close();
+        }
+
+        private void start()
+        {
+            try
+            {
+                Files.createDirectories( target.getParent() );
+                part = Files.createTempFile( target.getParent(), target.getFileName() + ".", partSuffix );
+                out = Files.newOutputStream( part );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to start caching: " + key, e );
+                abort();
+            }
+        }
+
+        private void finish()
+        {
+            if ( out == null )
+            {
+                abort();
+                return;
+            }
+
+            caching = false;
+            try
+            {
+                out.close();
+                out = null;
+                if ( length >= 0 && written != length )
+                {
+                    logger.warn( "Not caching {}, got {} bytes, expected {}", key, written, length );
+                    Files.deleteIfExists( part );
+                    return;
+                }
+                publish( key, part, new Cached( target.toFile(), path, written, checksum.getMd5(), checksum.getSha1(),
+                                                checksum.getSha256(), originUrl ) );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to cache: " + key, e );
+                deleteQuietly( part );
+            }
+            finally
+            {
+                writing.remove( key );
+            }
+        }
+
+        private void abort()
+        {
+            if ( !caching )
+            {
+                return;
+            }
+
+            caching = false;
+            IOUtils.closeQuietly( out, null );
+            out = null;
+            if ( part != null )
+            {
+                deleteQuietly( part );
+            }
+            writing.remove( key );
+        }
+    }
+}
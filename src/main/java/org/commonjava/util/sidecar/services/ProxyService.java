@@ -16,11 +16,16 @@
 package org.commonjava.util.sidecar.services;
 
 import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
 import kotlin.Pair;
-import org.apache.commons.io.IOUtils;
+import okhttp3.Headers;
 import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.exception.CircuitOpenException;
 import org.commonjava.util.sidecar.interceptor.ExceptionHandler;
 import org.commonjava.util.sidecar.model.AccessChannel;
 import org.commonjava.util.sidecar.model.StoreEffect;
@@ -28,9 +33,11 @@ import org.commonjava.util.sidecar.model.StoreKey;
 import org.commonjava.util.sidecar.model.StoreType;
 import org.commonjava.util.sidecar.model.TrackedContentEntry;
 import org.commonjava.util.sidecar.model.TrackingKey;
+import org.commonjava.util.sidecar.util.ChecksumInputStream;
 import org.commonjava.util.sidecar.util.OtelAdapter;
 import org.commonjava.util.sidecar.util.ProxyStreamingOutput;
 import org.commonjava.util.sidecar.util.UrlUtils;
+import org.commonjava.util.sidecar.util.VertxTransport;
 import org.commonjava.util.sidecar.util.WebClientAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,18 +45,23 @@ import org.slf4j.LoggerFactory;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.core.Response;
-import javax.xml.bind.DatatypeConverter;
-import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import static io.vertx.core.http.HttpMethod.HEAD;
+import static io.vertx.core.http.impl.HttpUtils.normalizePath;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_ENCODING;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static javax.ws.rs.core.HttpHeaders.RETRY_AFTER;
 import static javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR;
+import static javax.ws.rs.core.Response.Status.OK;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.CONTENT_REST_BASE_PATH;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.FORBIDDEN_HEADERS;
 import static org.commonjava.util.sidecar.util.SidecarUtils.getBuildConfigId;
 import static org.commonjava.util.sidecar.util.SidecarUtils.normalizePathAnd;
+import static org.commonjava.util.sidecar.util.UpstreamTransport.VERTX;
 
 @ApplicationScoped
 @ExceptionHandler
@@ -69,6 +81,15 @@ public class ProxyService
     @Inject
     ReportService reportService;
 
+    @Inject
+    MetadataCache metadataCache;
+
+    @Inject
+    RequestCoalescer coalescer;
+
+    @Inject
+    ArchiveRetrieveService archiveService;
+
     public Uni<Response> doHead( String packageType, String type, String name, String path, HttpServerRequest request )
                     throws Exception
     {
@@ -86,10 +107,18 @@ public class ProxyService
                     throws Exception
     {
         String contentPath = UrlUtils.buildUrl( CONTENT_REST_BASE_PATH, packageType, type, name, path );
-        return doGet( contentPath, request );
+        return doGet( contentPath, request, true );
     }
 
     public Uni<Response> doGet( String path, HttpServerRequest request ) throws Exception
+    {
+        return doGet( path, request, false );
+    }
+
+    /**
+     * @param cache whether to keep immutable content in the proxy cache, only folo GETs are ever served from it
+     */
+    private Uni<Response> doGet( String path, HttpServerRequest request, boolean cache ) throws Exception
     {
         TrackedContentEntry entry = null;
         if ( getBuildConfigId() != null )
@@ -100,8 +129,65 @@ public class ProxyService
                                              (long) 0, "", "", "" );
         }
         TrackedContentEntry finalEntry = entry;
-        return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
-                        client.get( p, request ).call(), request.method(), finalEntry ) ) );
+        return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) -> {
+            if ( metadataCache.isCacheable( p ) )
+            {
+                return metadataCache.get( metadataCache.keyOf( service, p, request ), p,
+                                          client.get( p, request ),
+                                          metadata -> convertCachedResp( metadata, finalEntry ),
+                                          resp -> convertProxyResp( resp, request.method(), finalEntry, null ) )
+                                    .onFailure()
+                                    .recoverWithItem( this::handleProxyException );
+            }
+            String localPath = cache ? getLocalPath( p ) : null;
+            return wrapAsyncCall( sendGet( client, service, p, request ), request.method(), finalEntry, localPath );
+        } ) );
+    }
+
+    /**
+     * Whether {@link #pipeGet(String, RoutingContext)} can take a GET: it goes to a service with the Vert.x transport,
+     * and is neither tracked nor served from a cache.
+     */
+    public boolean isPipeable( String path, HttpServerRequest request )
+    {
+        String p = normalizePath( path );
+        if ( getBuildConfigId() != null || metadataCache.isCacheable( p ) )
+        {
+            return false;
+        }
+        Optional<ServiceConfig> service = classifier.findService( p, request.method() );
+        return service.isPresent() && VERTX.equals( service.get().transport );
+    }
+
+    /**
+     * Answer an untracked GET like {@link #doGet(String, HttpServerRequest)}, but right on the routing context, with
+     * the upstream body piped to the client rather than copied by a worker through a streaming output.
+     */
+    public void pipeGet( String path, RoutingContext context ) throws Exception
+    {
+        HttpServerRequest request = context.request();
+        Uni<okhttp3.Response> upstream = normalizePathAnd( path, p -> classifier.classifyAnd(
+                        p, request, ( client, service ) -> sendGet( client, service, p, request ) ) );
+        upstream.subscribe().with( resp -> pipeProxyResp( resp, context.vertx(), context.response() ), t -> {
+            Response error = handleProxyException( t );
+            HttpServerResponse response = context.response().setStatusCode( error.getStatus() );
+            error.getStringHeaders().forEach( response::putHeader );
+            response.end( String.valueOf( error.getEntity() ) );
+        } );
+    }
+
+    /**
+     * GET through the coalescer when the request allows it.
+     */
+    private Uni<okhttp3.Response> sendGet( WebClientAdapter client, ServiceConfig service, String path,
+                                           HttpServerRequest request )
+    {
+        if ( coalescer.isCoalescable( request ) )
+        {
+            return coalescer.enqueue( coalescer.keyOf( service, path, request ),
+                                      () -> client.get( path, request ).call().enqueue() );
+        }
+        return client.get( path, request ).call().enqueue();
     }
 
     public Uni<Response> doPost( String path, InputStream is, HttpServerRequest request ) throws Exception
@@ -119,20 +205,55 @@ public class ProxyService
 
     public Uni<Response> doPut( String path, InputStream is, HttpServerRequest request ) throws Exception
     {
+        TrackedContentEntry entry = null;
         if ( getBuildConfigId() != null )
         {
-            byte[] bytes = IOUtils.toByteArray( is );
-            TrackedContentEntry entry =
-                            new TrackedContentEntry( new TrackingKey( getBuildConfigId() ), generateStoreKey( path ),
-                                                     AccessChannel.NATIVE,
-                                                     "http://" + proxyConfiguration.getServices().iterator().next().host
-                                                                     + "/" + path, path, StoreEffect.UPLOAD,
-                                                     (long) bytes.length, "", "", "" );
-            updateMessageDigest( bytes, entry );
-            reportService.appendUpload( entry );
+            entry = new TrackedContentEntry( new TrackingKey( getBuildConfigId() ), generateStoreKey( path ),
+                                             AccessChannel.NATIVE,
+                                             "http://" + proxyConfiguration.getServices().iterator().next().host + "/"
+                                                             + path, path, StoreEffect.UPLOAD, (long) 0, "", "", "" );
+        }
+        return doPut( path, is, request, entry );
+    }
+
+    /**
+     * Forward an upload. When tracking, the body is digested while it is spooled for the upstream request, and the
+     * upload is recorded with those digests only once upstream accepted it.
+     *
+     * @param entry the upload to track, or null to not track it
+     */
+    Uni<Response> doPut( String path, InputStream is, HttpServerRequest request, TrackedContentEntry entry )
+                    throws Exception
+    {
+        if ( entry == null )
+        {
+            return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) ->
+                            wrapAsyncCall( client.put( p, is, request ).call(), request.method() ) ) );
         }
+
+        ChecksumInputStream body = new ChecksumInputStream( is, null );
         return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
-                        client.put( p, is, request ).call(), request.method() ) ) );
+                        client.put( p, body, request ).call().enqueue().onItem().invoke( resp -> {
+                            if ( resp.isSuccessful() )
+                            {
+                                trackUpload( entry, body );
+                            }
+                        } ), request.method(), null, null ) ) );
+    }
+
+    private void trackUpload( TrackedContentEntry entry, ChecksumInputStream body )
+    {
+        // the body is spooled before the request is sent, so it has been read to the end by now
+        if ( !body.isCompleted() )
+        {
+            logger.warn( "Upload body of {} was not read to the end, skip tracking it", entry.getPath() );
+            return;
+        }
+        entry.setSize( body.getSize() );
+        entry.setMd5( body.getMd5() );
+        entry.setSha1( body.getSha1() );
+        entry.setSha256( body.getSha256() );
+        reportService.appendUpload( entry );
     }
 
     public Uni<Response> doDelete( String path, HttpServerRequest request ) throws Exception
@@ -149,17 +270,32 @@ public class ProxyService
     public Uni<Response> wrapAsyncCall( WebClientAdapter.CallAdapter asyncCall, HttpMethod method,
                                         TrackedContentEntry entry )
     {
-        Uni<Response> ret =
-                        asyncCall.enqueue().onItem().transform( ( resp ) -> convertProxyResp( resp, method, entry ) );
+        return wrapAsyncCall( asyncCall.enqueue(), method, entry, null );
+    }
+
+    private Uni<Response> wrapAsyncCall( Uni<okhttp3.Response> upstream, HttpMethod method,
+                                         TrackedContentEntry entry, String localPath )
+    {
+        Uni<Response> ret = upstream.onItem()
+                                    .transform( ( resp ) -> convertProxyResp( resp, method, entry, localPath ) );
         return ret.onFailure().recoverWithItem( this::handleProxyException );
     }
 
     /**
-     * Send status 500 with error message body.
+     * Send status 500 with error message body, or 503 with Retry-After when the circuit breaker rejected the call.
      * @param t error
      */
     Response handleProxyException( Throwable t )
     {
+        if ( t instanceof CircuitOpenException )
+        {
+            logger.debug( "Fail fast: {}", t.getMessage() );
+            long retryAfter = TimeUnit.MILLISECONDS.toSeconds( ( (CircuitOpenException) t ).getRetryAfterMillis() );
+            return Response.status( SERVICE_UNAVAILABLE )
+                           .header( RETRY_AFTER, Math.max( 1, retryAfter ) )
+                           .entity( t.getMessage() )
+                           .build();
+        }
         logger.error( "Proxy error", t );
         return Response.status( INTERNAL_SERVER_ERROR ).entity( t + ". Caused by: " + t.getCause() ).build();
     }
@@ -167,8 +303,10 @@ public class ProxyService
     /**
      * Read status and headers from proxy resp and set them to direct response.
      * @param resp proxy resp
+     * @param localPath store and path the content is cached under, null to not cache it
      */
-    private Response convertProxyResp( okhttp3.Response resp, HttpMethod method, TrackedContentEntry entry )
+    private Response convertProxyResp( okhttp3.Response resp, HttpMethod method, TrackedContentEntry entry,
+                                       String localPath )
     {
         logger.debug( "Proxy resp: {} {}", resp.code(), resp.message() );
         logger.trace( "Raw resp headers:\n{}", resp.headers() );
@@ -180,47 +318,128 @@ public class ProxyService
                 builder.header( header.getFirst(), header.getSecond() );
             }
         } );
-        if ( resp.body() != null && entry != null )
+        InputStream bodyStream = resp.body().byteStream();
+        if ( localPath != null && resp.code() == OK.getStatusCode() && resp.header( CONTENT_ENCODING ) == null )
+        {
+            // packageType/type/name/path
+            String[] parts = localPath.split( "/", 4 );
+            bodyStream = archiveService.cacheLocally( ArchiveRetrieveService.storeOf( parts[0], parts[1], parts[2] ),
+                                                      parts[3], bodyStream, resp.body().contentLength(),
+                                                      getOriginUrl( resp.headers(), "/" + parts[3] ) );
+        }
+        if ( entry != null && resp.isSuccessful() )
         {
-            byte[] bytes = new byte[0];
-            try
+            setOriginUrl( entry, resp.headers() );
+            bodyStream = new ChecksumInputStream( bodyStream, checksum -> {
+                entry.setSize( checksum.getSize() );
+                entry.setMd5( checksum.getMd5() );
+                entry.setSha1( checksum.getSha1() );
+                entry.setSha256( checksum.getSha256() );
+                reportService.appendDownload( entry );
+            } );
+        }
+        builder.entity( new ProxyStreamingOutput( bodyStream, otel ) );
+        return builder.build();
+    }
+
+    /**
+     * Like {@link #convertProxyResp}, for an untracked GET, on the client response itself. A body that fails half way
+     * closes the connection, so the client can't take it for the whole content.
+     */
+    private void pipeProxyResp( okhttp3.Response resp, Vertx vertx, HttpServerResponse response )
+    {
+        logger.debug( "Proxy resp: {} {}", resp.code(), resp.message() );
+        response.setStatusCode( resp.code() ).setStatusMessage( resp.message() );
+        resp.headers().forEach( header -> {
+            if ( isHeaderAllowed( header, HttpMethod.GET ) )
             {
-                bytes = resp.body().bytes();
+                response.headers().add( header.getFirst(), header.getSecond() );
             }
-            catch ( IOException e )
+        } );
+        long length = resp.body() == null ? 0 : resp.body().contentLength();
+        if ( length >= 0 )
+        {
+            response.putHeader( CONTENT_LENGTH, Long.toString( length ) );
+        }
+        else
+        {
+            response.setChunked( true );
+        }
+
+        VertxTransport.sendBody( vertx, resp, response ).onComplete( ar -> {
+            if ( ar.succeeded() )
             {
-                logger.error( "Failed to read bytes from okhttp response", e );
+                response.end();
             }
-            entry.setSize( (long) bytes.length );
-            String[] headers = resp.header( "indy-origin" ).split( ":" );
-            entry.setOriginUrl( "http://" + proxyConfiguration.getServices().iterator().next().host + "/api/content/"
-                                                + headers[0] + "/" + headers[1] + "/" + headers[2] + entry.getPath() );
-            updateMessageDigest( bytes, entry );
+            else
+            {
+                logger.warn( "Failed to send upstream body", ar.cause() );
+                response.close();
+            }
+        } );
+    }
+
+    /**
+     * Build the response for cached metadata, tracking the download like one streamed from upstream.
+     */
+    private Response convertCachedResp( MetadataCache.Metadata metadata, TrackedContentEntry entry )
+    {
+        Response.ResponseBuilder builder = Response.status( OK.getStatusCode(), metadata.getMessage() );
+        metadata.getHeaders().forEach( header -> {
+            if ( isHeaderAllowed( header, HttpMethod.GET ) )
+            {
+                builder.header( header.getFirst(), header.getSecond() );
+            }
+        } );
+        if ( entry != null )
+        {
+            setOriginUrl( entry, metadata.getHeaders() );
+            entry.setSize( (long) metadata.getBody().length );
+            entry.setMd5( metadata.getMd5() );
+            entry.setSha1( metadata.getSha1() );
+            entry.setSha256( metadata.getSha256() );
             reportService.appendDownload( entry );
         }
-        builder.entity( new ProxyStreamingOutput( resp.body().byteStream(), otel ) );
+        builder.entity( metadata.getBody() );
         return builder.build();
     }
 
-    private void updateMessageDigest( byte[] bytes, TrackedContentEntry entry )
+    /**
+     * Store and path proxied content is cached under, packageType/type/name/path. The same path may be different
+     * content in another store, so it is never shared between stores.
+     */
+    private String getLocalPath( String path )
     {
-        MessageDigest message;
-        try
+        String relative = path.startsWith( "/" ) ? path.substring( 1 ) : path;
+        if ( !relative.startsWith( CONTENT_REST_BASE_PATH + "/" ) )
         {
-            message = MessageDigest.getInstance( "MD5" );
-            message.update( bytes );
-            entry.setMd5( DatatypeConverter.printHexBinary( message.digest() ).toLowerCase() );
-            message = MessageDigest.getInstance( "SHA-1" );
-            message.update( bytes );
-            entry.setSha1( DatatypeConverter.printHexBinary( message.digest() ).toLowerCase() );
-            message = MessageDigest.getInstance( "SHA-256" );
-            message.update( bytes );
-            entry.setSha256( DatatypeConverter.printHexBinary( message.digest() ).toLowerCase() );
+            return null;
         }
-        catch ( NoSuchAlgorithmException e )
+        // api/content/{packageType}/{type}/{name}/...
+        String[] parts = relative.split( "/", 6 );
+        return parts.length == 6 && !parts[5].isEmpty() ?
+                        relative.substring( CONTENT_REST_BASE_PATH.length() + 1 ) :
+                        null;
+    }
+
+    private void setOriginUrl( TrackedContentEntry entry, Headers respHeaders )
+    {
+        entry.setOriginUrl( getOriginUrl( respHeaders, entry.getPath() ) );
+    }
+
+    /**
+     * URL of the content in the store of the group that actually served it.
+     */
+    private String getOriginUrl( Headers respHeaders, String path )
+    {
+        String origin = respHeaders.get( "indy-origin" );
+        if ( origin == null )
         {
-            logger.warn( "Bytes hash calculation failed for request" );
+            return "";
         }
+        String[] headers = origin.split( ":" );
+        return "http://" + proxyConfiguration.getServices().iterator().next().host + "/api/content/" + headers[0] + "/"
+                        + headers[1] + "/" + headers[2] + path;
     }
 
     private boolean isHeaderAllowed( Pair<? extends String, ? extends String> header, HttpMethod method )
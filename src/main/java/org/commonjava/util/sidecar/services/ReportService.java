@@ -26,7 +26,6 @@ import org.commonjava.util.sidecar.model.StoreEffect;
 import org.commonjava.util.sidecar.model.TrackedContent;
 import org.commonjava.util.sidecar.model.TrackedContentEntry;
 import org.commonjava.util.sidecar.model.TrackingKey;
-import org.commonjava.util.sidecar.model.dto.HistoricalContentDTO;
 import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,9 +38,8 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.Optional;
 
 import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.FOLO_BUILD;
@@ -54,7 +52,7 @@ public class ReportService
 {
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final HashMap<String, HistoricalEntryDTO> historicalContentMap = new HashMap<>();
+    private final HistoricalContentIndex historicalIndex = new HistoricalContentIndex();
 
     @Inject
     ObjectMapper objectMapper;
@@ -86,6 +84,14 @@ public class ReportService
         this.trackedContent.appendDownload( download );
     }
 
+    /**
+     * Look up the historical download of a path, with or without the leading slash the report uses.
+     */
+    public Optional<HistoricalEntryDTO> getHistoricalEntry( String path )
+    {
+        return historicalIndex.get( path );
+    }
+
     public TrackedContent getTrackedContent()
     {
         return trackedContent;
@@ -95,24 +101,17 @@ public class ReportService
     {
         if ( getBuildConfigId() != null )
         {
-            HistoricalContentDTO content;
             Path filePath = Path.of( path, File.separator, getBuildConfigId() );
             logger.info( "Loading build content history:" + filePath );
             try
             {
-                String json = Files.readString( filePath );
-                content = objectMapper.readValue( json, HistoricalContentDTO.class );
-                if ( content == null )
+                long start = System.currentTimeMillis();
+                int count = historicalIndex.load( objectMapper.getFactory(), filePath );
+                if ( count == 0 )
                 {
                     logger.warn( "Failed to read historical content which is empty." );
                 }
-                else
-                {
-                    for ( HistoricalEntryDTO download : content.getDownloads() )
-                    {
-                        this.historicalContentMap.put( download.getPath(), download );
-                    }
-                }
+                logger.info( "Loaded {} historical downloads in {}ms", count, System.currentTimeMillis() - start );
             }
             catch ( IOException e )
             {
@@ -122,9 +121,14 @@ public class ReportService
     }
 
     @ConsumeEvent( value = FOLO_BUILD )
-    private void logFoloDownload( String path )
+    void logFoloDownload( String path )
     {
-        HistoricalEntryDTO entryDTO = historicalContentMap.get( path );
+        HistoricalEntryDTO entryDTO = getHistoricalEntry( path ).orElse( null );
+        if ( entryDTO == null )
+        {
+            logger.debug( "No historical entry for {}, download is not tracked.", path );
+            return;
+        }
         this.trackedContent.appendDownload(
                         new TrackedContentEntry( new TrackingKey( getBuildConfigId() ), entryDTO.getStoreKey(),
                                                  AccessChannel.NATIVE, entryDTO.getOriginUrl(), entryDTO.getPath(),
@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.http.HttpServerRequest;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Okio;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.util.SharedBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static javax.ws.rs.core.HttpHeaders.ACCEPT;
+import static javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING;
+import static javax.ws.rs.core.HttpHeaders.AUTHORIZATION;
+import static javax.ws.rs.core.HttpHeaders.IF_MATCH;
+import static javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE;
+import static javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_SPOOL_MEMORY_THRESHOLD;
+import static org.commonjava.util.sidecar.util.ConditionalContent.IF_RANGE;
+import static org.commonjava.util.sidecar.util.ConditionalContent.RANGE;
+
+/**
+ * Single-flight for upstream GETs. While a GET is waiting for its upstream response, identical GETs join it instead
+ * of opening their own call, and once the response arrives every one of them gets its own copy with a reader over one
+ * {@link SharedBody}. A GET nobody joined gets the upstream response as it is. Requests asking for part of the content
+ * or carrying validators are never coalesced.
+ */
+@ApplicationScoped
+public class RequestCoalescer
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<String, Pending> inflight = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    public boolean isCoalescable( HttpServerRequest request )
+    {
+        return sidecarConfig.coalesceRequests.orElse( Boolean.TRUE ) && request.getHeader( RANGE ) == null
+                        && request.getHeader( IF_RANGE ) == null && request.getHeader( IF_MATCH ) == null
+                        && request.getHeader( IF_NONE_MATCH ) == null && request.getHeader( IF_MODIFIED_SINCE ) == null;
+    }
+
+    /**
+     * Requests are identical when they go to the same service and path and would get the same representation.
+     */
+    public String keyOf( ServiceConfig service, String path, HttpServerRequest request )
+    {
+        return String.join( "|", service.host + ":" + service.port, path, String.valueOf( request.getHeader( ACCEPT ) ),
+                            String.valueOf( request.getHeader( ACCEPT_ENCODING ) ),
+                            String.valueOf( request.getHeader( AUTHORIZATION ) ) );
+    }
+
+    /**
+     * Send the call, or join an identical one that is already waiting for its response.
+     */
+    public Uni<Response> enqueue( String key, Supplier<Uni<Response>> call )
+    {
+        // joining and leaving the map are atomic per key, so the waiters are all counted once the response is there
+        Pending pending = inflight.compute( key, ( k, existing ) -> {
+            if ( existing == null )
+            {
+                return start( k, call );
+            }
+            coalesced.incrementAndGet();
+            logger.debug( "Join in-flight request: {}", k );
+            existing.waiters++;
+            return existing;
+        } );
+
+        AtomicBoolean served = new AtomicBoolean();
+        return pending.flight.onItem().transformToUni( f -> {
+            Response response = f.newResponse();
+            if ( served.compareAndSet( false, true ) )
+            {
+                f.served();
+            }
+            if ( response == null )
+            {
+                // everybody else is done with the shared body already
+                return call.get();
+            }
+            return Uni.createFrom().item( response );
+        } ).onCancellation().invoke( () -> {
+            // a waiter that goes away before the response must not keep the shared body open
+            if ( served.compareAndSet( false, true ) )
+            {
+                pending.flight.subscribe().with( Flight::served, t -> {
+                } );
+            }
+        } );
+    }
+
+    public long getCoalesced()
+    {
+        return coalesced.get();
+    }
+
+    private Pending start( String key, Supplier<Uni<Response>> call )
+    {
+        Pending pending = new Pending();
+        pending.flight = Uni.createFrom()
+                            .deferred( call::get )
+                            .onTermination()
+                            .invoke( () -> inflight.remove( key, pending ) )
+                            .onItem()
+                            .transform( resp -> new Flight( resp, pending.waiters ) )
+                            .memoize()
+                            .indefinitely();
+        return pending;
+    }
+
+    private static final class Pending
+    {
+        private Uni<Flight> flight;
+
+        // only changed inside ConcurrentHashMap.compute() while it is mapped
+        private int waiters = 1;
+    }
+
+    private static final class Flight
+    {
+        private final Response response;
+
+        private final SharedBody body; // null when there is a single waiter, who gets the response itself
+
+        private final InputStream hold;
+
+        private final AtomicInteger unserved;
+
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        /**
+         * A shared body is held open at its start until every waiter has opened its own reader, so a fast reader does
+         * not have it dropped or closed under the others.
+         */
+        private Flight( Response response, int waiters )
+        {
+            this.response = response;
+            this.unserved = new AtomicInteger( waiters );
+            if ( waiters > 1 )
+            {
+                this.body = new SharedBody( response.body().byteStream(), DEFAULT_SPOOL_MEMORY_THRESHOLD );
+                this.hold = body.open();
+            }
+            else
+            {
+                this.body = null;
+                this.hold = null;
+            }
+        }
+
+        private void served()
+        {
+            if ( unserved.decrementAndGet() > 0 )
+            {
+                return;
+            }
+            if ( body != null )
+            {
+                IOUtils.closeQuietly( hold, null );
+            }
+            else if ( taken.compareAndSet( false, true ) )
+            {
+                // the waiter went away before the response arrived
+                response.close();
+            }
+        }
+
+        private Response newResponse()
+        {
+            if ( body == null )
+            {
+                return taken.compareAndSet( false, true ) ? response : null;
+            }
+
+            InputStream in = body.open();
+            if ( in == null )
+            {
+                return null;
+            }
+
+            ResponseBody upstream = response.body();
+            return response.newBuilder()
+                           .body( ResponseBody.create( Okio.buffer( Okio.source( in ) ), upstream.contentType(),
+                                                       upstream.contentLength() ) )
+                           .build();
+        }
+    }
+}
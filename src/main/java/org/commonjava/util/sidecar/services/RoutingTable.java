@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.vertx.core.http.HttpMethod;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds the service for a request, like matching the path against each path-pattern in turn but without compiling a
+ * regex per service per request. Patterns are compiled once, the literal start of each pattern goes into a prefix trie
+ * so only the services the path can match at all are tried, and the methods of a service are a bit mask. The first
+ * matching service in config order wins, as before.
+ * <p>
+ * Decisions are kept in a fixed size cache, one entry per slot, so repeated requests for the same path skip even
+ * that. The table is immutable and built again on config change.
+ */
+public class RoutingTable
+{
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final List<String> METHODS =
+                    Arrays.asList( "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT" );
+
+    private static final String REGEX_META = "[](){}.*+?^$|";
+
+    private static final String QUANTIFIERS = "*+?{";
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Route[] routes;
+
+    private final Node root = new Node();
+
+    private final AtomicReferenceArray<Decision> cache;
+
+    private final int cacheMask;
+
+    public RoutingTable( Collection<ServiceConfig> services )
+    {
+        this( services, DEFAULT_CACHE_SIZE );
+    }
+
+    /**
+     * @param cacheSize rounded up to a power of two
+     */
+    public RoutingTable( Collection<ServiceConfig> services, int cacheSize )
+    {
+        List<Route> compiled = new ArrayList<>();
+        for ( ServiceConfig sv : services )
+        {
+            try
+            {
+                Route route = new Route( compiled.size(), sv );
+                compiled.add( route );
+                root.insert( literalPrefix( sv.pathPattern ), route.index );
+            }
+            catch ( PatternSyntaxException e )
+            {
+                logger.error( "Skip service with invalid path-pattern: " + sv, e );
+            }
+        }
+        this.routes = compiled.toArray( new Route[0] );
+
+        int size = Integer.highestOneBit( Math.max( 1, cacheSize - 1 ) ) << 1;
+        this.cache = new AtomicReferenceArray<>( size );
+        this.cacheMask = size - 1;
+    }
+
+    /**
+     * @return the service for the request, or null if there is none
+     */
+    public ServiceConfig route( String path, HttpMethod method )
+    {
+        String name = method.name();
+        int slot = ( path.hashCode() * 31 + name.hashCode() ) & cacheMask;
+        Decision decision = cache.get( slot );
+        if ( decision != null && decision.path.equals( path ) && decision.method.equals( name ) )
+        {
+            return decision.service;
+        }
+
+        ServiceConfig service = lookup( path, name );
+        cache.set( slot, new Decision( path, name, service ) );
+        return service;
+    }
+
+    public int size()
+    {
+        return routes.length;
+    }
+
+    private ServiceConfig lookup( String path, String method )
+    {
+        // services whose literal prefix the path starts with, in config order
+        BitSet candidates = new BitSet( routes.length );
+        Node node = root;
+        candidates.or( node.routes );
+        for ( int i = 0; i < path.length(); i++ )
+        {
+            node = node.children.get( path.charAt( i ) );
+            if ( node == null )
+            {
+                break;
+            }
+            candidates.or( node.routes );
+        }
+
+        int bit = methodBit( method );
+        for ( int i = candidates.nextSetBit( 0 ); i >= 0; i = candidates.nextSetBit( i + 1 ) )
+        {
+            Route route = routes[i];
+            if ( route.accepts( method, bit ) && route.pattern.matcher( path ).matches() )
+            {
+                return route.service;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The characters every match of the pattern starts with. It may be shorter than it could be, but never longer.
+     */
+    static String literalPrefix( String regex )
+    {
+        if ( regex.indexOf( '|' ) >= 0 )
+        {
+            // alternatives may start differently
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        int len = regex.length();
+        int i = regex.startsWith( "^" ) ? 1 : 0;
+        while ( i < len )
+        {
+            char c = regex.charAt( i );
+            char literal;
+            int next;
+            if ( c == '\\' )
+            {
+                // an escaped letter or digit is a class, a reference or quoting, anything else stands for itself
+                if ( i + 1 >= len || Character.isLetterOrDigit( regex.charAt( i + 1 ) ) )
+                {
+                    break;
+                }
+                literal = regex.charAt( i + 1 );
+                next = i + 2;
+            }
+            else if ( REGEX_META.indexOf( c ) >= 0 )
+            {
+                break;
+            }
+            else
+            {
+                literal = c;
+                next = i + 1;
+            }
+
+            // a quantified char may be missing
+            if ( next < len && QUANTIFIERS.indexOf( regex.charAt( next ) ) >= 0 )
+            {
+                break;
+            }
+            sb.append( literal );
+            i = next;
+        }
+        return sb.toString();
+    }
+
+    private static int methodBit( String method )
+    {
+        int i = METHODS.indexOf( method );
+        return i < 0 ? 0 : 1 << i;
+    }
+
+    private static final class Route
+    {
+        private final int index;
+
+        private final ServiceConfig service;
+
+        private final Pattern pattern;
+
+        private final boolean anyMethod;
+
+        private final int methodMask;
+
+        private final Set<String> otherMethods;
+
+        private Route( int index, ServiceConfig service )
+        {
+            this.index = index;
+            this.service = service;
+            this.pattern = Pattern.compile( service.pathPattern );
+            this.anyMethod = service.methods == null;
+
+            int mask = 0;
+            Set<String> others = new HashSet<>();
+            if ( service.methods != null )
+            {
+                for ( String m : service.methods.toUpperCase().split( "[^A-Z]+" ) )
+                {
+                    int bit = methodBit( m );
+                    if ( bit != 0 )
+                    {
+                        mask |= bit;
+                    }
+                    else if ( !m.isEmpty() )
+                    {
+                        others.add( m );
+                    }
+                }
+            }
+            this.methodMask = mask;
+            this.otherMethods = others.isEmpty() ? Collections.emptySet() : others;
+        }
+
+        private boolean accepts( String method, int bit )
+        {
+            if ( anyMethod )
+            {
+                return true;
+            }
+            return bit != 0 ? ( methodMask & bit ) != 0 : otherMethods.contains( method );
+        }
+    }
+
+    private static final class Node
+    {
+        private final Map<Character, Node> children = new HashMap<>();
+
+        private final BitSet routes = new BitSet();
+
+        private void insert( String prefix, int route )
+        {
+            Node node = this;
+            for ( int i = 0; i < prefix.length(); i++ )
+            {
+                node = node.children.computeIfAbsent( prefix.charAt( i ), c -> new Node() );
+            }
+            node.routes.set( route );
+        }
+    }
+
+    private static final class Decision
+    {
+        private final String path;
+
+        private final String method;
+
+        private final ServiceConfig service;
+
+        private Decision( String path, String method, ServiceConfig service )
+        {
+            this.path = path;
+            this.method = method;
+            this.service = service;
+        }
+    }
+}
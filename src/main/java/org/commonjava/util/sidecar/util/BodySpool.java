@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only byte store that keeps its content in memory up to a threshold and moves it to a temp file past that,
+ * so small bodies never touch the disk and large ones never fill the heap. Content can be read back from any position,
+ * any number of times, also while it is still being appended.
+ */
+public class BodySpool
+                implements Closeable
+{
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private final int memoryThreshold;
+
+    private byte[] memory;
+
+    private FileChannel file;
+
+    private long length;
+
+    private boolean closed;
+
+    public BodySpool( int memoryThreshold )
+    {
+        this.memoryThreshold = memoryThreshold;
+        this.memory = new byte[Math.min( INITIAL_CAPACITY, Math.max( memoryThreshold, 0 ) )];
+    }
+
+    public synchronized void write( byte[] b, int off, int len ) throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "Spool is closed" );
+        }
+
+        if ( file == null && length + len > memoryThreshold )
+        {
+            Path path = Files.createTempFile( "spool-", ".bin" );
+            file = FileChannel.open( path, READ, WRITE, DELETE_ON_CLOSE );
+            writeFully( ByteBuffer.wrap( memory, 0, (int) length ), 0 );
+            memory = null;
+        }
+
+        if ( file != null )
+        {
+            writeFully( ByteBuffer.wrap( b, off, len ), length );
+        }
+        else
+        {
+            if ( length + len > memory.length )
+            {
+                memory = Arrays.copyOf( memory, (int) Math.min( memoryThreshold,
+                                                                Math.max( length + len, memory.length * 2L ) ) );
+            }
+            System.arraycopy( b, off, memory, (int) length, len );
+        }
+        length += len;
+    }
+
+    /**
+     * Copy content starting at the given position.
+     *
+     * @return number of bytes copied, 0 when the position is at the current end
+     */
+    public synchronized int read( long pos, byte[] b, int off, int len ) throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "Spool is closed" );
+        }
+
+        int n = (int) Math.min( len, length - pos );
+        if ( n <= 0 )
+        {
+            return 0;
+        }
+
+        if ( file == null )
+        {
+            System.arraycopy( memory, (int) pos, b, off, n );
+            return n;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap( b, off, n );
+        while ( buf.hasRemaining() )
+        {
+            if ( file.read( buf, pos + buf.position() - off ) < 0 )
+            {
+                break;
+            }
+        }
+        return buf.position() - off;
+    }
+
+    public synchronized long length()
+    {
+        return length;
+    }
+
+    public synchronized boolean isInMemory()
+    {
+        return file == null;
+    }
+
+    /**
+     * Stream over the content, including whatever is appended before the stream reaches the end.
+     */
+    public InputStream openStream()
+    {
+        return new InputStream()
+        {
+            private long pos;
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] one = new byte[1];
+                return read( one, 0, 1 ) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len ) throws IOException
+            {
+                if ( len == 0 )
+                {
+                    return 0;
+                }
+                int n = BodySpool.this.read( pos, b, off, len );
+                if ( n == 0 )
+                {
+                    return -1;
+                }
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public int available()
+            {
+                return (int) Math.min( Integer.MAX_VALUE, length() - pos );
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        closed = true;
+        memory = null;
+        if ( file != null )
+        {
+            file.close();
+        }
+    }
+
+    private void writeFully( ByteBuffer buf, long pos ) throws IOException
+    {
+        while ( buf.hasRemaining() )
+        {
+            pos += file.write( buf, pos );
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Consumer;
+
+/**
+ * Computes size, MD5, SHA-1 and SHA-256 of the wrapped stream in a single pass while the bytes are read by the
+ * consumer. The completion callback fires once, when the end of the stream is reached. A stream closed before its end
+ * never completes, because the checksums of a partial transfer are meaningless.
+ */
+public class ChecksumInputStream
+                extends FilterInputStream
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final MessageDigest md5;
+
+    private final MessageDigest sha1;
+
+    private final MessageDigest sha256;
+
+    private final Consumer<ChecksumInputStream> onComplete;
+
+    private long size;
+
+    private boolean completed;
+
+    private String md5Hex;
+
+    private String sha1Hex;
+
+    private String sha256Hex;
+
+    public ChecksumInputStream( InputStream in, Consumer<ChecksumInputStream> onComplete )
+    {
+        super( in );
+        this.onComplete = onComplete;
+        try
+        {
+            this.md5 = MessageDigest.getInstance( "MD5" );
+            this.sha1 = MessageDigest.getInstance( "SHA-1" );
+            this.sha256 = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "Checksum algorithm not available", e );
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+        if ( b < 0 )
+        {
+            complete();
+        }
+        else
+        {
+            md5.update( (byte) b );
+            sha1.update( (byte) b );
+            sha256.update( (byte) b );
+            size++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        int read = super.read( b, off, len );
+        if ( read < 0 )
+        {
+            complete();
+        }
+        else if ( read > 0 )
+        {
+            md5.update( b, off, read );
+            sha1.update( b, off, read );
+            sha256.update( b, off, read );
+            size += read;
+        }
+        return read;
+    }
+
+    /**
+     * Skipped bytes still have to be digested, so read through them instead of delegating.
+     */
+    @Override
+    public long skip( long n ) throws IOException
+    {
+        byte[] buf = new byte[(int) Math.min( 8192, Math.max( n, 0 ) )];
+        long remaining = n;
+        while ( remaining > 0 )
+        {
+            int read = read( buf, 0, (int) Math.min( buf.length, remaining ) );
+            if ( read < 0 )
+            {
+                break;
+            }
+            remaining -= read;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark( int readlimit )
+    {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException
+    {
+        throw new IOException( "mark/reset not supported" );
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if ( !completed )
+        {
+            logger.debug( "Stream closed after {} bytes before reaching the end, skip checksum completion", size );
+        }
+        super.close();
+    }
+
+    private void complete()
+    {
+        if ( completed )
+        {
+            return;
+        }
+        completed = true;
+        md5Hex = Hex.encodeHexString( md5.digest() );
+        sha1Hex = Hex.encodeHexString( sha1.digest() );
+        sha256Hex = Hex.encodeHexString( sha256.digest() );
+        if ( onComplete != null )
+        {
+            onComplete.accept( this );
+        }
+    }
+
+    public boolean isCompleted()
+    {
+        return completed;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public String getMd5()
+    {
+        return md5Hex;
+    }
+
+    public String getSha1()
+    {
+        return sha1Hex;
+    }
+
+    public String getSha256()
+    {
+        return sha256Hex;
+    }
+}
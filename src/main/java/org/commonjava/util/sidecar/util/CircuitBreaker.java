@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.commonjava.util.sidecar.util.SidecarUtils.parseTimeout;
+
+/**
+ * Circuit breaker for the calls to one service. While closed it keeps the outcome of the last calls in a window, and
+ * opens once enough of them failed or were slow. While open every call is rejected right away, after the open duration
+ * a few trial calls are let through (half-open), which close the breaker if all of them succeed in time and open it
+ * again otherwise.
+ * <p>
+ * Calls get a permit for the state they were allowed in, so outcomes of calls still running from an earlier state do
+ * not count towards the current one.
+ */
+public class CircuitBreaker
+{
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final long REJECTED = -1;
+
+    private static final byte FAILED = 1;
+
+    private static final byte SLOW = 2;
+
+    private static final int DEFAULT_FAILURE_RATE = 50;
+
+    private static final int DEFAULT_SLOW_CALL_RATE = 100;
+
+    private static final long DEFAULT_SLOW_CALL_MILLIS = Duration.ofMinutes( 1 ).toMillis();
+
+    private static final int DEFAULT_WINDOW = 20;
+
+    private static final int DEFAULT_MINIMUM_CALLS = 10;
+
+    private static final long DEFAULT_OPEN_MILLIS = Duration.ofSeconds( 30 ).toMillis();
+
+    private static final int DEFAULT_HALF_OPEN_CALLS = 3;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final String name;
+
+    private boolean enabled;
+
+    private int failureRate;
+
+    private int slowCallRate;
+
+    private long slowCallNanos;
+
+    private int minimumCalls;
+
+    private long openMillis;
+
+    private int halfOpenCalls;
+
+    private State state = State.CLOSED;
+
+    private long generation;
+
+    private byte[] window; // outcome per call, see FAILED and SLOW
+
+    private int next;
+
+    private int recorded;
+
+    private int failures;
+
+    private int slowCalls;
+
+    private long openUntil;
+
+    private int trials;
+
+    private int trialSuccesses;
+
+    public CircuitBreaker( String name, ProxyConfiguration.Breaker config )
+    {
+        this.name = name;
+        configure( config );
+    }
+
+    /**
+     * Apply new settings. The state is kept, only a changed window size starts the window over.
+     */
+    public synchronized void configure( ProxyConfiguration.Breaker config )
+    {
+        ProxyConfiguration.Breaker c = config != null ? config : new ProxyConfiguration.Breaker();
+        enabled = c.enabled == null || c.enabled;
+        failureRate = percent( c.failureRate, DEFAULT_FAILURE_RATE );
+        slowCallRate = percent( c.slowCallRate, DEFAULT_SLOW_CALL_RATE );
+        slowCallNanos = TimeUnit.MILLISECONDS.toNanos( millis( c.slowCallDuration, DEFAULT_SLOW_CALL_MILLIS ) );
+        minimumCalls = positive( c.minimumCalls, DEFAULT_MINIMUM_CALLS );
+        openMillis = millis( c.openDuration, DEFAULT_OPEN_MILLIS );
+        halfOpenCalls = positive( c.halfOpenCalls, DEFAULT_HALF_OPEN_CALLS );
+
+        int size = positive( c.window, DEFAULT_WINDOW );
+        if ( window == null || window.length != size )
+        {
+            window = new byte[size];
+            resetWindow();
+        }
+        minimumCalls = Math.min( minimumCalls, size );
+        if ( !enabled && state != State.CLOSED )
+        {
+            transition( State.CLOSED );
+        }
+    }
+
+    /**
+     * @return the permit to report the outcome with, or {@link #REJECTED}
+     */
+    public synchronized long acquire()
+    {
+        if ( !enabled )
+        {
+            return generation;
+        }
+        switch ( state )
+        {
+            case OPEN:
+                if ( System.currentTimeMillis() < openUntil )
+                {
+                    return REJECTED;
+                }
+                transition( State.HALF_OPEN );
+                // fall through, this is the first trial
+            case HALF_OPEN:
+                if ( trials >= halfOpenCalls )
+                {
+                    return REJECTED;
+                }
+                trials++;
+                return generation;
+            default:
+                return generation;
+        }
+    }
+
+    /**
+     * Record the outcome of a call.
+     *
+     * @param elapsedNanos time until the response, or the failure
+     * @param failed whether there was no response or a server error
+     */
+    public synchronized void onResult( long permit, long elapsedNanos, boolean failed )
+    {
+        if ( permit != generation || !enabled )
+        {
+            return;
+        }
+
+        boolean slow = elapsedNanos >= slowCallNanos;
+        if ( state == State.HALF_OPEN )
+        {
+            if ( failed || slow )
+            {
+                logger.warn( "Circuit breaker of {} opens again, trial call {}", name, failed ? "failed" : "was slow" );
+                transition( State.OPEN );
+            }
+            else if ( ++trialSuccesses >= halfOpenCalls )
+            {
+                logger.info( "Circuit breaker of {} closes, {} trial calls succeeded", name, trialSuccesses );
+                transition( State.CLOSED );
+            }
+            return;
+        }
+
+        if ( state != State.CLOSED )
+        {
+            return;
+        }
+
+        byte outcome = (byte) ( ( failed ? FAILED : 0 ) | ( slow ? SLOW : 0 ) );
+        if ( recorded == window.length )
+        {
+            byte dropped = window[next];
+            failures -= dropped & FAILED;
+            slowCalls -= ( dropped & SLOW ) >> 1;
+        }
+        else
+        {
+            recorded++;
+        }
+        window[next] = outcome;
+        next = ( next + 1 ) % window.length;
+        failures += outcome & FAILED;
+        slowCalls += ( outcome & SLOW ) >> 1;
+
+        if ( recorded >= minimumCalls && ( failures * 100 >= failureRate * recorded
+                        || slowCalls * 100 >= slowCallRate * recorded ) )
+        {
+            logger.warn( "Circuit breaker of {} opens for {}ms, {} of {} calls failed, {} were slow", name, openMillis,
+                         failures, recorded, slowCalls );
+            transition( State.OPEN );
+        }
+    }
+
+    /**
+     * A permitted call ended without an outcome, e.g. it was cancelled. It gives its trial back.
+     */
+    public synchronized void onCancel( long permit )
+    {
+        if ( permit == generation && state == State.HALF_OPEN && trials > 0 )
+        {
+            trials--;
+        }
+    }
+
+    public synchronized State getState()
+    {
+        if ( state == State.OPEN && System.currentTimeMillis() >= openUntil )
+        {
+            // it is only switched on the next call, but that one will be let through
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Time until trial calls are let through again, 0 unless open.
+     */
+    public synchronized long getRetryAfterMillis()
+    {
+        return state == State.OPEN ? Math.max( 0, openUntil - System.currentTimeMillis() ) : 0;
+    }
+
+    private void transition( State to )
+    {
+        state = to;
+        generation++;
+        trials = 0;
+        trialSuccesses = 0;
+        if ( to == State.OPEN )
+        {
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+        else if ( to == State.CLOSED )
+        {
+            resetWindow();
+        }
+    }
+
+    private void resetWindow()
+    {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    private long millis( String value, long defaultValue )
+    {
+        if ( isNotBlank( value ) )
+        {
+            try
+            {
+                return parseTimeout( value );
+            }
+            catch ( Exception e )
+            {
+                logger.warn( "Invalid circuit breaker duration '{}', use {}ms", value, defaultValue );
+            }
+        }
+        return defaultValue;
+    }
+
+    private static int percent( Integer value, int defaultValue )
+    {
+        return value != null && value > 0 && value <= 100 ? value : defaultValue;
+    }
+
+    private static int positive( Integer value, int defaultValue )
+    {
+        return value != null && value > 0 ? value : defaultValue;
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.vertx.core.http.HttpServerRequest;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+import static javax.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static javax.ws.rs.core.HttpHeaders.ETAG;
+import static javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE;
+import static javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH;
+import static javax.ws.rs.core.HttpHeaders.LAST_MODIFIED;
+import static javax.ws.rs.core.Response.Status.NOT_MODIFIED;
+import static javax.ws.rs.core.Response.Status.OK;
+import static javax.ws.rs.core.Response.Status.PARTIAL_CONTENT;
+import static javax.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+
+/**
+ * Answers the conditional (If-None-Match, If-Modified-Since) and range (Range, If-Range) headers of a GET for content
+ * of a known length, modification time and entity tag. Only a single byte range is served, a request for several
+ * ranges gets the whole content, which RFC 7233 allows.
+ */
+public class ConditionalContent
+{
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+
+    public static final String CONTENT_RANGE = "Content-Range";
+
+    public static final String IF_RANGE = "If-Range";
+
+    public static final String RANGE = "Range";
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private static final DateTimeFormatter HTTP_DATE =
+                    DateTimeFormatter.ofPattern( "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US )
+                                     .withZone( ZoneOffset.UTC );
+
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    private int status = OK.getStatusCode();
+
+    private long offset;
+
+    private long length;
+
+    private ConditionalContent()
+    {
+    }
+
+    /**
+     * Strong entity tag of a historical download, the sha256 or else the sha1 the report recorded for it.
+     */
+    public static String etagOf( Optional<HistoricalEntryDTO> entry )
+    {
+        return etagOf( entry.map( e -> e.getSha256() != null ? e.getSha256() : e.getSha1() ).orElse( null ) );
+    }
+
+    /**
+     * Strong entity tag of content with the given hex digest, or null when the digest is unknown.
+     */
+    public static String etagOf( String digest )
+    {
+        return digest == null ? null : "\"" + digest.toLowerCase() + "\"";
+    }
+
+    /**
+     * @param total length of the whole content
+     * @param lastModified modification time in millis, or a negative value when unknown
+     * @param etag strong entity tag including the quotes, or null when unknown
+     */
+    public static ConditionalContent evaluate( HttpServerRequest request, long total, long lastModified, String etag )
+    {
+        ConditionalContent content = new ConditionalContent();
+        content.length = total;
+
+        // HTTP dates have a resolution of seconds
+        long modifiedSeconds = lastModified < 0 ? -1 : lastModified / 1000;
+        if ( etag != null )
+        {
+            content.headers.put( ETAG, etag );
+        }
+        if ( modifiedSeconds >= 0 )
+        {
+            content.headers.put( LAST_MODIFIED, HTTP_DATE.format( Instant.ofEpochSecond( modifiedSeconds ) ) );
+        }
+        content.headers.put( ACCEPT_RANGES, "bytes" );
+
+        if ( isNotModified( request, modifiedSeconds, etag ) )
+        {
+            content.status = NOT_MODIFIED.getStatusCode();
+            content.length = 0;
+            return content;
+        }
+
+        String range = request.getHeader( RANGE );
+        if ( range != null && isRangeValid( request.getHeader( IF_RANGE ), modifiedSeconds, etag ) )
+        {
+            content.applyRange( range.trim(), total );
+        }
+
+        if ( content.status != REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode() )
+        {
+            content.headers.put( CONTENT_LENGTH, Long.toString( content.length ) );
+        }
+        return content;
+    }
+
+    public int getStatus()
+    {
+        return status;
+    }
+
+    public boolean hasBody()
+    {
+        return status == OK.getStatusCode() || status == PARTIAL_CONTENT.getStatusCode();
+    }
+
+    /**
+     * Position of the first byte to send.
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Number of bytes to send.
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Narrow a stream over the whole content down to the bytes to send. Skipping relies on the stream's own skip, so
+     * a file stream seeks instead of reading.
+     */
+    public InputStream slice( InputStream in ) throws IOException
+    {
+        long remaining = offset;
+        while ( remaining > 0 )
+        {
+            long skipped = in.skip( remaining );
+            if ( skipped <= 0 )
+            {
+                if ( in.read() < 0 )
+                {
+                    throw new EOFException( "Content ended before offset " + offset );
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return new BoundedInputStream( in, length );
+    }
+
+    /**
+     * Response headers in the order they should be set.
+     */
+    public Map<String, String> getHeaders()
+    {
+        return headers;
+    }
+
+    private static boolean isNotModified( HttpServerRequest request, long modifiedSeconds, String etag )
+    {
+        String ifNoneMatch = request.getHeader( IF_NONE_MATCH );
+        if ( ifNoneMatch != null )
+        {
+            // If-Modified-Since is ignored when If-None-Match is present
+            return matches( ifNoneMatch, etag, true );
+        }
+
+        String ifModifiedSince = request.getHeader( IF_MODIFIED_SINCE );
+        if ( ifModifiedSince != null && modifiedSeconds >= 0 )
+        {
+            long since = parseDate( ifModifiedSince );
+            return since >= 0 && modifiedSeconds <= since;
+        }
+        return false;
+    }
+
+    private static boolean isRangeValid( String ifRange, long modifiedSeconds, String etag )
+    {
+        if ( ifRange == null )
+        {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if ( ifRange.startsWith( "\"" ) || ifRange.startsWith( "W/" ) )
+        {
+            // If-Range requires a strong comparison
+            return etag != null && matches( ifRange, etag, false );
+        }
+        return modifiedSeconds >= 0 && parseDate( ifRange ) == modifiedSeconds;
+    }
+
+    private static boolean matches( String header, String etag, boolean weak )
+    {
+        for ( String tag : header.split( "," ) )
+        {
+            tag = tag.trim();
+            if ( tag.equals( "*" ) )
+            {
+                return true;
+            }
+            if ( tag.startsWith( "W/" ) )
+            {
+                if ( !weak )
+                {
+                    continue;
+                }
+                tag = tag.substring( 2 );
+            }
+            if ( tag.equals( etag ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void applyRange( String range, long total )
+    {
+        if ( !range.startsWith( BYTES_UNIT ) || range.indexOf( ',' ) >= 0 )
+        {
+            return;
+        }
+
+        String spec = range.substring( BYTES_UNIT.length() ).trim();
+        int dash = spec.indexOf( '-' );
+        if ( dash < 0 )
+        {
+            return;
+        }
+
+        long first;
+        long last;
+        try
+        {
+            String from = spec.substring( 0, dash ).trim();
+            String to = spec.substring( dash + 1 ).trim();
+            if ( from.isEmpty() )
+            {
+                // suffix range, the last n bytes
+                long suffix = Long.parseLong( to );
+                first = suffix > 0 ? Math.max( 0, total - suffix ) : total;
+                last = total - 1;
+            }
+            else
+            {
+                first = Long.parseLong( from );
+                last = total - 1;
+                if ( !to.isEmpty() )
+                {
+                    long end = Long.parseLong( to );
+                    if ( end < first )
+                    {
+                        // syntactically invalid, the header is ignored
+                        return;
+                    }
+                    last = Math.min( end, last );
+                }
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            return;
+        }
+
+        if ( first < 0 )
+        {
+            return;
+        }
+        if ( first >= total )
+        {
+            status = REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode();
+            length = 0;
+            headers.put( CONTENT_RANGE, "bytes */" + total );
+            return;
+        }
+
+        status = PARTIAL_CONTENT.getStatusCode();
+        offset = first;
+        length = last - first + 1;
+        headers.put( CONTENT_RANGE, "bytes " + first + "-" + last + "/" + total );
+    }
+
+    private static long parseDate( String date )
+    {
+        try
+        {
+            return ZonedDateTime.parse( date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME ).toEpochSecond();
+        }
+        catch ( DateTimeParseException e )
+        {
+            return -1;
+        }
+    }
+}
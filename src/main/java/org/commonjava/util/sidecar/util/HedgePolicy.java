@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.commonjava.util.sidecar.util.SidecarUtils.parseTimeout;
+
+/**
+ * When to send a backup for a GET or HEAD that has not been answered yet: after a fixed delay, or after the 95th
+ * percentile of the recent response times of the service. A budget keeps the extra calls to a percentage of all of
+ * them, so hedging cannot double the load on an upstream that is slow for everybody.
+ */
+public class HedgePolicy
+{
+    public static final String P95 = "p95";
+
+    private static final int DEFAULT_BUDGET = 5;
+
+    private static final int SAMPLES = 256;
+
+    // no p95 delay until this many responses are in
+    private static final int MINIMUM_SAMPLES = 32;
+
+    private static final int RECOMPUTE_INTERVAL = 32;
+
+    // the budget is kept in hundredths of a hedge, so a call adds its percentage
+    private static final int HEDGE_COST = 100;
+
+    // hedges that can be saved up while calls are fast
+    private static final int MAX_TOKENS = 10 * HEDGE_COST;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final long[] samples = new long[SAMPLES];
+
+    private volatile boolean enabled;
+
+    private volatile long fixedDelay = -1;
+
+    private int budget;
+
+    private long count;
+
+    private int next;
+
+    private volatile long p95 = -1;
+
+    private int tokens;
+
+    private long hedged;
+
+    public synchronized void configure( ProxyConfiguration.Hedge config )
+    {
+        enabled = config != null && config.enabled;
+        if ( !enabled )
+        {
+            return;
+        }
+
+        fixedDelay = -1;
+        if ( !isBlank( config.delay ) && !P95.equalsIgnoreCase( config.delay ) )
+        {
+            try
+            {
+                fixedDelay = parseTimeout( config.delay );
+            }
+            catch ( Exception e )
+            {
+                logger.warn( "Invalid hedge delay '{}', use {}", config.delay, P95 );
+            }
+        }
+        budget = config.budget != null && config.budget >= 0 ? Math.min( config.budget, 100 ) : DEFAULT_BUDGET;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @return how long to wait for the response before hedging, or -1 to not hedge (yet)
+     */
+    public long getDelayMillis()
+    {
+        return fixedDelay >= 0 ? fixedDelay : p95;
+    }
+
+    /**
+     * Count a call that may be hedged, which adds its share to the budget.
+     */
+    public synchronized void onCall()
+    {
+        tokens = Math.min( MAX_TOKENS, tokens + budget );
+    }
+
+    /**
+     * @return whether the budget allows another hedge, which is then taken from it
+     */
+    public synchronized boolean tryHedge()
+    {
+        if ( tokens < HEDGE_COST )
+        {
+            return false;
+        }
+        tokens -= HEDGE_COST;
+        hedged++;
+        return true;
+    }
+
+    public synchronized long getHedged()
+    {
+        return hedged;
+    }
+
+    /**
+     * Record the time a call took to get its response.
+     */
+    public synchronized void record( long millis )
+    {
+        samples[next] = millis;
+        next = ( next + 1 ) % SAMPLES;
+        count++;
+        if ( count >= MINIMUM_SAMPLES && count % RECOMPUTE_INTERVAL == 0 )
+        {
+            int n = (int) Math.min( count, SAMPLES );
+            long[] sorted = Arrays.copyOf( samples, n );
+            Arrays.sort( sorted );
+            p95 = sorted[(int) Math.ceil( n * 0.95 ) - 1];
+        }
+    }
+}
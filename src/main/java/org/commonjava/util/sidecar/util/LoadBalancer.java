@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the calls of one service over its endpoints by outstanding calls, either comparing two endpoints picked at
+ * random (power of two choices) or scanning all of them for the least loaded one. A call is outstanding until its
+ * response headers arrive.
+ * <p>
+ * An endpoint is ejected for a while after a number of consecutive failures, and while its active health check
+ * fails. If every endpoint is out, they are all used anyway, a call that may fail beats no call at all.
+ */
+public class LoadBalancer
+{
+    public static final String P2C = "p2c";
+
+    public static final String LEAST_REQUESTS = "least-requests";
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final List<Endpoint> endpoints;
+
+    private final boolean p2c;
+
+    private final int maxFailures;
+
+    private final long ejectionMillis;
+
+    public LoadBalancer( List<Endpoint> endpoints, String strategy, int maxFailures, long ejectionMillis )
+    {
+        if ( endpoints.isEmpty() )
+        {
+            throw new IllegalArgumentException( "No endpoints" );
+        }
+        this.endpoints = Collections.unmodifiableList( new ArrayList<>( endpoints ) );
+        this.p2c = !LEAST_REQUESTS.equals( strategy );
+        this.maxFailures = maxFailures;
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    public List<Endpoint> getEndpoints()
+    {
+        return endpoints;
+    }
+
+    /**
+     * Pick the endpoint for the next call and count it as outstanding there, until {@link #release(Endpoint, boolean)}.
+     */
+    public Endpoint acquire()
+    {
+        Endpoint chosen = choose();
+        chosen.outstanding.incrementAndGet();
+        return chosen;
+    }
+
+    /**
+     * @param failed whether the call failed in a way that says something about the endpoint, i.e. no response or a
+     *               server error
+     */
+    public void release( Endpoint endpoint, boolean failed )
+    {
+        endpoint.outstanding.decrementAndGet();
+        if ( !failed )
+        {
+            endpoint.failures.set( 0 );
+        }
+        else if ( endpoint.failures.incrementAndGet() >= maxFailures && endpoints.size() > 1 )
+        {
+            endpoint.failures.set( 0 );
+            endpoint.ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+            logger.warn( "Eject {} for {}ms after {} consecutive failures", endpoint, ejectionMillis, maxFailures );
+        }
+    }
+
+    /**
+     * The call ended without an outcome, e.g. it was cancelled.
+     */
+    public void cancel( Endpoint endpoint )
+    {
+        endpoint.outstanding.decrementAndGet();
+    }
+
+    /**
+     * Record the result of an active health check, a passing check also ends an ejection.
+     */
+    public void probed( Endpoint endpoint, boolean healthy )
+    {
+        if ( healthy )
+        {
+            if ( endpoint.probeFailed || endpoint.ejectedUntil > 0 )
+            {
+                logger.info( "Endpoint {} is healthy again", endpoint );
+            }
+            endpoint.probeFailed = false;
+            endpoint.ejectedUntil = 0;
+            endpoint.failures.set( 0 );
+        }
+        else if ( !endpoint.probeFailed )
+        {
+            endpoint.probeFailed = true;
+            logger.warn( "Endpoint {} failed its health check", endpoint );
+        }
+    }
+
+    private Endpoint choose()
+    {
+        int size = endpoints.size();
+        if ( size == 1 )
+        {
+            return endpoints.get( 0 );
+        }
+
+        long now = System.currentTimeMillis();
+        List<Endpoint> candidates = new ArrayList<>( size );
+        for ( Endpoint e : endpoints )
+        {
+            if ( e.isAvailable( now ) )
+            {
+                candidates.add( e );
+            }
+        }
+        if ( candidates.isEmpty() )
+        {
+            logger.debug( "All endpoints are ejected, use them anyway" );
+            candidates = endpoints;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int n = candidates.size();
+        if ( n == 1 )
+        {
+            return candidates.get( 0 );
+        }
+        if ( p2c )
+        {
+            int i = random.nextInt( n );
+            Endpoint a = candidates.get( i );
+            Endpoint b = candidates.get( ( i + 1 + random.nextInt( n - 1 ) ) % n );
+            return b.outstanding.get() < a.outstanding.get() ? b : a;
+        }
+
+        // start at a random endpoint so ties do not all go to the first one
+        int start = random.nextInt( n );
+        Endpoint least = null;
+        for ( int i = 0; i < n; i++ )
+        {
+            Endpoint e = candidates.get( ( start + i ) % n );
+            if ( least == null || e.outstanding.get() < least.outstanding.get() )
+            {
+                least = e;
+            }
+        }
+        return least;
+    }
+
+    public static final class Endpoint
+    {
+        private final String host;
+
+        private final int port;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private volatile long ejectedUntil;
+
+        private volatile boolean probeFailed;
+
+        public Endpoint( String host, int port )
+        {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Parse 'host:port', or just 'host' to use the default port of the scheme.
+         */
+        public static Endpoint parse( String endpoint )
+        {
+            String s = endpoint.trim();
+            int i = s.lastIndexOf( ':' );
+            if ( i < 0 )
+            {
+                return new Endpoint( s, 0 );
+            }
+            return new Endpoint( s.substring( 0, i ), Integer.parseInt( s.substring( i + 1 ) ) );
+        }
+
+        public String getHost()
+        {
+            return host;
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+
+        public int getOutstanding()
+        {
+            return outstanding.get();
+        }
+
+        public boolean isAvailable( long now )
+        {
+            return !probeFailed && now >= ejectedUntil;
+        }
+
+        @Override
+        public String toString()
+        {
+            return port > 0 ? host + ":" + port : host;
+        }
+    }
+}
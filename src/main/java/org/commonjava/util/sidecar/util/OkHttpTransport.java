@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.smallrye.mutiny.Uni;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends upstream requests with OkHttp, responses arrive on the OkHttp dispatcher threads.
+ */
+public class OkHttpTransport
+                implements UpstreamTransport
+{
+    private final OkHttpClient client;
+
+    private final long timeoutMillis;
+
+    public OkHttpTransport( OkHttpClient client, long timeoutMillis )
+    {
+        this.client = client;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Cancelling the returned Uni before the response is there cancels the call, a response that arrives anyway is
+     * closed.
+     */
+    @Override
+    public Uni<Response> send( Request request )
+    {
+        return Uni.createFrom().emitter( em -> {
+            Call call = client.newCall( request );
+            AtomicBoolean done = new AtomicBoolean();
+            em.onTermination( () -> {
+                if ( done.compareAndSet( false, true ) )
+                {
+                    call.cancel();
+                }
+            } );
+            call.enqueue( new Callback()
+            {
+                @Override
+                public void onFailure( @NotNull Call call, @NotNull IOException e )
+                {
+                    if ( done.compareAndSet( false, true ) )
+                    {
+                        em.fail( e );
+                    }
+                }
+
+                @Override
+                public void onResponse( @NotNull Call call, @NotNull Response response )
+                {
+                    if ( done.compareAndSet( false, true ) )
+                    {
+                        em.complete( response );
+                    }
+                    else
+                    {
+                        response.close();
+                    }
+                }
+            } );
+        } );
+    }
+
+    @Override
+    public long getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One upstream body read by several clients at their own pace. Whichever reader gets ahead pulls the next chunk from
+ * upstream, and the others read it back from where it is kept, so the upstream body is transferred once however many
+ * readers there are. Only what lies between the slowest and the fastest reader is kept, a chunk every reader is past is
+ * dropped. Kept chunks stay in memory up to a threshold and go to a temp {@link BodySpool} past that, which is deleted
+ * once every reader is past it. The upstream stream is closed when the last reader is closed.
+ */
+public class SharedBody
+{
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final long WAIT_MILLIS = 1000;
+
+    private final InputStream upstream;
+
+    private final int memoryThreshold;
+
+    private final ReentrantLock fillLock = new ReentrantLock();
+
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+
+    // by their offset in the body, from the chunk of the slowest reader to the end read so far
+    private final TreeMap<Long, Chunk> chunks = new TreeMap<>();
+
+    private final List<Reader> readers = new ArrayList<>();
+
+    private long length;
+
+    private long inMemory;
+
+    private Spill spill; // where chunks go while the memory threshold is reached
+
+    private boolean dropped;
+
+    private boolean eof;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    public SharedBody( InputStream upstream, int memoryThreshold )
+    {
+        this.upstream = upstream;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * Open a reader from the start of the body. The start is dropped as soon as every open reader is past it, so keep
+     * a reader open at the start while more may be opened.
+     *
+     * @return the reader, or null once the start of the body is gone
+     */
+    public synchronized InputStream open()
+    {
+        if ( closed || dropped )
+        {
+            return null;
+        }
+        Reader reader = new Reader();
+        readers.add( reader );
+        return reader;
+    }
+
+    /**
+     * @return how much of the body is kept for readers that are not past it yet
+     */
+    public synchronized long keptLength()
+    {
+        return chunks.isEmpty() ? 0 : length - chunks.firstKey();
+    }
+
+    private int read( Reader reader, byte[] b, int off, int len ) throws IOException
+    {
+        while ( true )
+        {
+            synchronized ( this )
+            {
+                if ( reader.pos < length )
+                {
+                    int n = copy( reader.pos, b, off, len );
+                    reader.pos += n;
+                    trim();
+                    return n;
+                }
+                if ( failure != null )
+                {
+                    throw new IOException( "Shared upstream body failed", failure );
+                }
+                if ( eof )
+                {
+                    return -1;
+                }
+            }
+
+            if ( fillLock.tryLock() )
+            {
+                try
+                {
+                    fill();
+                }
+                finally
+                {
+                    fillLock.unlock();
+                }
+            }
+            else
+            {
+                awaitData( reader.pos );
+            }
+        }
+    }
+
+    private int copy( long pos, byte[] b, int off, int len ) throws IOException
+    {
+        Chunk chunk = chunks.floorEntry( pos ).getValue();
+        int from = (int) ( pos - chunk.start );
+        int n = Math.min( len, chunk.length - from );
+        if ( chunk.data != null )
+        {
+            System.arraycopy( chunk.data, from, b, off, n );
+            return n;
+        }
+        return chunk.spill.spool.read( chunk.spoolPos + from, b, off, n );
+    }
+
+    private void fill()
+    {
+        int n;
+        IOException error = null;
+        try
+        {
+            n = upstream.read( buffer );
+        }
+        catch ( IOException e )
+        {
+            error = e;
+            n = -1;
+        }
+
+        synchronized ( this )
+        {
+            try
+            {
+                if ( error != null )
+                {
+                    failure = error;
+                }
+                else if ( n < 0 )
+                {
+                    eof = true;
+                }
+                else if ( n > 0 && !closed )
+                {
+                    append( n );
+                }
+            }
+            catch ( IOException e )
+            {
+                failure = e;
+            }
+            notifyAll();
+        }
+    }
+
+    private void append( int n ) throws IOException
+    {
+        Chunk chunk = new Chunk( length, n );
+        if ( inMemory + n <= memoryThreshold )
+        {
+            chunk.data = Arrays.copyOf( buffer, n );
+            inMemory += n;
+        }
+        else
+        {
+            if ( spill == null )
+            {
+                spill = new Spill();
+            }
+            chunk.spill = spill;
+            chunk.spoolPos = spill.spool.length();
+            spill.spool.write( buffer, 0, n );
+            spill.chunks++;
+        }
+        chunks.put( length, chunk );
+        length += n;
+    }
+
+    /**
+     * Drop the chunks every open reader is past.
+     */
+    private void trim()
+    {
+        long slowest = length;
+        for ( Reader reader : readers )
+        {
+            slowest = Math.min( slowest, reader.pos );
+        }
+
+        Map.Entry<Long, Chunk> first;
+        while ( ( first = chunks.firstEntry() ) != null && first.getValue().end() <= slowest )
+        {
+            chunks.pollFirstEntry();
+            drop( first.getValue() );
+        }
+    }
+
+    private void drop( Chunk chunk )
+    {
+        dropped = true;
+        if ( chunk.data != null )
+        {
+            inMemory -= chunk.length;
+        }
+        else if ( --chunk.spill.chunks == 0 )
+        {
+            IOUtils.closeQuietly( chunk.spill.spool, null );
+            if ( spill == chunk.spill )
+            {
+                spill = null;
+            }
+        }
+    }
+
+    private synchronized void awaitData( long pos ) throws IOException
+    {
+        if ( length <= pos && !eof && failure == null )
+        {
+            try
+            {
+                wait( WAIT_MILLIS );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for shared upstream body" );
+            }
+        }
+    }
+
+    private synchronized void release( Reader reader )
+    {
+        readers.remove( reader );
+        if ( !readers.isEmpty() )
+        {
+            trim();
+            return;
+        }
+
+        closed = true;
+        IOUtils.closeQuietly( upstream, null );
+        chunks.values().forEach( this::drop );
+        chunks.clear();
+    }
+
+    private static final class Chunk
+    {
+        private final long start;
+
+        private final int length;
+
+        private byte[] data; // or in the spill
+
+        private Spill spill;
+
+        private long spoolPos;
+
+        private Chunk( long start, int length )
+        {
+            this.start = start;
+            this.length = length;
+        }
+
+        private long end()
+        {
+            return start + length;
+        }
+    }
+
+    private static final class Spill
+    {
+        private final BodySpool spool = new BodySpool( 0 );
+
+        private int chunks; // still kept in the spool
+    }
+
+    private final class Reader
+                    extends InputStream
+    {
+        private long pos;
+
+        private boolean released;
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read( one, 0, 1 ) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if ( released )
+            {
+                throw new IOException( "Stream is closed" );
+            }
+            if ( len == 0 )
+            {
+                return 0;
+            }
+            return SharedBody.this.read( this, b, off, len );
+        }
+
+        @Override
+        public void close()
+        {
+            if ( !released )
+            {
+                released = true;
+                release( this );
+            }
+        }
+    }
+}
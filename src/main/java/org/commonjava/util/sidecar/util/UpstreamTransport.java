@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.smallrye.mutiny.Uni;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Sends one upstream request, with the timeout it was created for. Retries, tracing and everything done with the
+ * response stay in {@link WebClientAdapter}, so the implementations can be switched per service with its 'transport'
+ * setting and compared side by side under the same load.
+ * <p>
+ * Failures to get a response are reported as {@link java.io.IOException}, whatever the implementation.
+ */
+public interface UpstreamTransport
+{
+    String OKHTTP = "okhttp";
+
+    String VERTX = "vertx";
+
+    Uni<Response> send( Request request );
+
+    long getTimeoutMillis();
+}
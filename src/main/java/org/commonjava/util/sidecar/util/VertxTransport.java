@@ -0,0 +1,599 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.smallrye.mutiny.vertx.UniHelper;
+import io.vertx.core.Context;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.streams.WriteStream;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static javax.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
+
+/**
+ * Sends upstream requests with the Vert.x HTTP client on the event loop. The response body is handed on as a stream
+ * that pauses the upstream connection while too much of the body is waiting to be read and resumes it once the reader
+ * catches up, so a slow client slows the upstream transfer down instead of filling the heap.
+ * <p>
+ * Responses are emitted on a worker thread, since whoever gets them may read the body right away. Cancelling the
+ * returned Uni resets the request. A body nobody started reading can be piped to a client with
+ * {@link #sendBody(Vertx, Response, HttpServerResponse)} instead, so no thread is held while it is transferred.
+ */
+public class VertxTransport
+                implements UpstreamTransport
+{
+    private static final String CONNECTION = "Connection";
+
+    private static final String TRANSFER_ENCODING = "Transfer-Encoding";
+
+    private final Vertx vertx;
+
+    private final HttpClient client;
+
+    private final long timeoutMillis;
+
+    private final Gauges gauges;
+
+    public VertxTransport( Vertx vertx, HttpClient client, long timeoutMillis, Gauges gauges )
+    {
+        this.vertx = vertx;
+        this.client = client;
+        this.timeoutMillis = timeoutMillis;
+        this.gauges = gauges;
+    }
+
+    @Override
+    public Uni<Response> send( Request request )
+    {
+        RequestOptions options = new RequestOptions().setMethod( HttpMethod.valueOf( request.method() ) )
+                                                     .setAbsoluteURI( request.url().toString() )
+                                                     .setTimeout( timeoutMillis );
+        request.headers().forEach( h -> options.addHeader( h.getFirst(), h.getSecond() ) );
+        // hop-by-hop, the client sets them for the connection it actually uses
+        options.removeHeader( CONNECTION ).removeHeader( TRANSFER_ENCODING ).removeHeader( CONTENT_LENGTH );
+
+        Promise<Response> promise = Promise.promise();
+        AtomicReference<HttpClientRequest> sent = new AtomicReference<>();
+        gauges.queued.incrementAndGet();
+        client.request( options ).onComplete( ar -> gauges.queued.decrementAndGet() ).onSuccess( req -> {
+            sent.set( req );
+            if ( promise.future().isComplete() )
+            {
+                // cancelled while waiting for a connection
+                req.reset();
+                return;
+            }
+            gauges.running.incrementAndGet();
+            promise.future().onComplete( ar -> gauges.running.decrementAndGet() );
+            req.response()
+               .onSuccess( resp -> promise.tryComplete( toResponse( request, resp ) ) )
+               .onFailure( t -> promise.tryFail( toIOException( t ) ) );
+            RequestBody body = request.body();
+            if ( body == null )
+            {
+                req.end();
+            }
+            else
+            {
+                writeBody( req, body ).onFailure( t -> {
+                    req.reset( 0, t );
+                    promise.tryFail( toIOException( t ) );
+                } );
+            }
+        } ).onFailure( t -> promise.tryFail( toIOException( t ) ) );
+
+        return UniHelper.toUni( promise.future() )
+                        .emitOn( Infrastructure.getDefaultWorkerPool() )
+                        .onCancellation()
+                        .invoke( () -> {
+                            if ( promise.tryFail( new IOException( "Cancelled" ) ) )
+                            {
+                                HttpClientRequest req = sent.get();
+                                if ( req != null )
+                                {
+                                    req.reset();
+                                }
+                            }
+                            else if ( promise.future().succeeded() )
+                            {
+                                // the response is there but nobody will read it
+                                promise.future().result().close();
+                            }
+                        } );
+    }
+
+    @Override
+    public long getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+
+    /**
+     * Send the body of an upstream response to a client. A body this transport received is piped on the event loop,
+     * with the upstream response paused while the client's write queue is full. Any other body, like one shared between
+     * coalesced requests, is copied by a worker that waits on the write queue instead.
+     *
+     * @return completes once the whole body is written, fails when upstream fails half way
+     */
+    public static io.vertx.core.Future<Void> sendBody( Vertx vertx, Response response, HttpServerResponse out )
+    {
+        ResponseBody body = response.body();
+        if ( body instanceof StreamBody )
+        {
+            io.vertx.core.Future<Void> piped = ( (StreamBody) body ).stream.pipeTo( out );
+            if ( piped != null )
+            {
+                return piped;
+            }
+        }
+        if ( body == null )
+        {
+            return io.vertx.core.Future.succeededFuture();
+        }
+
+        return vertx.executeBlocking( p -> {
+            try (InputStream in = body.byteStream())
+            {
+                in.transferTo( new WriteStreamOutput( out ) );
+                p.complete();
+            }
+            catch ( IOException e )
+            {
+                p.fail( e );
+            }
+        }, false );
+    }
+
+    /**
+     * Request bodies are spooled, possibly to disk, so they are written from a worker thread that waits whenever the
+     * connection's write queue is full.
+     */
+    private io.vertx.core.Future<Void> writeBody( HttpClientRequest req, RequestBody body )
+    {
+        return vertx.executeBlocking( p -> {
+            try
+            {
+                long length = body.contentLength();
+                if ( length >= 0 )
+                {
+                    req.putHeader( CONTENT_LENGTH, Long.toString( length ) );
+                }
+                else
+                {
+                    req.setChunked( true );
+                }
+                MediaType contentType = body.contentType();
+                if ( contentType != null && req.headers().get( CONTENT_TYPE ) == null )
+                {
+                    req.putHeader( CONTENT_TYPE, contentType.toString() );
+                }
+
+                try (BufferedSink sink = Okio.buffer( Okio.sink( new WriteStreamOutput( req ) ) ))
+                {
+                    body.writeTo( sink );
+                }
+                req.end();
+                p.complete();
+            }
+            catch ( IOException e )
+            {
+                p.fail( e );
+            }
+        }, false );
+    }
+
+    private Response toResponse( Request request, HttpClientResponse resp )
+    {
+        Headers.Builder headers = new Headers.Builder();
+        resp.headers().forEach( h -> headers.addUnsafeNonAscii( h.getKey(), h.getValue() ) );
+        String contentType = resp.getHeader( CONTENT_TYPE );
+        long length = NumberUtils.toLong( resp.getHeader( CONTENT_LENGTH ), -1 );
+        ResponseBody body = new StreamBody( new ResponseBodyStream( resp ),
+                                            contentType == null ? null : MediaType.parse( contentType ), length );
+
+        return new Response.Builder().request( request )
+                                     .protocol( toProtocol( resp.version() ) )
+                                     .code( resp.statusCode() )
+                                     .message( resp.statusMessage() == null ? "" : resp.statusMessage() )
+                                     .headers( headers.build() )
+                                     .body( body )
+                                     .build();
+    }
+
+    private static Protocol toProtocol( HttpVersion version )
+    {
+        switch ( version )
+        {
+            case HTTP_1_0:
+                return Protocol.HTTP_1_0;
+            case HTTP_2:
+                return Protocol.HTTP_2;
+            default:
+                return Protocol.HTTP_1_1;
+        }
+    }
+
+    private static IOException toIOException( Throwable t )
+    {
+        return t instanceof IOException ? (IOException) t : new IOException( String.valueOf( t.getMessage() ), t );
+    }
+
+    /**
+     * Calls waiting for a pooled connection and calls waiting for their response. They are kept outside the transport,
+     * which is replaced on config change while its calls may still be running.
+     */
+    public static final class Gauges
+    {
+        private final AtomicInteger queued = new AtomicInteger();
+
+        private final AtomicInteger running = new AtomicInteger();
+
+        public int getQueued()
+        {
+            return queued.get();
+        }
+
+        public int getRunning()
+        {
+            return running.get();
+        }
+    }
+
+    /**
+     * Writes to an upstream request or a client response, blocking the calling worker while the write queue is full.
+     */
+    private static final class WriteStreamOutput
+                    extends OutputStream
+    {
+        private final WriteStream<Buffer> req;
+
+        private boolean drained;
+
+        private WriteStreamOutput( WriteStream<Buffer> req )
+        {
+            this.req = req;
+        }
+
+        @Override
+        public void write( int b ) throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException
+        {
+            byte[] copy = new byte[len];
+            System.arraycopy( b, off, copy, 0, len );
+            req.write( Buffer.buffer( copy ) );
+            if ( req.writeQueueFull() )
+            {
+                awaitDrain();
+            }
+        }
+
+        private synchronized void awaitDrain() throws IOException
+        {
+            drained = false;
+            req.drainHandler( v -> {
+                synchronized ( this )
+                {
+                    drained = true;
+                    notifyAll();
+                }
+            } );
+            try
+            {
+                while ( !drained && req.writeQueueFull() )
+                {
+                    wait( 1000 );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while writing body" );
+            }
+        }
+    }
+
+    private static final class StreamBody
+                    extends ResponseBody
+    {
+        private final ResponseBodyStream stream;
+
+        private final MediaType contentType;
+
+        private final long contentLength;
+
+        private BufferedSource source;
+
+        private StreamBody( ResponseBodyStream stream, MediaType contentType, long contentLength )
+        {
+            this.stream = stream;
+            this.contentType = contentType;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public MediaType contentType()
+        {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength()
+        {
+            return contentLength;
+        }
+
+        @Override
+        public synchronized BufferedSource source()
+        {
+            if ( source == null )
+            {
+                source = Okio.buffer( Okio.source( stream ) );
+            }
+            return source;
+        }
+    }
+
+    /**
+     * The response body as it arrives, pausing the upstream response above a high watermark of unread bytes and
+     * resuming it below a low one.
+     */
+    private static final class ResponseBodyStream
+                    extends InputStream
+    {
+        private static final int HIGH_WATERMARK = 256 * 1024;
+
+        private static final int LOW_WATERMARK = 64 * 1024;
+
+        private final HttpClientResponse resp;
+
+        private final Context context;
+
+        private final Deque<Buffer> chunks = new ArrayDeque<>();
+
+        private int pos;
+
+        private long queued;
+
+        private boolean paused;
+
+        private boolean ended;
+
+        private boolean reading;
+
+        private boolean piped;
+
+        private boolean closed;
+
+        private Throwable failure;
+
+        private ResponseBodyStream( HttpClientResponse resp )
+        {
+            this.resp = resp;
+            this.context = Vertx.currentContext();
+            resp.handler( this::onChunk ).endHandler( v -> onEnd() ).exceptionHandler( this::onFailure );
+        }
+
+        private synchronized void onChunk( Buffer chunk )
+        {
+            if ( closed )
+            {
+                return;
+            }
+            chunks.add( chunk );
+            queued += chunk.length();
+            if ( queued > HIGH_WATERMARK && !paused )
+            {
+                paused = true;
+                resp.pause();
+            }
+            notifyAll();
+        }
+
+        private synchronized void onEnd()
+        {
+            ended = true;
+            notifyAll();
+        }
+
+        private synchronized void onFailure( Throwable t )
+        {
+            failure = t;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read( one, 0, 1 ) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read( byte[] b, int off, int len ) throws IOException
+        {
+            if ( closed || piped )
+            {
+                throw new IOException( "Stream is closed" );
+            }
+            reading = true;
+            if ( len == 0 )
+            {
+                return 0;
+            }
+
+            while ( chunks.isEmpty() )
+            {
+                if ( failure != null )
+                {
+                    throw toIOException( failure );
+                }
+                if ( ended )
+                {
+                    return -1;
+                }
+                try
+                {
+                    wait();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "Interrupted while waiting for upstream response body" );
+                }
+            }
+
+            Buffer chunk = chunks.peek();
+            int n = Math.min( len, chunk.length() - pos );
+            chunk.getBytes( pos, pos + n, b, off );
+            pos += n;
+            if ( pos == chunk.length() )
+            {
+                chunks.poll();
+                pos = 0;
+            }
+            queued -= n;
+            if ( paused && queued < LOW_WATERMARK )
+            {
+                paused = false;
+                context.runOnContext( v -> resp.resume() );
+            }
+            return n;
+        }
+
+        /**
+         * Hand the body over to a client response, unless reading it has started already.
+         *
+         * @return completes once upstream has sent all of it, or null
+         */
+        private synchronized io.vertx.core.Future<Void> pipeTo( HttpServerResponse out )
+        {
+            if ( reading || piped || closed )
+            {
+                return null;
+            }
+            piped = true;
+            Promise<Void> done = Promise.promise();
+            context.runOnContext( v -> pipe( out, done ) );
+            return done.future();
+        }
+
+        /**
+         * On the response's context, so no chunk arrives while the handler is switched.
+         */
+        private void pipe( HttpServerResponse out, Promise<Void> done )
+        {
+            Deque<Buffer> arrived;
+            boolean end;
+            synchronized ( this )
+            {
+                arrived = new ArrayDeque<>( chunks );
+                chunks.clear();
+                queued = 0;
+                end = ended;
+                if ( failure != null )
+                {
+                    done.fail( failure );
+                    return;
+                }
+            }
+            arrived.forEach( out::write );
+            if ( end )
+            {
+                done.complete();
+                return;
+            }
+
+            out.closeHandler( v -> resp.request().reset() );
+            resp.handler( chunk -> {
+                out.write( chunk );
+                if ( out.writeQueueFull() )
+                {
+                    resp.pause();
+                    out.drainHandler( v -> resp.resume() );
+                }
+            } ).endHandler( v -> done.tryComplete() ).exceptionHandler( done::tryFail );
+            if ( out.writeQueueFull() )
+            {
+                resp.pause();
+                out.drainHandler( v -> resp.resume() );
+            }
+            else
+            {
+                // it may have been paused while nobody was reading it
+                resp.resume();
+            }
+        }
+
+        @Override
+        public synchronized int available()
+        {
+            return (int) Math.min( Integer.MAX_VALUE, queued );
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            if ( closed )
+            {
+                return;
+            }
+            closed = true;
+            chunks.clear();
+            queued = 0;
+            if ( !ended && failure == null )
+            {
+                // nobody wants the rest, drop the connection instead of transferring it
+                context.runOnContext( v -> resp.request().reset() );
+            }
+        }
+    }
+}
@@ -4,37 +4,67 @@ import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.context.Scope;
 import io.opentelemetry.semconv.trace.attributes.SemanticAttributes;
 import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.subscription.Cancellable;
+import io.smallrye.mutiny.subscription.UniEmitter;
 import io.smallrye.mutiny.vertx.UniHelper;
 import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpVersion;
 import okhttp3.Call;
 import okhttp3.Callback;
-import okhttp3.Interceptor;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
 import org.apache.commons.io.IOUtils;
 import org.commonjava.util.sidecar.config.ProxyConfiguration;
 import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.exception.CircuitOpenException;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.file.Files;
 import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static java.util.Arrays.asList;
 import static javax.ws.rs.core.HttpHeaders.HOST;
+import static okhttp3.Protocol.H2_PRIOR_KNOWLEDGE;
+import static okhttp3.Protocol.HTTP_1_1;
+import static okhttp3.Protocol.HTTP_2;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_EJECTION_TIME;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_HEALTH_CHECK_INTERVAL;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_KEEP_ALIVE;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_MAX_FAILURES;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_MAX_IDLE_CONNECTIONS;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_MAX_REQUESTS_PER_HOST;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_SPOOL_MEMORY_THRESHOLD;
+import static org.commonjava.util.sidecar.util.UpstreamTransport.OKHTTP;
+import static org.commonjava.util.sidecar.util.UpstreamTransport.VERTX;
 
 public class WebClientAdapter
 {
@@ -58,16 +88,110 @@ public class WebClientAdapter
 
     private final OtelAdapter otel;
 
-    private OkHttpClient client;
+    private final Vertx vertx;
+
+    private final int maxRequestsPerHost;
+
+    private final Duration keepAlive;
+
+    private final LoadBalancer balancer;
+
+    private final CircuitBreaker breaker;
+
+    private final HedgePolicy hedgePolicy = new HedgePolicy();
+
+    // owns the connection pool and dispatcher, which every client variant derived from it shares
+    private final OkHttpClient baseClient;
+
+    private final VertxTransport.Gauges vertxGauges = new VertxTransport.Gauges();
+
+    private HttpClient vertxClient;
+
+    private long healthCheckTimer = -1;
+
+    private volatile UpstreamTransport transport;
+
+    private volatile RetryPolicy retryPolicy;
 
     public WebClientAdapter( ServiceConfig serviceConfig, ProxyConfiguration proxyConfiguration, AtomicLong timeout,
-                             OtelAdapter otel )
+                             OtelAdapter otel, Vertx vertx )
     {
         this.serviceConfig = serviceConfig;
         this.proxyConfiguration = proxyConfiguration;
         this.timeout = timeout;
         this.otel = otel;
+        this.vertx = vertx;
+        this.maxRequestsPerHost = serviceConfig.maxRequestsPerHost != null && serviceConfig.maxRequestsPerHost > 0 ?
+                        serviceConfig.maxRequestsPerHost :
+                        DEFAULT_MAX_REQUESTS_PER_HOST;
+        this.keepAlive = parseDuration( "keep-alive", serviceConfig.keepAlive, DEFAULT_KEEP_ALIVE );
+        this.balancer = newBalancer();
+        this.breaker = new CircuitBreaker( serviceConfig.host + ":" + serviceConfig.port,
+                                           proxyConfiguration.getCircuitBreaker() );
+        this.baseClient = newBaseClient();
         reinit();
+        startHealthCheck();
+    }
+
+    public ServiceConfig getServiceConfig()
+    {
+        return serviceConfig;
+    }
+
+    public LoadBalancer getBalancer()
+    {
+        return balancer;
+    }
+
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return breaker;
+    }
+
+    public HedgePolicy getHedgePolicy()
+    {
+        return hedgePolicy;
+    }
+
+    /**
+     * Stop the active health check, close the Vert.x client and the idle OkHttp connections. OkHttp calls still
+     * running are left to finish.
+     */
+    public synchronized void close()
+    {
+        if ( healthCheckTimer >= 0 )
+        {
+            vertx.cancelTimer( healthCheckTimer );
+            healthCheckTimer = -1;
+        }
+        if ( vertxClient != null )
+        {
+            vertxClient.close();
+            vertxClient = null;
+        }
+        baseClient.connectionPool().evictAll();
+    }
+
+    /**
+     * Calls waiting for a free slot or connection. A steadily non-zero value means max-requests-per-host is too low for
+     * the load.
+     */
+    public int getQueuedCalls()
+    {
+        return baseClient.dispatcher().queuedCallsCount() + vertxGauges.getQueued();
+    }
+
+    /**
+     * Calls sent upstream and waiting for their response.
+     */
+    public int getRunningCalls()
+    {
+        return baseClient.dispatcher().runningCallsCount() + vertxGauges.getRunning();
+    }
+
+    public int getMaxRequestsPerHost()
+    {
+        return maxRequestsPerHost;
     }
 
     public RequestAdapter head( String path, HttpServerRequest req )
@@ -84,11 +208,11 @@ public class WebClientAdapter
     {
         try
         {
-            File bodyFile = cacheInputStream( is );
+            BodySpool body = spool( is );
 
-            return new RequestAdapter( new Request.Builder().post( RequestBody.create( bodyFile, getMediaType( req ) ) )
+            return new RequestAdapter( new Request.Builder().post( new SpooledRequestBody( body, getMediaType( req ) ) )
                                                             .url( calculateUrl( path ) ), path ).withCleanup(
-                            new DeleteInterceptor( bodyFile ) ).headersFrom( req );
+                            body ).headersFrom( req );
         }
         catch ( IOException exception )
         {
@@ -100,11 +224,11 @@ public class WebClientAdapter
     {
         try
         {
-            File bodyFile = cacheInputStream( is );
+            BodySpool body = spool( is );
 
-            return new RequestAdapter( new Request.Builder().put( RequestBody.create( bodyFile, getMediaType( req ) ) )
+            return new RequestAdapter( new Request.Builder().put( new SpooledRequestBody( body, getMediaType( req ) ) )
                                                             .url( calculateUrl( path ) ), path ).withCleanup(
-                            new DeleteInterceptor( bodyFile ) ).headersFrom( req );
+                            body ).headersFrom( req );
         }
         catch ( IOException exception )
         {
@@ -122,15 +246,29 @@ public class WebClientAdapter
         return null;
     }
 
-    private File cacheInputStream( InputStream is ) throws IOException
+    /**
+     * Read the request body so it can be sent again on retry. Small bodies stay in memory, only large ones are written
+     * to a temp file.
+     */
+    private BodySpool spool( InputStream is ) throws IOException
     {
-        File bodyFile = Files.createTempFile( "post-", ".bin" ).toFile();
-        try (OutputStream os = new FileOutputStream( bodyFile ))
+        Integer threshold = proxyConfiguration.getBodyMemoryThreshold();
+        BodySpool spool = new BodySpool( threshold != null ? threshold : DEFAULT_SPOOL_MEMORY_THRESHOLD );
+        try
         {
-            IOUtils.copy( is, os );
+            byte[] buf = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+            int n;
+            while ( ( n = is.read( buf ) ) >= 0 )
+            {
+                spool.write( buf, 0, n );
+            }
         }
-
-        return bodyFile;
+        catch ( IOException e )
+        {
+            IOUtils.closeQuietly( spool, null );
+            throw e;
+        }
+        return spool;
     }
 
     public RequestAdapter delete( String path )
@@ -140,15 +278,17 @@ public class WebClientAdapter
 
     private String calculateUrl( String path )
     {
+        // with more than one endpoint the host is picked for each try when it is sent
+        LoadBalancer.Endpoint endpoint = balancer.getEndpoints().get( 0 );
         StringBuilder sb = new StringBuilder( "http" );
         if ( serviceConfig.ssl )
         {
             sb.append( 's' );
         }
-        sb.append( "://" ).append( serviceConfig.host );
-        if ( serviceConfig.port > 0 )
+        sb.append( "://" ).append( endpoint.getHost() );
+        if ( endpoint.getPort() > 0 )
         {
-            sb.append( ':' ).append( serviceConfig.port );
+            sb.append( ':' ).append( endpoint.getPort() );
         }
 
         if ( !path.startsWith( "/" ) )
@@ -161,16 +301,196 @@ public class WebClientAdapter
         return sb.toString();
     }
 
-    public void reinit()
+    /**
+     * Derive the transport calls are made with from the current proxy config. This runs on construction and on config
+     * change only, so a call just picks up a ready transport. Either way the connection pool is kept.
+     */
+    public synchronized void reinit()
+    {
+        // one snapshot, so the settings all come from the same load
+        ProxyConfiguration.Snapshot config = proxyConfiguration.getSnapshot();
+        Duration d = getCallTimeout( config );
+        this.retryPolicy = new RetryPolicy( config.getRetry() );
+        breaker.configure( config.getCircuitBreaker() );
+        hedgePolicy.configure( config.getHedge() );
+        if ( VERTX.equals( serviceConfig.transport ) )
+        {
+            if ( vertxClient == null )
+            {
+                vertxClient = vertx.createHttpClient( newVertxOptions( d ) );
+            }
+            this.transport = new VertxTransport( vertx, vertxClient, d.toMillis(), vertxGauges );
+        }
+        else
+        {
+            this.transport = new OkHttpTransport( baseClient.newBuilder()
+                                                            .callTimeout( d )
+                                                            .readTimeout( d )
+                                                            .writeTimeout( d )
+                                                            .connectTimeout( d )
+                                                            .build(), d.toMillis() );
+        }
+    }
+
+    private LoadBalancer newBalancer()
     {
-        Duration d = Duration.ofMillis( timeout.get() );
-        this.client = new OkHttpClient.Builder().addInterceptor( new RetryInterceptor( proxyConfiguration.getRetry() ) )
-                                                .callTimeout( d )
-                                                .readTimeout( d )
-                                                .writeTimeout( d )
-                                                .connectTimeout( d )
-                                                .retryOnConnectionFailure( true )
-                                                .build();
+        List<LoadBalancer.Endpoint> endpoints = new ArrayList<>();
+        if ( serviceConfig.endpoints != null )
+        {
+            serviceConfig.endpoints.forEach( e -> endpoints.add( LoadBalancer.Endpoint.parse( e ) ) );
+        }
+        if ( endpoints.isEmpty() )
+        {
+            endpoints.add( new LoadBalancer.Endpoint( serviceConfig.host, serviceConfig.port ) );
+        }
+        int maxFailures = serviceConfig.maxFailures != null && serviceConfig.maxFailures > 0 ?
+                        serviceConfig.maxFailures :
+                        DEFAULT_MAX_FAILURES;
+        return new LoadBalancer( endpoints, serviceConfig.balancer, maxFailures,
+                                 parseDuration( "ejection-time", serviceConfig.ejectionTime,
+                                                DEFAULT_EJECTION_TIME ).toMillis() );
+    }
+
+    /**
+     * A service talks to its own hosts only, so the per host limit makes up the limit of the whole dispatcher.
+     */
+    private OkHttpClient newBaseClient()
+    {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests( maxRequestsPerHost * balancer.getEndpoints().size() );
+        dispatcher.setMaxRequestsPerHost( maxRequestsPerHost );
+
+        int maxIdle = serviceConfig.maxIdleConnections != null && serviceConfig.maxIdleConnections >= 0 ?
+                        serviceConfig.maxIdleConnections :
+                        DEFAULT_MAX_IDLE_CONNECTIONS;
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder().retryOnConnectionFailure( true )
+                                                                 .dispatcher( dispatcher )
+                                                                 .connectionPool( new ConnectionPool( maxIdle,
+                                                                                                      keepAlive.toMillis(),
+                                                                                                      TimeUnit.MILLISECONDS ) );
+        if ( Boolean.FALSE.equals( serviceConfig.http2 ) )
+        {
+            builder.protocols( Collections.singletonList( HTTP_1_1 ) );
+        }
+        else if ( Boolean.TRUE.equals( serviceConfig.http2 ) )
+        {
+            // over TLS it is negotiated, in the clear the upstream has to speak it without an upgrade
+            builder.protocols( serviceConfig.ssl ?
+                                               asList( HTTP_2, HTTP_1_1 ) :
+                                               Collections.singletonList( H2_PRIOR_KNOWLEDGE ) );
+        }
+        return builder.build();
+    }
+
+    /**
+     * Vert.x has no idle connection limit, idle connections are only closed after the keep-alive time.
+     */
+    private HttpClientOptions newVertxOptions( Duration timeout )
+    {
+        HttpClientOptions options = new HttpClientOptions().setConnectTimeout(
+                        (int) Math.min( Integer.MAX_VALUE, timeout.toMillis() ) )
+                                                           .setMaxPoolSize( maxRequestsPerHost )
+                                                           .setKeepAliveTimeout( (int) Math.max( 1,
+                                                                                                 keepAlive.getSeconds() ) );
+        if ( Boolean.TRUE.equals( serviceConfig.http2 ) )
+        {
+            options.setProtocolVersion( HttpVersion.HTTP_2 )
+                   .setUseAlpn( serviceConfig.ssl )
+                   .setHttp2ClearTextUpgrade( false )
+                   .setHttp2MultiplexingLimit( maxRequestsPerHost );
+        }
+        return options;
+    }
+
+    /**
+     * Probe every endpoint on a timer. The probes get the interval as timeout, so a hanging endpoint is not probed
+     * twice at once.
+     */
+    private void startHealthCheck()
+    {
+        String path = serviceConfig.healthCheckPath;
+        if ( isBlank( path ) )
+        {
+            return;
+        }
+
+        Duration interval = parseDuration( "health-check-interval", serviceConfig.healthCheckInterval,
+                                           DEFAULT_HEALTH_CHECK_INTERVAL );
+        OkHttpClient probeClient = baseClient.newBuilder().callTimeout( interval ).build();
+        healthCheckTimer = vertx.setPeriodic( interval.toMillis(), id -> balancer.getEndpoints().forEach( e -> {
+            String url = calculateUrl( path );
+            Request request = new Request.Builder().get()
+                                                   .url( HttpUrl.get( url )
+                                                                .newBuilder()
+                                                                .host( e.getHost() )
+                                                                .port( portOf( e ) )
+                                                                .build() )
+                                                   .build();
+            probeClient.newCall( request ).enqueue( new Callback()
+            {
+                @Override
+                public void onFailure( @NotNull Call call, @NotNull IOException ex )
+                {
+                    logger.debug( "Health check failed: " + request.url(), ex );
+                    balancer.probed( e, false );
+                }
+
+                @Override
+                public void onResponse( @NotNull Call call, @NotNull Response response )
+                {
+                    response.close();
+                    balancer.probed( e, response.isSuccessful() );
+                }
+            } );
+        } ) );
+    }
+
+    private int portOf( LoadBalancer.Endpoint endpoint )
+    {
+        if ( endpoint.getPort() > 0 )
+        {
+            return endpoint.getPort();
+        }
+        return serviceConfig.ssl ? 443 : 80;
+    }
+
+    private Duration parseDuration( String name, String value, Duration defaultValue )
+    {
+        if ( isNotBlank( value ) )
+        {
+            try
+            {
+                Duration d = Duration.parse( "pt" + value );
+                if ( !d.isNegative() && !d.isZero() )
+                {
+                    return d;
+                }
+            }
+            catch ( DateTimeParseException e )
+            {
+                // fall through to the default
+            }
+            logger.warn( "Invalid {} '{}' for {}, use {}", name, value, serviceConfig.host, defaultValue );
+        }
+        return defaultValue;
+    }
+
+    private Duration getCallTimeout( ProxyConfiguration.Snapshot config )
+    {
+        String readTimeout = config.getReadTimeout();
+        if ( isNotBlank( readTimeout ) )
+        {
+            try
+            {
+                return Duration.parse( "pt" + readTimeout );
+            }
+            catch ( DateTimeParseException e )
+            {
+                logger.warn( "Failed to parse proxy.read-timeout '{}', use {}ms", readTimeout, timeout.get() );
+            }
+        }
+        return Duration.ofMillis( timeout.get() );
     }
 
     public final class RequestAdapter
@@ -181,7 +501,7 @@ public class WebClientAdapter
 
         private IOException exception;
 
-        private Interceptor cleanupInterceptor;
+        private Closeable cleanup;
 
         public RequestAdapter( Request.Builder requestBuilder, String path )
         {
@@ -231,6 +551,18 @@ public class WebClientAdapter
             return this;
         }
 
+        /**
+         * Set a header, replacing any value taken from the incoming request.
+         */
+        public RequestAdapter header( String name, String value )
+        {
+            if ( exception == null )
+            {
+                requestBuilder.header( name, value );
+            }
+            return this;
+        }
+
         public CallAdapter call()
         {
             if ( exception != null )
@@ -238,58 +570,48 @@ public class WebClientAdapter
                 return new CallAdapter( exception );
             }
 
-            Duration pathTimeout = Duration.parse( "pt" + proxyConfiguration.getReadTimeout() );
+            UpstreamTransport current = transport;
             if ( otel.enabled() )
             {
-                Span.current()
-                    .setAttribute( "target.timeout", pathTimeout != null ? pathTimeout.toMillis() : timeout.get() );
-            }
-            OkHttpClient callClient = client;
-            if ( pathTimeout != null || cleanupInterceptor != null )
-            {
-                OkHttpClient.Builder builder = client.newBuilder();
-                if ( pathTimeout != null )
-                {
-                    builder.callTimeout( pathTimeout )
-                           .readTimeout( pathTimeout )
-                           .writeTimeout( pathTimeout )
-                           .connectTimeout( pathTimeout );
-                }
-
-                if ( cleanupInterceptor != null )
-                {
-                    builder.interceptors().add( 0, cleanupInterceptor );
-                    //                    builder.addInterceptor( cleanupInterceptor );
-                }
-
-                callClient = builder.build();
+                Span.current().setAttribute( "target.timeout", current.getTimeoutMillis() );
             }
 
-            return new CallAdapter( callClient, requestBuilder, serviceConfig );
+            return new CallAdapter( current, requestBuilder, serviceConfig, cleanup );
         }
 
-        public RequestAdapter withCleanup( Interceptor cleanupInterceptor )
+        /**
+         * Release the given resource, e.g. a spooled request body, once the call is done including all retries.
+         */
+        public RequestAdapter withCleanup( Closeable cleanup )
         {
-            this.cleanupInterceptor = cleanupInterceptor;
+            this.cleanup = cleanup;
             return this;
         }
     }
 
     public final class CallAdapter
     {
-        private OkHttpClient callClient;
+        private UpstreamTransport transport;
 
         private Request.Builder requestBuilder;
 
         private ServiceConfig serviceConfig;
 
+        private Closeable cleanup;
+
         private IOException exception;
 
-        public CallAdapter( OkHttpClient callClient, Request.Builder requestBuilder, ServiceConfig serviceConfig )
+        private boolean idempotent;
+
+        public CallAdapter( UpstreamTransport transport, Request.Builder requestBuilder, ServiceConfig serviceConfig,
+                            Closeable cleanup )
         {
-            this.callClient = callClient;
+            this.transport = transport;
             this.requestBuilder = requestBuilder;
             this.serviceConfig = serviceConfig;
+            this.cleanup = cleanup;
+            String method = requestBuilder.build().method();
+            this.idempotent = "GET".equals( method ) || "HEAD".equals( method );
         }
 
         public CallAdapter( IOException exception )
@@ -297,6 +619,11 @@ public class WebClientAdapter
             this.exception = exception;
         }
 
+        /**
+         * Send the request, retrying on connection failures and server errors. Retries wait on a Vert.x timer, so no
+         * thread is blocked between tries. Every try has to pass the circuit breaker, a rejected one fails right away
+         * with {@link CircuitOpenException}.
+         */
         public Uni<Response> enqueue()
         {
             if ( exception != null )
@@ -304,14 +631,112 @@ public class WebClientAdapter
                 return UniHelper.toUni( Future.failedFuture( exception ) );
             }
 
-            return UniHelper.toUni( Future.future( ( p ) -> {
+            Uni<Response> ret = attempt( retryPolicy, 0 );
+            if ( cleanup != null )
+            {
+                ret = ret.onTermination().invoke( () -> {
+                    logger.debug( "Releasing post/put body: {}", cleanup );
+                    IOUtils.closeQuietly( cleanup, null );
+                } );
+            }
+            return ret;
+        }
+
+        private Uni<Response> attempt( RetryPolicy retry, int tryCounter )
+        {
+            // a permit per subscription, so a resubscribed call asks the breaker again and never leaks one
+            return Uni.createFrom().deferred( () -> {
+                long permit = breaker.acquire();
+                if ( permit == CircuitBreaker.REJECTED )
+                {
+                    String target = serviceConfig.host + ":" + serviceConfig.port;
+                    return Uni.createFrom()
+                              .failure( new CircuitOpenException( "Circuit breaker is open for " + target,
+                                                                  breaker.getRetryAfterMillis() ) );
+                }
+
+                return sendOrHedge( permit ).onItemOrFailure().transformToUni( ( resp, error ) -> {
+                    boolean retriable = error instanceof IOException || ( error == null && resp.code() >= 500 );
+                    if ( !retriable || tryCounter >= retry.count )
+                    {
+                        if ( otel.enabled() && tryCounter > 0 )
+                        {
+                            Span.current().setAttribute( "target.retries", tryCounter );
+                        }
+                        return error != null ? Uni.createFrom().failure( error ) : Uni.createFrom().item( resp );
+                    }
+
+                    if ( error != null )
+                    {
+                        if ( otel.enabled() )
+                        {
+                            Span.current()
+                                .setAttribute( "target.try." + tryCounter + ".error_message", error.getMessage() );
+                            Span.current()
+                                .setAttribute( "target.try." + tryCounter + ".error_class",
+                                               error.getClass().getSimpleName() );
+                        }
+                        logger.debug( "TRY(" + tryCounter + "/" + retry.count + "): Failed upstream request: "
+                                                      + requestBuilder.build().url(), error );
+                    }
+                    else
+                    {
+                        if ( otel.enabled() )
+                        {
+                            Span.current().setAttribute( "target.try." + tryCounter + ".status_code", resp.code() );
+                        }
+                        logger.debug( "TRY({}/{}): Response indicates server error: {}. Retrying", tryCounter,
+                                      retry.count, resp );
+                        resp.close();
+                    }
+
+                    Uni<Void> backOff = delay( retry.backOff( tryCounter ) );
+                    return backOff.onItem().transformToUni( x -> attempt( retry, tryCounter + 1 ) );
+                } );
+            } );
+        }
+
+        private Uni<Void> delay( long millis )
+        {
+            if ( millis <= 0 )
+            {
+                return Uni.createFrom().voidItem();
+            }
+            return Uni.createFrom().emitter( em -> vertx.setTimer( millis, id -> em.complete( null ) ) );
+        }
+
+        /**
+         * Send a GET or HEAD, and if it is not answered within the hedge delay and the budget allows, send it once more.
+         * Whichever response comes first is used and the other call is cancelled. The call only fails when all sent
+         * calls failed.
+         */
+        private Uni<Response> sendOrHedge( long permit )
+        {
+            if ( !idempotent || !hedgePolicy.isEnabled() )
+            {
+                return send( permit );
+            }
+
+            hedgePolicy.onCall();
+            long delay = hedgePolicy.getDelayMillis();
+            if ( delay < 0 )
+            {
+                return send( permit );
+            }
+            return Uni.createFrom().emitter( em -> new HedgedCall( em ).start( permit, delay ) );
+        }
+
+        private Uni<Response> send( long permit )
+        {
+            // the endpoint and the span are taken per subscription, so each has exactly one release
+            return Uni.createFrom().deferred( () -> {
                 logger.debug( "Starting upstream request..." );
 
                 Span span;
                 Scope scope;
                 if ( otel.enabled() )
                 {
-                    span = otel.newClientSpan( "okhttp",
+                    span = otel.newClientSpan( transport instanceof VertxTransport ? VERTX : OKHTTP,
                                                requestBuilder.build().method() + ":" + serviceConfig.host + ":"
                                                                + serviceConfig.port );
 
@@ -325,187 +750,243 @@ public class WebClientAdapter
                     scope = null;
                 }
 
-                Call call = callClient.newCall( requestBuilder.build() );
+                LoadBalancer.Endpoint endpoint = balancer.acquire();
+                Request request = requestBuilder.build();
+                if ( balancer.getEndpoints().size() > 1 )
+                {
+                    int port = portOf( endpoint );
+                    request = request.newBuilder()
+                                     .url( request.url().newBuilder().host( endpoint.getHost() ).port( port ).build() )
+                                     .build();
+                }
+                Request sent = request;
 
                 if ( span != null )
                 {
-                    span.setAttribute( SemanticAttributes.HTTP_METHOD, call.request().method() );
-                    span.setAttribute( SemanticAttributes.HTTP_HOST, call.request().url().host() );
-                    span.setAttribute( SemanticAttributes.HTTP_URL, call.request().url().url().toExternalForm() );
+                    span.setAttribute( SemanticAttributes.HTTP_METHOD, request.method() );
+                    span.setAttribute( SemanticAttributes.HTTP_HOST, request.url().host() );
+                    span.setAttribute( SemanticAttributes.HTTP_URL, request.url().url().toExternalForm() );
                 }
 
-                call.enqueue( new Callback()
-                {
-                    @Override
-                    public void onFailure( @NotNull Call call, @NotNull IOException e )
+                long start = System.nanoTime();
+                return transport.send( sent ).onItemOrFailure().invoke( ( response, error ) -> {
+                    boolean failed = error != null || response.code() >= 500;
+                    long elapsed = System.nanoTime() - start;
+                    balancer.release( endpoint, failed );
+                    breaker.onResult( permit, elapsed, failed );
+                    if ( !failed && idempotent && hedgePolicy.isEnabled() )
                     {
-                        if ( span != null )
-                        {
-                            span.setAttribute( "error.class", e.getClass().getSimpleName() );
-                            span.setAttribute( "error.message", e.getMessage() );
-
-                            // NOTE: Because we're doing this using a Future, we can't use try-with-resources/finally, as
-                            // the OTEL example shows.
-                            scope.close();
-                            span.end();
-                        }
-                        logger.trace( "Failed: " + call.request().url(), e );
-                        p.fail( e );
+                        hedgePolicy.record( TimeUnit.NANOSECONDS.toMillis( elapsed ) );
                     }
-
-                    @Override
-                    public void onResponse( @NotNull Call call, @NotNull Response response )
+                    if ( span != null )
                     {
-                        if ( span != null )
+                        if ( error != null )
+                        {
+                            span.setAttribute( "error.class", error.getClass().getSimpleName() );
+                            span.setAttribute( "error.message", error.getMessage() );
+                        }
+                        else
                         {
                             span.setAttribute( SemanticAttributes.HTTP_STATUS_CODE, response.code() );
                             span.setAttribute( SemanticAttributes.HTTP_RESPONSE_CONTENT_LENGTH.getKey(),
                                                response.header( "Content-Length" ) );
-
-                            // NOTE: Because we're doing this using a Future, we can't use try-with-resources/finally, as
-                            // the OTEL example shows.
-                            scope.close();
-                            span.end();
                         }
-                        logger.trace( "Success: " + call.request().url() + " -> " + response.code() );
-                        p.complete( response );
+
+                        // NOTE: Because the response arrives asynchronously, we can't use try-with-resources/finally,
+                        // as the OTEL example shows.
+                        scope.close();
+                        span.end();
+                    }
+                    if ( error != null )
+                    {
+                        logger.trace( "Failed: " + sent.url(), error );
+                    }
+                    else
+                    {
+                        logger.trace( "Success: " + sent.url() + " -> " + response.code() );
+                    }
+                } ).onCancellation().invoke( () -> {
+                    balancer.cancel( endpoint );
+                    breaker.onCancel( permit );
+                    if ( span != null )
+                    {
+                        span.setAttribute( "cancelled", true );
+                        scope.close();
+                        span.end();
                     }
                 } );
-            } ) );
+            } );
         }
 
-    }
 
-    private class RetryInterceptor
-                    implements Interceptor
-    {
-        private final int count;
+        /**
+         * The race of a call and its hedge. The first response wins, a late one is closed.
+         */
+        private final class HedgedCall
+        {
+            private final UniEmitter<? super Response> emitter;
 
-        private final long interval;
+            private volatile Cancellable primary;
 
-        private final long maxBackOff;
+            private volatile Cancellable backup;
 
-        RetryInterceptor( ProxyConfiguration.Retry retry )
-        {
-            this.count = retry == null || retry.count < 0 ? DEFAULT_RETRY_COUNT : retry.count;
-            this.interval = retry == null || retry.interval < 0 ? DEFAULT_BACKOFF_MILLIS : retry.interval;
-            this.maxBackOff = retry == null || retry.maxBackOff < 0 ? DEFAULT_MAX_BACKOFF_MILLIS : retry.maxBackOff;
-        }
+            private volatile long timer = -1;
 
-        @NotNull
-        @Override
-        public Response intercept( @NotNull Chain chain ) throws IOException
-        {
-            Request req = chain.request();
-            Response resp;
-            int tryCounter = 0;
-            long start = System.currentTimeMillis();
-            long backOff = 0l;
-            do
+            private int running;
+
+            private boolean done;
+
+            private HedgedCall( UniEmitter<? super Response> emitter )
             {
-                try
+                this.emitter = emitter;
+            }
+
+            private void start( long permit, long delay )
+            {
+                running = 1;
+                // on completion this cancels the loser, on cancellation both
+                emitter.onTermination( this::cancel );
+                primary = send( permit ).subscribe().with( this::onItem, this::onFailure );
+                timer = vertx.setTimer( Math.max( 1, delay ), id -> hedge() );
+            }
+
+            private void hedge()
+            {
+                synchronized ( this )
                 {
-                    resp = chain.proceed( req );
-                    if ( resp.code() < 500 )
+                    if ( done )
                     {
-                        return resp;
-                    }
-                    else
-                    {
-                        if ( tryCounter >= count )
-                        {
-                            return resp;
-                        }
-                        else
-                        {
-                            if ( otel.enabled() )
-                            {
-                                Span.current().setAttribute( "target.try." + tryCounter + ".status_code", resp.code() );
-                            }
-
-                            logger.debug( "TRY({}/{}): Response missing or indicates server error: {}. Retrying",
-                                          tryCounter, count, resp );
-                        }
+                        return;
                     }
                 }
-                catch ( IOException e )
+                if ( !hedgePolicy.tryHedge() )
                 {
-                    if ( tryCounter >= count )
-                    {
-                        throw e;
-                    }
-                    if ( otel.enabled() )
+                    logger.debug( "No hedge, over budget" );
+                    return;
+                }
+                long permit = breaker.acquire();
+                if ( permit == CircuitBreaker.REJECTED )
+                {
+                    return;
+                }
+                synchronized ( this )
+                {
+                    if ( done )
                     {
-                        Span.current().setAttribute( "target.try." + tryCounter + ".error_message", e.getMessage() );
-                        Span.current()
-                            .setAttribute( "target.try." + tryCounter + ".error_class", e.getClass().getSimpleName() );
+                        breaker.onCancel( permit );
+                        return;
                     }
-
-                    logger.debug( "TRY(" + tryCounter + "/" + count + "): Failed upstream request: " + req.url(), e );
+                    running++;
                 }
+                logger.debug( "Hedge after {}ms: {}", hedgePolicy.getDelayMillis(), requestBuilder.build().url() );
+                backup = send( permit ).subscribe().with( this::onItem, this::onFailure );
+            }
 
-                try
+            private void onItem( Response response )
+            {
+                synchronized ( this )
                 {
-                    Thread.sleep( interval );
-                    backOff = System.currentTimeMillis() - start;
+                    if ( done )
+                    {
+                        response.close();
+                        return;
+                    }
+                    done = true;
                 }
-                catch ( InterruptedException e )
+                emitter.complete( response );
+            }
+
+            private void onFailure( Throwable error )
+            {
+                synchronized ( this )
                 {
-                    if ( otel.enabled() )
+                    if ( done || --running > 0 )
                     {
-                        Span.current().setAttribute( "target.interrupted", 1 );
-                        Span.current().setAttribute( "target.try." + tryCounter + ".interrupted", 1 );
+                        // the other call may still answer
+                        return;
                     }
-
-                    return new Response.Builder().code( 502 )
-                                                 .message( "Thread interruption while waiting for upstream retry!" )
-                                                 .build();
+                    done = true;
                 }
-
-                tryCounter++;
+                emitter.fail( error );
             }
-            while ( tryCounter < count && backOff <= maxBackOff );
 
-            if ( otel.enabled() )
+            private void cancel()
             {
-                Span.current().setAttribute( "target.retries", tryCounter );
+                if ( timer >= 0 )
+                {
+                    vertx.cancelTimer( timer );
+                }
+                Cancellable c = primary;
+                if ( c != null )
+                {
+                    c.cancel();
+                }
+                c = backup;
+                if ( c != null )
+                {
+                    c.cancel();
+                }
             }
+        }
+    }
+
+    /**
+     * Exponential backoff with full jitter: the wait before each retry is random between zero and the doubled interval,
+     * capped at maxBackOff, so clients retrying after the same failure spread out instead of coming back in lockstep.
+     */
+    private final class RetryPolicy
+    {
+        private final int count;
+
+        private final long interval;
+
+        private final long maxBackOff;
+
+        RetryPolicy( ProxyConfiguration.Retry retry )
+        {
+            this.count = retry == null || retry.count < 0 ? DEFAULT_RETRY_COUNT : retry.count;
+            this.interval = retry == null || retry.interval < 0 ? DEFAULT_BACKOFF_MILLIS : retry.interval;
+            this.maxBackOff = retry == null || retry.maxBackOff < 0 ? DEFAULT_MAX_BACKOFF_MILLIS : retry.maxBackOff;
+        }
 
-            throw new IOException( "Proxy retry interceptor reached an unexpected fall-through condition!" );
+        long backOff( int tryCounter )
+        {
+            long ceiling = Math.min( maxBackOff, interval << Math.min( tryCounter, 30 ) );
+            return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong( ceiling + 1 );
         }
     }
 
-    private class DeleteInterceptor
-                    implements Interceptor
+    private static final class SpooledRequestBody
+                    extends RequestBody
     {
-        private final File bodyFile;
+        private final BodySpool spool;
+
+        private final MediaType contentType;
 
-        public DeleteInterceptor( File bodyFile )
+        private SpooledRequestBody( BodySpool spool, MediaType contentType )
         {
-            this.bodyFile = bodyFile;
+            this.spool = spool;
+            this.contentType = contentType;
         }
 
-        @NotNull
         @Override
-        public Response intercept( @NotNull Chain chain ) throws IOException
+        public MediaType contentType()
         {
-            try
-            {
-                if ( otel.enabled() )
-                {
-                    Span.current().setAttribute( "sidecar.target.bodyFile", bodyFile.getPath() );
-                }
+            return contentType;
+        }
 
-                return chain.proceed( chain.request() );
-            }
-            finally
+        @Override
+        public long contentLength()
+        {
+            return spool.length();
+        }
+
+        @Override
+        public void writeTo( @NotNull BufferedSink sink ) throws IOException
+        {
+            try (Source source = Okio.source( spool.openStream() ))
             {
-                logger.debug( "Deleting input post/put body tempfile: {}", bodyFile );
-                boolean deleted = Files.deleteIfExists( bodyFile.toPath() );
-                if ( !deleted )
-                {
-                    logger.trace( "Could not delete body input file: {}", bodyFile );
-                }
+                sink.writeAll( source );
             }
         }
     }
@@ -0,0 +1,488 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Read-only view of a zip archive that serves entries without extracting them. Only the central directory is read
+ * when the archive is opened; it is kept as a path index in memory. Entry data is read from a memory-mapped view of
+ * the file: stored entries are handed out as-is (see {@link #getDataOffset(Entry)} for sendfile), deflated entries are
+ * inflated while they are read. Zip64 archives are supported, multi-disk and encrypted archives are not.
+ */
+public class ZipArchive
+                implements Closeable
+{
+    public static final int STORED = 0;
+
+    public static final int DEFLATED = 8;
+
+    private static final int EOCD_SIG = 0x06054b50;
+
+    private static final int EOCD_SIZE = 22;
+
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+
+    private static final int CEN_SIG = 0x02014b50;
+
+    private static final int CEN_SIZE = 46;
+
+    private static final int LOC_SIG = 0x04034b50;
+
+    private static final int LOC_SIZE = 30;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private static final long SEGMENT_SIZE = 1L << 30; // 1G per mapping
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer[] segments;
+
+    private final Map<String, Entry> entries;
+
+    public ZipArchive( Path path ) throws IOException
+    {
+        this.file = path.toFile();
+        this.channel = FileChannel.open( path, StandardOpenOption.READ );
+        try
+        {
+            long size = channel.size();
+            this.segments = new MappedByteBuffer[(int) ( ( size + SEGMENT_SIZE - 1 ) / SEGMENT_SIZE )];
+            for ( int i = 0; i < segments.length; i++ )
+            {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( SEGMENT_SIZE, size - start ) );
+            }
+            this.entries = Collections.unmodifiableMap( readCentralDirectory( size ) );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public Optional<Entry> getEntry( String path )
+    {
+        return Optional.ofNullable( entries.get( normalize( path ) ) );
+    }
+
+    /**
+     * Offset of the first data byte of the entry in the archive file. The local header is only read on first access,
+     * so opening the archive never touches more than the central directory.
+     */
+    public long getDataOffset( Entry entry ) throws IOException
+    {
+        long offset = entry.dataOffset;
+        if ( offset < 0 )
+        {
+            ByteBuffer loc = read( entry.localHeaderOffset, LOC_SIZE );
+            if ( loc.getInt( 0 ) != LOC_SIG )
+            {
+                throw new ZipException( "Invalid local header for entry: " + entry.name );
+            }
+            offset = entry.localHeaderOffset + LOC_SIZE + u16( loc, 26 ) + u16( loc, 28 );
+            entry.dataOffset = offset;
+        }
+        return offset;
+    }
+
+    public InputStream openStream( Entry entry ) throws IOException
+    {
+        long offset = getDataOffset( entry );
+        InputStream raw = openRange( offset, entry.compressedSize );
+        if ( entry.method == STORED )
+        {
+            return raw;
+        }
+
+        // raw deflate needs one trailing dummy byte to signal the end of input
+        Inflater inflater = new Inflater( true );
+        return new InflaterInputStream( new SequenceInputStream( raw, new ByteArrayInputStream( new byte[1] ) ),
+                                        inflater, 8192 )
+        {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException
+            {
+                if ( !closed )
+                {
+                    closed = true;
+                    inflater.end();
+                    super.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    private InputStream openRange( long offset, long length ) throws IOException
+    {
+        int first = (int) ( offset / SEGMENT_SIZE );
+        int last = (int) ( ( offset + Math.max( length, 1 ) - 1 ) / SEGMENT_SIZE );
+        if ( offset + length > channel.size() )
+        {
+            throw new ZipException( "Entry data exceeds archive size" );
+        }
+        if ( first == last && first < segments.length )
+        {
+            ByteBuffer slice = segments[first].duplicate();
+            int start = (int) ( offset - first * SEGMENT_SIZE );
+            slice.position( start ).limit( start + (int) length );
+            return new ByteBufferInputStream( slice.slice() );
+        }
+        return new ChannelInputStream( channel, offset, length );
+    }
+
+    private Map<String, Entry> readCentralDirectory( long size ) throws IOException
+    {
+        if ( size < EOCD_SIZE )
+        {
+            throw new ZipException( "Not a zip archive: " + file );
+        }
+
+        int tailSize = (int) Math.min( size, EOCD_SIZE + MAX_COMMENT_SIZE + ZIP64_LOCATOR_SIZE );
+        long tailStart = size - tailSize;
+        ByteBuffer tail = read( tailStart, tailSize );
+        int eocd = -1;
+        for ( int i = tailSize - EOCD_SIZE; i >= 0; i-- )
+        {
+            if ( tail.getInt( i ) == EOCD_SIG )
+            {
+                eocd = i;
+                break;
+            }
+        }
+        if ( eocd < 0 )
+        {
+            throw new ZipException( "End of central directory not found: " + file );
+        }
+
+        long total = u16( tail, eocd + 10 );
+        long cenSize = u32( tail, eocd + 12 );
+        long cenOffset = u32( tail, eocd + 16 );
+
+        int locator = eocd - ZIP64_LOCATOR_SIZE;
+        if ( locator >= 0 && tail.getInt( locator ) == ZIP64_LOCATOR_SIG )
+        {
+            ByteBuffer eocd64 = read( tail.getLong( locator + 8 ), 56 );
+            if ( eocd64.getInt( 0 ) != ZIP64_EOCD_SIG )
+            {
+                throw new ZipException( "Invalid zip64 end of central directory: " + file );
+            }
+            total = eocd64.getLong( 32 );
+            cenSize = eocd64.getLong( 40 );
+            cenOffset = eocd64.getLong( 48 );
+        }
+
+        if ( cenSize > Integer.MAX_VALUE || cenOffset + cenSize > size )
+        {
+            throw new ZipException( "Invalid central directory: " + file );
+        }
+
+        ByteBuffer cen = read( cenOffset, (int) cenSize );
+        Map<String, Entry> result = new HashMap<>( (int) Math.min( total * 4 / 3 + 1, Integer.MAX_VALUE ) );
+        int pos = 0;
+        for ( long i = 0; i < total; i++ )
+        {
+            if ( pos + CEN_SIZE > cen.limit() || cen.getInt( pos ) != CEN_SIG )
+            {
+                throw new ZipException( "Invalid central directory header: " + file );
+            }
+
+            int flags = u16( cen, pos + 8 );
+            int method = u16( cen, pos + 10 );
+            long compressedSize = u32( cen, pos + 20 );
+            long uncompressedSize = u32( cen, pos + 24 );
+            int nameLen = u16( cen, pos + 28 );
+            int extraLen = u16( cen, pos + 30 );
+            int commentLen = u16( cen, pos + 32 );
+            long localHeaderOffset = u32( cen, pos + 42 );
+
+            byte[] nameBytes = new byte[nameLen];
+            cen.position( pos + CEN_SIZE );
+            cen.get( nameBytes );
+            String name = new String( nameBytes, UTF_8 );
+
+            int extra = pos + CEN_SIZE + nameLen;
+            int extraEnd = extra + extraLen;
+            while ( extra + 4 <= extraEnd )
+            {
+                int id = u16( cen, extra );
+                int len = u16( cen, extra + 2 );
+                if ( id == ZIP64_EXTRA_ID )
+                {
+                    int field = extra + 4;
+                    if ( uncompressedSize == ZIP64_MAGIC )
+                    {
+                        uncompressedSize = cen.getLong( field );
+                        field += 8;
+                    }
+                    if ( compressedSize == ZIP64_MAGIC )
+                    {
+                        compressedSize = cen.getLong( field );
+                        field += 8;
+                    }
+                    if ( localHeaderOffset == ZIP64_MAGIC )
+                    {
+                        localHeaderOffset = cen.getLong( field );
+                    }
+                }
+                extra += 4 + len;
+            }
+
+            boolean encrypted = ( flags & 1 ) != 0;
+            boolean directory = name.endsWith( "/" );
+            if ( !directory && !encrypted && ( method == STORED || method == DEFLATED ) )
+            {
+                Entry entry = new Entry( normalize( name ), method, compressedSize, uncompressedSize,
+                                         localHeaderOffset );
+                result.put( entry.name, entry );
+            }
+
+            pos += CEN_SIZE + nameLen + extraLen + commentLen;
+        }
+        return result;
+    }
+
+    private ByteBuffer read( long position, int length ) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+        while ( buf.hasRemaining() )
+        {
+            if ( channel.read( buf, position + buf.position() ) < 0 )
+            {
+                throw new EOFException( "Unexpected end of archive: " + file );
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static String normalize( String path )
+    {
+        int i = 0;
+        while ( i < path.length() && path.charAt( i ) == '/' )
+        {
+            i++;
+        }
+        return i == 0 ? path : path.substring( i );
+    }
+
+    private static int u16( ByteBuffer buf, int index )
+    {
+        return Short.toUnsignedInt( buf.getShort( index ) );
+    }
+
+    private static long u32( ByteBuffer buf, int index )
+    {
+        return Integer.toUnsignedLong( buf.getInt( index ) );
+    }
+
+    public static final class Entry
+    {
+        private final String name;
+
+        private final int method;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final long localHeaderOffset;
+
+        private volatile long dataOffset = -1;
+
+        private Entry( String name, int method, long compressedSize, long size, long localHeaderOffset )
+        {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public boolean isStored()
+        {
+            return method == STORED;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getCompressedSize()
+        {
+            return compressedSize;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Entry{" + "name='" + name + '\'' + ", method=" + method + ", compressedSize=" + compressedSize
+                            + ", size=" + size + '}';
+        }
+    }
+
+    private static final class ByteBufferInputStream
+                    extends InputStream
+    {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream( ByteBuffer buf )
+        {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read()
+        {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len )
+        {
+            if ( len == 0 )
+            {
+                return 0;
+            }
+            if ( !buf.hasRemaining() )
+            {
+                return -1;
+            }
+            int n = Math.min( len, buf.remaining() );
+            buf.get( b, off, n );
+            return n;
+        }
+
+        @Override
+        public long skip( long n )
+        {
+            int skipped = (int) Math.max( 0, Math.min( n, buf.remaining() ) );
+            buf.position( buf.position() + skipped );
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * Positional reads for the rare entry that spans two mapped segments.
+     */
+    private static final class ChannelInputStream
+                    extends InputStream
+    {
+        private final FileChannel channel;
+
+        private long position;
+
+        private long remaining;
+
+        ChannelInputStream( FileChannel channel, long position, long length )
+        {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if ( len == 0 )
+            {
+                return 0;
+            }
+            if ( remaining <= 0 )
+            {
+                return -1;
+            }
+            int n = channel.read( ByteBuffer.wrap( b, off, (int) Math.min( len, remaining ) ), position );
+            if ( n < 0 )
+            {
+                throw new EOFException( "Unexpected end of archive" );
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.config;
+
+import io.vertx.mutiny.core.Vertx;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ProxyConfigurationTest
+{
+    private static final String FIRST = "proxy:\n  read-timeout: 30s\n  retry:\n    count: 3\n  services:\n"
+                    + "    - host: indy\n      port: 80\n      path-pattern: /api/.+\n"
+                    + "    - host: indy\n      port: 80\n      path-pattern: /foo/.+\n";
+
+    private static final String SECOND = "proxy:\n  services:\n"
+                    + "    - host: indy-2\n      port: 8080\n      path-pattern: /api/.+\n";
+
+    private final Vertx vertx = Vertx.vertx();
+
+    @AfterEach
+    public void teardown()
+    {
+        vertx.closeAndAwait();
+    }
+
+    @Test
+    public void testReloadPublishesNewSnapshot()
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.bus = vertx.eventBus();
+
+        config.doLoad( new ByteArrayInputStream( FIRST.getBytes( UTF_8 ) ) );
+        ProxyConfiguration.Snapshot first = config.getSnapshot();
+        assertEquals( "30s", first.getReadTimeout() );
+        assertEquals( 3, first.getRetry().count );
+        assertEquals( 2, first.getServices().size() );
+
+        config.doLoad( new ByteArrayInputStream( SECOND.getBytes( UTF_8 ) ) );
+        ProxyConfiguration.Snapshot second = config.getSnapshot();
+        assertNotSame( first, second );
+
+        // the snapshot readers hold on to is left as it was
+        assertEquals( 3, first.getRetry().count );
+        assertEquals( "indy", first.getServices().get( 0 ).host );
+
+        // the new yaml replaces the whole config, what is left out of it is gone
+        assertNull( second.getReadTimeout() );
+        assertEquals( -1, second.getRetry().count );
+        assertEquals( 1, second.getServices().size() );
+        assertEquals( "indy-2", second.getServices().get( 0 ).host );
+        assertEquals( "/api/.+", second.getServices().get( 0 ).pathPattern );
+    }
+
+    @Test
+    public void testSnapshotNotChangedByItsUsers()
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.bus = vertx.eventBus();
+        config.doLoad( new ByteArrayInputStream( FIRST.getBytes( UTF_8 ) ) );
+        ProxyConfiguration.Snapshot snapshot = config.getSnapshot();
+
+        snapshot.getRetry().count = 10;
+        assertEquals( 3, snapshot.getRetry().count );
+        assertThrows( UnsupportedOperationException.class, () -> snapshot.getServices().clear() );
+        assertEquals( 2, snapshot.getServices().size() );
+    }
+
+    @Test
+    public void testMappedConfigHasSnapshot()
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        assertEquals( 0, config.getServices().size() );
+        assertNull( config.getReadTimeout() );
+    }
+}
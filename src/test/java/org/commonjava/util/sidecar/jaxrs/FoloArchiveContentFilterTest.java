@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.jaxrs;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.vertx.mutiny.core.eventbus.EventBus;
+import io.vertx.mutiny.core.eventbus.MessageConsumer;
+import org.commonjava.util.sidecar.jaxrs.mock.MockTestProfile;
+import org.junit.jupiter.api.Test;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static io.restassured.RestAssured.given;
+import static javax.ws.rs.core.Response.Status.OK;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.FOLO_BUILD;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@QuarkusTest
+@TestProfile( MockTestProfile.class )
+public class FoloArchiveContentFilterTest
+{
+    private static final String PATH = "org/apache/maven/maven-core/3.0/maven-core-3.0.jar";
+
+    @Inject
+    EventBus bus;
+
+    @Test
+    public void testArchivedFileSent() throws Exception
+    {
+        BlockingQueue<String> tracked = new LinkedBlockingQueue<>();
+        MessageConsumer<String> consumer = bus.<String>consumer( FOLO_BUILD ).handler( m -> tracked.add( m.body() ) );
+        try
+        {
+            byte[] body = given().when()
+                                 .get( "/api/folo/track/2021/maven/group/repo1/" + PATH )
+                                 .then()
+                                 .statusCode( OK.getStatusCode() )
+                                 .extract()
+                                 .asByteArray();
+
+            assertArrayEquals( Files.readAllBytes( new File( DEFAULT_REPO_PATH, PATH ).toPath() ), body );
+            assertEquals( PATH, tracked.poll( 5, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            consumer.unregisterAndAwait();
+        }
+    }
+}
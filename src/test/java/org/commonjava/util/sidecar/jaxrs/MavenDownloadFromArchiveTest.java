@@ -21,8 +21,21 @@ import org.commonjava.util.sidecar.jaxrs.mock.MockTestProfile;
 import org.junit.jupiter.api.Test;
 
 import static io.restassured.RestAssured.given;
+import static org.apache.commons.codec.digest.DigestUtils.md5Hex;
+import static org.apache.commons.codec.digest.DigestUtils.sha1Hex;
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.commonjava.util.sidecar.jaxrs.mock.MockArchiveRetrieveService.POM;
+import static org.commonjava.util.sidecar.jaxrs.mock.MockReportService.JAR_SHA256;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.NOT_MODIFIED;
 import static javax.ws.rs.core.Response.Status.OK;
+import static javax.ws.rs.core.Response.Status.PARTIAL_CONTENT;
+import static javax.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 
 @QuarkusTest
 @TestProfile( MockTestProfile.class )
@@ -48,6 +61,115 @@ public class MavenDownloadFromArchiveTest
                .statusCode( OK.getStatusCode() );
     }
 
+    @Test
+    public void testRangeDownload()
+    {
+        given().header( "Range", "bytes=0-99" )
+               .when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.jar" )
+               .then()
+               .statusCode( PARTIAL_CONTENT.getStatusCode() )
+               .header( "Content-Length", "100" )
+               .header( "Content-Range", startsWith( "bytes 0-99/" ) );
+
+        given().header( "Range", "bytes=100000000-" )
+               .when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.jar" )
+               .then()
+               .statusCode( REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode() );
+    }
+
+    @Test
+    public void testConditionalDownload()
+    {
+        given().header( "If-Modified-Since", "Fri, 01 Jan 2100 00:00:00 GMT" )
+               .when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.jar" )
+               .then()
+               .statusCode( NOT_MODIFIED.getStatusCode() );
+    }
+
+    @Test
+    public void testEntityTagOfBlob()
+    {
+        String etag = "\"" + sha256Hex( POM ) + "\"";
+        given().when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.pom" )
+               .then()
+               .statusCode( OK.getStatusCode() )
+               .header( "ETag", etag )
+               .body( equalTo( POM ) );
+
+        given().header( "If-None-Match", etag )
+               .when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.pom" )
+               .then()
+               .statusCode( NOT_MODIFIED.getStatusCode() )
+               .header( "ETag", etag );
+
+        given().header( "Range", "bytes=0-8" )
+               .header( "If-Range", etag )
+               .when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.pom" )
+               .then()
+               .statusCode( PARTIAL_CONTENT.getStatusCode() )
+               .body( equalTo( POM.substring( 0, 9 ) ) );
+    }
+
+    @Test
+    public void testNoEntityTagOfExtractedFile()
+    {
+        // the report's digest of the jar doesn't match the extracted file, it must not validate it
+        given().when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.jar" )
+               .then()
+               .statusCode( OK.getStatusCode() )
+               .header( "ETag", nullValue() );
+
+        given().header( "If-None-Match", "\"" + JAR_SHA256 + "\"" )
+               .when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.jar" )
+               .then()
+               .statusCode( OK.getStatusCode() );
+    }
+
+    @Test
+    public void testHeadFromLocalRepository()
+    {
+        given().when()
+               .head( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.jar" )
+               .then()
+               .statusCode( OK.getStatusCode() )
+               .header( "Content-Length", notNullValue() )
+               .header( "Last-Modified", notNullValue() )
+               .header( "X-Checksum-Sha256", nullValue() );
+    }
+
+    @Test
+    public void testHeadChecksums()
+    {
+        given().when()
+               .head( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.pom" )
+               .then()
+               .statusCode( OK.getStatusCode() )
+               .header( "Content-Length", String.valueOf( POM.length() ) )
+               .header( "ETag", "\"" + sha256Hex( POM ) + "\"" )
+               .header( "X-Checksum-Md5", md5Hex( POM ) )
+               .header( "X-Checksum-Sha1", sha1Hex( POM ) )
+               .header( "X-Checksum-Sha256", sha256Hex( POM ) );
+    }
+
+    @Test
+    public void testHeadNotFromReport()
+    {
+        // only the report knows it, so the sidecar has nothing to describe
+        given().when()
+               .head( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.1/maven-core-3.1.jar" )
+               .then()
+               .statusCode( not( OK.getStatusCode() ) )
+               .header( "X-Checksum-Sha256", nullValue() );
+    }
+
     @Test
     public void testDownloadNotFound()
     {
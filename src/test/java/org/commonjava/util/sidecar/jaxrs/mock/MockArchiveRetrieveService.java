@@ -24,6 +24,8 @@ import javax.enterprise.inject.Alternative;
 import java.io.File;
 import java.io.IOException;
 
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.commonjava.util.sidecar.services.ContentAddressableStore.BLOBS_DIR;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
 import static org.commonjava.util.sidecar.util.TestUtil.SIZE_50K;
 import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
@@ -33,6 +35,10 @@ import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
 public class MockArchiveRetrieveService
                 extends ArchiveRetrieveService
 {
+    public static final String POM_PATH = "org/apache/maven/maven-core/3.0/maven-core-3.0.pom";
+
+    public static final String POM = "<project><artifactId>maven-core</artifactId><version>3.0</version></project>";
+
     @Override
     @PostConstruct
     public void init()
@@ -62,6 +68,11 @@ public class MockArchiveRetrieveService
             File npmMetadata = new File( DEFAULT_REPO_PATH + npmMetaPath );
             new File( npmMetadata.getParent() ).mkdirs();
             FileUtils.write( npmMetadata, new String( getBytes( SIZE_50K ) ), "UTF-8" );
+
+            // stored as a blob, which the historical report maps the path to
+            String pomDigest = sha256Hex( POM );
+            File pom = new File( DEFAULT_REPO_PATH, BLOBS_DIR + "/" + pomDigest.substring( 0, 2 ) + "/" + pomDigest );
+            FileUtils.write( pom, POM, "UTF-8" );
         }
         catch ( IOException e )
         {
@@ -69,6 +80,12 @@ public class MockArchiveRetrieveService
         }
     }
 
+    @Override
+    public boolean isContentAddressable()
+    {
+        return true;
+    }
+
     @Override
     public String getBuildConfigId()
     {
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.jaxrs.mock;
+
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.commonjava.util.sidecar.services.ReportService;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Alternative;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.apache.commons.codec.digest.DigestUtils.md5Hex;
+import static org.apache.commons.codec.digest.DigestUtils.sha1Hex;
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.commonjava.util.sidecar.jaxrs.mock.MockArchiveRetrieveService.POM;
+import static org.commonjava.util.sidecar.jaxrs.mock.MockArchiveRetrieveService.POM_PATH;
+
+@ApplicationScoped
+@Alternative
+public class MockReportService
+                extends ReportService
+{
+    public static final String JAR_PATH = "org/apache/maven/maven-core/3.0/maven-core-3.0.jar";
+
+    // the extracted jar differs from what the report recorded for it
+    public static final String JAR_SHA256 = sha256Hex( "not the extracted jar" );
+
+    // neither the local repository nor an archive has it
+    public static final String REPORT_ONLY_PATH = "org/apache/maven/maven-core/3.1/maven-core-3.1.jar";
+
+    private final Map<String, HistoricalEntryDTO> entries =
+                    Map.of( POM_PATH, entry( POM_PATH, md5Hex( POM ), sha1Hex( POM ), sha256Hex( POM ) ), JAR_PATH,
+                            entry( JAR_PATH, null, null, JAR_SHA256 ), REPORT_ONLY_PATH,
+                            entry( REPORT_ONLY_PATH, md5Hex( REPORT_ONLY_PATH ), sha1Hex( REPORT_ONLY_PATH ),
+                                   sha256Hex( REPORT_ONLY_PATH ) ) );
+
+    @Override
+    public Optional<HistoricalEntryDTO> getHistoricalEntry( String path )
+    {
+        return Optional.ofNullable( entries.get( path.replaceFirst( "^/+", "" ) ) );
+    }
+
+    private static HistoricalEntryDTO entry( String path, String md5, String sha1, String sha256 )
+    {
+        HistoricalEntryDTO entry = new HistoricalEntryDTO( null, "/" + path );
+        entry.setMd5( md5 );
+        entry.setSha1( sha1 );
+        entry.setSha256( sha256 );
+        entry.setSize( 100L );
+        return entry;
+    }
+}
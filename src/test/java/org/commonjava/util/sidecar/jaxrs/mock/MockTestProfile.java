@@ -27,6 +27,6 @@ public class MockTestProfile
     @Override
     public Set<Class<?>> getEnabledAlternatives()
     {
-        return Stream.of( MockArchiveRetrieveService.class ).collect( Collectors.toSet() );
+        return Stream.of( MockArchiveRetrieveService.class, MockReportService.class ).collect( Collectors.toSet() );
     }
 }
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.util.ZipArchive;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ArchivePreSeedTest
+{
+    private static final String BUILD_ID = "3000";
+
+    private static final String SMALL_PATH = "org/foo/bar/1.0/bar-1.0.pom";
+
+    private static final String LARGE_PATH = "org/foo/bar/1.0/bar-1.0.jar";
+
+    private static final String COPY_PATH = "org/foo/baz/1.0/baz-1.0.jar";
+
+    private final byte[] small = getBytes( 1024 );
+
+    private final byte[] large = getBytes( 5 * 1024 * 1024 );
+
+    private HttpServer server;
+
+    private File repo;
+
+    private ArchiveRetrieveService service;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        byte[] archive = zip();
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( "/api/archive/" + BUILD_ID, exchange -> {
+            exchange.sendResponseHeaders( 200, archive.length );
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write( archive );
+            }
+        } );
+        server.start();
+
+        repo = Files.createTempDirectory( "pre-seed" ).toFile();
+        SidecarConfig config = new SidecarConfig();
+        config.archiveApi = Optional.of( "http://localhost:" + server.getAddress().getPort() + "/api/archive" );
+        config.localRepository = Optional.of( repo.getPath() );
+        config.archiveMode = Optional.empty();
+        config.archiveExtractWorkers = Optional.of( 2 );
+        config.contentAddressable = Optional.empty();
+        config.proxyCacheSize = Optional.empty();
+
+        service = new ArchiveRetrieveService()
+        {
+            @Override
+            public String getBuildConfigId()
+            {
+                return BUILD_ID;
+            }
+        };
+        service.sidecarConfig = config;
+        service.reportService = new ReportService();
+        service.init();
+    }
+
+    @AfterEach
+    public void teardown() throws IOException
+    {
+        server.stop( 0 );
+        FileUtils.deleteDirectory( repo );
+    }
+
+    @Test
+    public void testArchiveExtractedIntoLocalRepository() throws IOException
+    {
+        service.preSeed();
+
+        assertArrayEquals( small, Files.readAllBytes( new File( repo, SMALL_PATH ).toPath() ) );
+        assertArrayEquals( large, Files.readAllBytes( new File( repo, LARGE_PATH ).toPath() ) );
+        assertTrue( service.getLocally( LARGE_PATH ).isPresent() );
+        assertFalse( new File( repo, "../escaped" ).exists() );
+        assertFalse( new File( repo, LARGE_PATH + ".part" ).exists() );
+    }
+
+    @Test
+    public void testArchiveIndexedInDirectMode() throws IOException
+    {
+        service.sidecarConfig.archiveMode = Optional.of( "direct" );
+        service.preSeed();
+
+        assertFalse( new File( repo, LARGE_PATH ).exists() );
+        ZipArchive archive = service.getArchive().get();
+        try (InputStream in = archive.openStream( archive.getEntry( LARGE_PATH ).get() ))
+        {
+            assertArrayEquals( large, IOUtils.toByteArray( in ) );
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testArchiveDeduplicatedInContentAddressableMode() throws IOException
+    {
+        service.sidecarConfig.contentAddressable = Optional.of( true );
+        service.preSeed();
+
+        assertFalse( new File( repo, LARGE_PATH ).exists() );
+        File jar = service.getLocally( LARGE_PATH ).get();
+        assertEquals( jar, service.getLocally( "/" + COPY_PATH ).get() );
+        assertArrayEquals( large, Files.readAllBytes( jar.toPath() ) );
+        assertArrayEquals( small, Files.readAllBytes( service.getLocally( SMALL_PATH ).get().toPath() ) );
+
+        File[] blobDirs = new File( repo, ContentAddressableStore.BLOBS_DIR ).listFiles();
+        int blobs = 0;
+        for ( File dir : blobDirs )
+        {
+            blobs += dir.list().length;
+        }
+        assertEquals( 2, blobs );
+    }
+
+    private byte[] zip() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream( bytes ))
+        {
+            zip.putNextEntry( new ZipEntry( "org/foo/bar/1.0/" ) );
+            zip.putNextEntry( new ZipEntry( SMALL_PATH ) );
+            zip.write( small );
+            zip.putNextEntry( new ZipEntry( LARGE_PATH ) );
+            zip.write( large );
+            zip.putNextEntry( new ZipEntry( COPY_PATH ) );
+            zip.write( large );
+            zip.putNextEntry( new ZipEntry( "../escaped" ) );
+            zip.write( small );
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.exception.ServiceNotFoundException;
+import org.commonjava.util.sidecar.util.OtelAdapter;
+import org.commonjava.util.sidecar.util.WebClientAdapter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClassifierTest
+{
+    private Classifier classifier;
+
+    @BeforeEach
+    public void setup()
+    {
+        classifier = new Classifier();
+        classifier.otel = new OtelAdapter();
+        classifier.vertx = Vertx.vertx();
+        classifier.proxyConfiguration = config( "indy", "indy" );
+        classifier.init();
+    }
+
+    @AfterEach
+    public void teardown()
+    {
+        classifier.destroy();
+        classifier.vertx.close();
+    }
+
+    @Test
+    public void testUnchangedServiceKeepsClient() throws Exception
+    {
+        WebClientAdapter api = client( "/api/foo" );
+        WebClientAdapter other = client( "/other/foo" );
+        assertNotSame( api, other );
+
+        classifier.proxyConfiguration = config( "indy", "indy-2" );
+        classifier.handleConfigChange( "" );
+
+        assertSame( api, client( "/api/foo" ) );
+        WebClientAdapter changed = client( "/other/foo" );
+        assertNotSame( other, changed );
+        assertEquals( "indy-2", changed.getServiceConfig().host );
+        assertEquals( 2, classifier.getClients().size() );
+    }
+
+    @Test
+    public void testRemovedServiceNoLongerRouted() throws Exception
+    {
+        WebClientAdapter api = client( "/api/foo" );
+        WebClientAdapter other = client( "/other/foo" );
+
+        classifier.proxyConfiguration = new JsonObject().put( "read-timeout", "30s" )
+                                                        .put( "services", new JsonArray().add(
+                                                                        service( "indy", "/api/.+" ) ) )
+                                                        .mapTo( ProxyConfiguration.class );
+        classifier.handleConfigChange( "" );
+
+        assertSame( api, client( "/api/foo" ) );
+        assertThrows( ServiceNotFoundException.class, () -> client( "/other/foo" ) );
+        assertEquals( 1, classifier.getClients().size() );
+        assertFalse( classifier.getClients().contains( other ) );
+    }
+
+    @Test
+    public void testNoClientForServiceRemovedMeanwhile()
+    {
+        ProxyConfiguration before = config( "indy", "indy" );
+        ProxyConfiguration after = new JsonObject().put( "services", new JsonArray().add( service( "indy", "/api/.+" ) ) )
+                                                   .mapTo( ProxyConfiguration.class );
+        // the request is routed with the config as it was, and the reload lands before its client is created
+        AtomicInteger reads = new AtomicInteger();
+        classifier.proxyConfiguration = new ProxyConfiguration()
+        {
+            @Override
+            public Snapshot getSnapshot()
+            {
+                return reads.getAndIncrement() == 0 ? before.getSnapshot() : after.getSnapshot();
+            }
+        };
+
+        assertThrows( ServiceNotFoundException.class, () -> client( "/other/foo" ) );
+        assertTrue( classifier.getClients().isEmpty() );
+    }
+
+    private WebClientAdapter client( String path ) throws Exception
+    {
+        return classifier.classifyAnd( path, HttpMethod.GET, ( client, service ) -> client );
+    }
+
+    private static ProxyConfiguration config( String apiHost, String otherHost )
+    {
+        JsonArray services = new JsonArray().add( service( apiHost, "/api/.+" ) )
+                                            .add( service( otherHost, "/other/.+" ) );
+        return new JsonObject().put( "read-timeout", "30s" )
+                               .put( "services", services )
+                               .mapTo( ProxyConfiguration.class );
+    }
+
+    private static JsonObject service( String host, String pathPattern )
+    {
+        return new JsonObject().put( "host", host ).put( "port", 80 ).put( "path-pattern", pathPattern );
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ContentAddressableStoreTest
+{
+    private Path root;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        root = Files.createTempDirectory( "cas" );
+    }
+
+    @AfterEach
+    public void teardown() throws IOException
+    {
+        FileUtils.deleteDirectory( root.toFile() );
+    }
+
+    @Test
+    public void testMissAnsweredFromIndexOnceComplete() throws IOException
+    {
+        byte[] content = "foo".getBytes();
+        String digest = new ContentAddressableStore( root ).store( "foo.jar", new ByteArrayInputStream( content ) );
+        assertEquals( sha256Hex( content ), digest );
+
+        ContentAddressableStore store = new ContentAddressableStore( root );
+        store.rebuild();
+        assertTrue( store.hasBlob( digest ) );
+        assertTrue( store.lookup( "bar.jar", p -> digest ).isPresent() );
+
+        // a blob that shows up behind the store's back is not stat'ed for
+        String other = sha256Hex( "bar" );
+        Path blob = root.resolve( ContentAddressableStore.BLOBS_DIR ).resolve( other.substring( 0, 2 ) ).resolve( other );
+        Files.createDirectories( blob.getParent() );
+        Files.write( blob, "bar".getBytes() );
+        assertFalse( store.hasBlob( other ) );
+        assertFalse( store.lookup( "baz.jar", p -> other ).isPresent() );
+
+        // until the index is complete it is
+        assertTrue( new ContentAddressableStore( root ).hasBlob( other ) );
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.dto.HistoricalContentDTO;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class HistoricalContentIndexTest
+{
+    private static final int BENCH_ENTRIES = 150000;
+
+    private static final String SHA256 = "ba03294ee53e7ba31838e4950f280d033c7744c6c7b31253afc75aa351fbd989";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private Path report;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        report = Files.createTempFile( "historical-", ".json" );
+    }
+
+    @AfterEach
+    public void teardown() throws IOException
+    {
+        Files.deleteIfExists( report );
+    }
+
+    @Test
+    public void testLoad() throws IOException
+    {
+        Files.writeString( report, "{\"buildConfigId\":\"9000\",\"extra\":{\"a\":[1,2]},\"downloads\":[{\n"
+                        + "  \"storeKey\" : \"maven:hosted:shared-imports\",\n"
+                        + "  \"path\" : \"/org/apache/maven/maven-core/3.0/maven-core-3.0.jar\",\n"
+                        + "  \"md5\" : \"9BD377874764A4FAD7209021ABFE7CF7\",\n" + "  \"sha256\" : \"" + SHA256
+                        + "\",\n" + "  \"sha1\" : \"73728ce32c9016c8bd05584301fa3ba3a6f5d20a\",\n"
+                        + "  \"size\" : 527040,\n" + "  \"unknown\" : [ {} ]\n" + "}, {\n"
+                        + "  \"storeKey\" : { \"packageType\" : \"maven\", \"type\" : \"hosted\", \"name\" : "
+                        + "\"shared-imports\" },\n" + "  \"path\" : \"org/foo/bar/1.0/bar-1.0.pom\",\n"
+                        + "  \"sha1\" : \"not-a-digest\",\n" + "  \"originUrl\" : null\n" + "}]}" );
+
+        HistoricalContentIndex index = new HistoricalContentIndex();
+        assertEquals( 2, index.load( mapper.getFactory(), report ) );
+
+        HistoricalEntryDTO jar = index.get( "org/apache/maven/maven-core/3.0/maven-core-3.0.jar" ).get();
+        assertEquals( "/org/apache/maven/maven-core/3.0/maven-core-3.0.jar", jar.getPath() );
+        assertEquals( new StoreKey( "maven", StoreType.hosted, "shared-imports" ), jar.getStoreKey() );
+        assertEquals( "9bd377874764a4fad7209021abfe7cf7", jar.getMd5() );
+        assertEquals( SHA256, jar.getSha256() );
+        assertEquals( 527040L, jar.getSize() );
+
+        HistoricalEntryDTO pom = index.get( "/org/foo/bar/1.0/bar-1.0.pom" ).get();
+        assertSame( jar.getStoreKey(), pom.getStoreKey() );
+        assertNull( pom.getSha1() );
+        assertNull( pom.getSize() );
+        assertFalse( index.get( "/org/foo/bar/1.0/bar-1.0.jar" ).isPresent() );
+    }
+
+    /**
+     * Compares load time and retained heap of the streaming index against the DTO tree plus map it replaces, over a
+     * 150k entry report. Run with <code>mvn test -Dtest=HistoricalContentIndexTest -Dbenchmark=true</code>.
+     */
+    @Test
+    @EnabledIfSystemProperty( named = "benchmark", matches = "true" )
+    public void benchmarkLoad() throws IOException
+    {
+        try (BufferedWriter writer = Files.newBufferedWriter( report ))
+        {
+            writer.write( "{\"buildConfigId\":\"9000\",\"downloads\":[" );
+            for ( int i = 0; i < BENCH_ENTRIES; i++ )
+            {
+                writer.write( String.format( "%s{\"storeKey\":\"maven:remote:repo-%d\",\"path\":\"/org/bench/a%d/%d/a-%d.jar\","
+                                                             + "\"md5\":\"%032x\",\"sha1\":\"%040x\",\"sha256\":\"%064x\","
+                                                             + "\"size\":%d,\"originUrl\":\"http://repo/org/bench/a-%d.jar\"}",
+                                             i == 0 ? "" : ",", i % 20, i % 100, i, i, i, i, i, i, i ) );
+            }
+            writer.write( "]}" );
+        }
+
+        for ( int round = 0; round < 3; round++ )
+        {
+            long base = usedHeap();
+            long start = System.nanoTime();
+            HistoricalContentDTO content = mapper.readValue( Files.readString( report ), HistoricalContentDTO.class );
+            Map<String, HistoricalEntryDTO> map = new HashMap<>();
+            for ( HistoricalEntryDTO download : content.getDownloads() )
+            {
+                map.put( download.getPath(), download );
+            }
+            long treeMillis = ( System.nanoTime() - start ) / 1_000_000;
+            content = null;
+            long treeHeap = usedHeap() - base;
+            assertEquals( BENCH_ENTRIES, map.size() );
+            map = null;
+
+            base = usedHeap();
+            start = System.nanoTime();
+            HistoricalContentIndex index = new HistoricalContentIndex();
+            index.load( mapper.getFactory(), report );
+            long indexMillis = ( System.nanoTime() - start ) / 1_000_000;
+            long indexHeap = usedHeap() - base;
+            assertEquals( BENCH_ENTRIES, index.size() );
+
+            System.out.printf( "Round %d, %d entries: DTO tree %dms %dKB retained, index %dms %dKB retained%n", round,
+                               BENCH_ENTRIES, treeMillis, treeHeap / 1024, indexMillis, indexHeap / 1024 );
+        }
+    }
+
+    private static long usedHeap()
+    {
+        for ( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
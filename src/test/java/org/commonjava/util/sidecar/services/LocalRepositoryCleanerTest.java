@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LocalRepositoryCleanerTest
+{
+    private Path root;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        root = Files.createTempDirectory( "local-cleanup" );
+    }
+
+    @AfterEach
+    public void teardown() throws IOException
+    {
+        FileUtils.deleteDirectory( root.toFile() );
+    }
+
+    @Test
+    public void testCleanup() throws IOException
+    {
+        for ( int i = 0; i < 100; i++ )
+        {
+            write( String.format( "org/foo/a%d/1.0/a%d-1.0.jar", i % 10, i ) );
+        }
+        write( "3000" );
+        write( ".trash-1/org/bar/bar-1.0.jar" );
+
+        LocalRepositoryCleaner cleaner = new LocalRepositoryCleaner( root, 4 );
+        Path trash = cleaner.moveToTrash().get();
+        assertFalse( Files.exists( root.resolve( "org" ) ) );
+        assertTrue( Files.exists( trash.resolve( "org/foo/a1/1.0/a1-1.0.jar" ) ) );
+
+        // the crashed run's trash is found with the new one
+        List<Path> found = cleaner.findTrash();
+        assertEquals( 2, found.size() );
+        assertTrue( cleaner.delete( found, 1, TimeUnit.MINUTES ) );
+        assertEquals( 0, root.toFile().list().length );
+        assertFalse( cleaner.moveToTrash().isPresent() );
+    }
+
+    private void write( String path ) throws IOException
+    {
+        Path file = root.resolve( path );
+        Files.createDirectories( file.getParent() );
+        Files.write( file, new byte[] { 1 } );
+    }
+}
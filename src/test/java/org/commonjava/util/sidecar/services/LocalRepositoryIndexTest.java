@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LocalRepositoryIndexTest
+{
+    private static final int BENCH_ENTRIES = 50000;
+
+    private static final int BENCH_ROUNDS = 5;
+
+    private Path root;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        root = Files.createTempDirectory( "local-index" );
+    }
+
+    @AfterEach
+    public void teardown() throws IOException
+    {
+        FileUtils.deleteDirectory( root.toFile() );
+    }
+
+    @Test
+    public void testLookup() throws IOException
+    {
+        write( "org/foo/bar/1.0/bar-1.0.jar" );
+        write( "org/foo/bar/1.0/bar-1.0.jar.part" );
+        write( ".trash-1/org/foo/bar/1.0/bar-1.0.pom" );
+        LocalRepositoryIndex index = new LocalRepositoryIndex( root );
+
+        // not walked yet, content on disk is found and remembered
+        assertFalse( index.isComplete() );
+        assertTrue( index.lookup( "org/foo/bar/1.0/bar-1.0.jar" ).isPresent() );
+        assertTrue( index.contains( "org/foo/bar/1.0/bar-1.0.jar" ) );
+
+        index.rebuild( ".part" );
+        assertTrue( index.isComplete() );
+        assertEquals( 1, index.size() );
+        assertFalse( Files.exists( root.resolve( "org/foo/bar/1.0/bar-1.0.jar.part" ) ) );
+        assertTrue( index.lookup( "/org/foo/bar/1.0/bar-1.0.jar" ).isPresent() );
+        assertFalse( index.lookup( "../local-index/org/foo/bar/1.0/bar-1.0.jar" ).isPresent() );
+
+        // walked, a miss no longer touches the file system
+        write( "org/foo/bar/1.2/bar-1.2.jar" );
+        assertFalse( index.lookup( "org/foo/bar/1.2/bar-1.2.jar" ).isPresent() );
+        index.addFile( root.resolve( "org/foo/bar/1.2/bar-1.2.jar" ) );
+        assertTrue( index.lookup( "org/foo/bar/1.2/bar-1.2.jar" ).isPresent() );
+    }
+
+    @Test
+    public void testCompleteWithoutRepository() throws IOException
+    {
+        LocalRepositoryIndex index = new LocalRepositoryIndex( root.resolve( "missing" ) );
+        index.rebuild( ".part" );
+        assertTrue( index.isComplete() );
+        assertEquals( 0, index.size() );
+    }
+
+    /**
+     * Compares index lookups against the stat based lookup it replaces, half hits and half misses over 50k paths. Run
+     * with <code>mvn test -Dtest=LocalRepositoryIndexTest -Dbenchmark=true</code>.
+     */
+    @Test
+    @EnabledIfSystemProperty( named = "benchmark", matches = "true" )
+    public void benchmarkLookup() throws IOException
+    {
+        String[] paths = new String[BENCH_ENTRIES * 2];
+        for ( int i = 0; i < BENCH_ENTRIES; i++ )
+        {
+            paths[i * 2] = String.format( "org/bench/a%d/%d/a-%d.jar", i % 100, i, i );
+            paths[i * 2 + 1] = String.format( "org/bench/a%d/%d/a-%d.pom", i % 100, i, i );
+            write( paths[i * 2] );
+        }
+
+        LocalRepositoryIndex index = new LocalRepositoryIndex( root );
+        long start = System.nanoTime();
+        index.rebuild( ".part" );
+        System.out.printf( "Index build: %d entries in %dms%n", index.size(),
+                           ( System.nanoTime() - start ) / 1_000_000 );
+
+        for ( int round = 0; round < BENCH_ROUNDS; round++ )
+        {
+            int statHits = 0;
+            start = System.nanoTime();
+            for ( String path : paths )
+            {
+                File file = new File( root.toString() + File.separator + path );
+                if ( file.exists() && file.isFile() )
+                {
+                    statHits++;
+                }
+            }
+            long statNanos = System.nanoTime() - start;
+
+            int indexHits = 0;
+            start = System.nanoTime();
+            for ( String path : paths )
+            {
+                if ( index.lookup( path ).isPresent() )
+                {
+                    indexHits++;
+                }
+            }
+            long indexNanos = System.nanoTime() - start;
+
+            assertEquals( statHits, indexHits );
+            System.out.printf( "Round %d, %d lookups: stat %dns/op, index %dns/op%n", round, paths.length,
+                               statNanos / paths.length, indexNanos / paths.length );
+        }
+    }
+
+    private void write( String path ) throws IOException
+    {
+        Path file = root.resolve( path );
+        Files.createDirectories( file.getParent() );
+        Files.write( file, new byte[] { 1 } );
+    }
+}
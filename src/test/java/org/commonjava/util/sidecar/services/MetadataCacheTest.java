@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.sun.net.httpserver.HttpServer;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import okhttp3.Request;
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.util.OtelAdapter;
+import org.commonjava.util.sidecar.util.WebClientAdapter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MetadataCacheTest
+{
+    private static final String PATH = "/api/content/maven/group/build/org/foo/bar/maven-metadata.xml";
+
+    private static final byte[] METADATA = "<metadata/>".getBytes();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    private final List<String> validators = new CopyOnWriteArrayList<>();
+
+    private volatile String etag = "\"v1\"";
+
+    private HttpServer server;
+
+    private Vertx vertx;
+
+    private WebClientAdapter client;
+
+    private MetadataCache cache;
+
+    private ServiceConfig service;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( "/", exchange -> {
+            requests.incrementAndGet();
+            String validator = exchange.getRequestHeaders().getFirst( "If-None-Match" );
+            validators.add( String.valueOf( validator ) );
+            exchange.getResponseHeaders().add( "ETag", etag );
+            // v2 only changes the etag, not the content
+            if ( "\"v1\"".equals( validator ) || "\"v2\"".equals( validator ) )
+            {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders( 304, -1 );
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders( 200, METADATA.length );
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write( METADATA );
+            }
+        } );
+        server.start();
+        vertx = Vertx.vertx();
+
+        service = new ServiceConfig();
+        service.host = "localhost";
+        service.port = server.getAddress().getPort();
+        ProxyConfiguration proxyConfig = new JsonObject().put( "read-timeout", "30s" ).mapTo( ProxyConfiguration.class );
+        client = new WebClientAdapter( service, proxyConfig, new AtomicLong( 30000 ), new OtelAdapter(), vertx );
+
+        cache = new MetadataCache();
+        cache.sidecarConfig = new SidecarConfig();
+        cache.sidecarConfig.metadataCacheSize = Optional.empty();
+        cache.sidecarConfig.npmMetadataTtl = Optional.empty();
+    }
+
+    @AfterEach
+    public void teardown()
+    {
+        server.stop( 0 );
+        vertx.close();
+    }
+
+    @Test
+    public void testFreshEntryServedFromCache()
+    {
+        cache.sidecarConfig.mavenMetadataTtl = Optional.of( Duration.ofMinutes( 5 ) );
+        cache.init();
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            assertArrayEquals( METADATA, get() );
+        }
+        assertEquals( 1, requests.get() );
+        assertEquals( 1, cache.getMisses() );
+        assertEquals( 4, cache.getHits() );
+    }
+
+    @Test
+    public void testStaleEntryRevalidated()
+    {
+        cache.sidecarConfig.mavenMetadataTtl = Optional.of( Duration.ZERO );
+        cache.init();
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertArrayEquals( METADATA, get() );
+        }
+        assertEquals( 3, requests.get() );
+        assertEquals( 2, notModified.get() );
+        assertEquals( 2, cache.getRevalidations() );
+    }
+
+    @Test
+    public void testEntriesKeptPerCredentials()
+    {
+        cache.sidecarConfig.mavenMetadataTtl = Optional.of( Duration.ofMinutes( 5 ) );
+        cache.init();
+
+        assertArrayEquals( METADATA, get( Map.of( "Authorization", "Bearer foo" ) ) );
+        assertArrayEquals( METADATA, get() );
+        assertArrayEquals( METADATA, get( Map.of( "Authorization", "Bearer foo" ) ) );
+        assertEquals( 2, requests.get() );
+        assertEquals( 2, cache.size() );
+    }
+
+    @Test
+    public void testEntriesKeptPerEncoding()
+    {
+        cache.sidecarConfig.mavenMetadataTtl = Optional.of( Duration.ofMinutes( 5 ) );
+        cache.init();
+
+        // upstream may answer each with a differently encoded body
+        assertArrayEquals( METADATA, get( Map.of( "Accept-Encoding", "gzip" ) ) );
+        assertArrayEquals( METADATA, get( Map.of( "Accept-Encoding", "identity" ) ) );
+        assertArrayEquals( METADATA, get( Map.of( "Accept-Encoding", "gzip" ) ) );
+        assertEquals( 2, requests.get() );
+        assertEquals( 2, cache.size() );
+    }
+
+    @Test
+    public void testValidatorsTakenFromNotModified()
+    {
+        cache.sidecarConfig.mavenMetadataTtl = Optional.of( Duration.ZERO );
+        cache.init();
+
+        get();
+        etag = "\"v2\"";
+        get();
+        get();
+        assertEquals( Arrays.asList( "null", "\"v1\"", "\"v2\"" ), validators );
+        assertEquals( 2, notModified.get() );
+    }
+
+    private byte[] get()
+    {
+        return get( Map.of() );
+    }
+
+    private byte[] get( Map<String, String> headers )
+    {
+        String url = "http://localhost:" + server.getAddress().getPort() + PATH;
+        Request.Builder builder = new Request.Builder().get().url( url );
+        headers.forEach( builder::header );
+        WebClientAdapter.RequestAdapter request = client.new RequestAdapter( builder, PATH );
+        HttpServerRequest serverRequest = (HttpServerRequest) Proxy.newProxyInstance(
+                        HttpServerRequest.class.getClassLoader(), new Class<?>[] { HttpServerRequest.class },
+                        ( proxy, method, args ) -> "getHeader".equals( method.getName() ) ? headers.get(
+                                        String.valueOf( args[0] ) ) : null );
+        Response response = cache.get( cache.keyOf( service, PATH, serverRequest ), PATH, request,
+                                       m -> Response.ok( m.getBody() ).build(),
+                                       r -> Response.status( r.code() ).build() ).await().indefinitely();
+        assertEquals( 200, response.getStatus() );
+        return (byte[]) response.getEntity();
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProxyContentCacheTest
+{
+    private static final String JAR = "org/foo/bar/1.0/bar-1.0.jar";
+
+    private static final String POM = "org/foo/bar/1.0/bar-1.0.pom";
+
+    private static final String TGZ = "@babel/code-frame/-/code-frame-7.tgz";
+
+    private static final String STORE = "maven/group/a";
+
+    private static final String ORIGIN = "http://indy/api/content/maven/remote/central/";
+
+    private Path root;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        root = Files.createTempDirectory( "proxy-cache" );
+    }
+
+    @AfterEach
+    public void teardown() throws IOException
+    {
+        FileUtils.deleteDirectory( root.toFile() );
+    }
+
+    @Test
+    public void testCacheable()
+    {
+        ProxyContentCache cache = new ProxyContentCache( root, 1024, ".part" );
+        assertTrue( cache.isCacheable( JAR ) );
+        assertTrue( cache.isCacheable( TGZ ) );
+        assertFalse( cache.isCacheable( "org/foo/bar/maven-metadata.xml" ) );
+        assertFalse( cache.isCacheable( "org/foo/bar/maven-metadata.xml.sha1" ) );
+        assertFalse( cache.isCacheable( "org/foo/bar/1.0-SNAPSHOT/bar-1.0-20210101.120000-1.jar" ) );
+        assertFalse( cache.isCacheable( "@babel/code-frame" ) );
+        assertFalse( cache.isCacheable( "org/foo/bar/" ) );
+        assertFalse( new ProxyContentCache( root, 0, ".part" ).isCacheable( JAR ) );
+    }
+
+    @Test
+    public void testCachedWhenReadToTheEnd() throws IOException
+    {
+        byte[] content = getBytes( 100 );
+        ProxyContentCache cache = new ProxyContentCache( root, 1024, ".part" );
+        assertArrayEquals( content, read( tee( cache, STORE, JAR, content, content.length ) ) );
+
+        ProxyContentCache.Cached cached = cache.lookup( STORE, JAR ).orElseThrow();
+        assertEquals( JAR, cached.getPath() );
+        assertEquals( 100, cached.getSize() );
+        assertEquals( DigestUtils.sha256Hex( content ), cached.getSha256() );
+        assertEquals( ORIGIN + JAR, cached.getOriginUrl() );
+        assertArrayEquals( content, Files.readAllBytes( root.resolve( STORE + "/" + JAR ) ) );
+        assertEquals( 0, countPartFiles() );
+    }
+
+    @Test
+    public void testCachedPerStore() throws IOException
+    {
+        byte[] fromA = getBytes( 100 );
+        byte[] fromB = getBytes( 50 );
+        ProxyContentCache cache = new ProxyContentCache( root, 1024, ".part" );
+        read( tee( cache, STORE, JAR, fromA, fromA.length ) );
+
+        // another store may resolve the same path to different content, or not at all
+        assertFalse( cache.contains( "maven/group/b", JAR ) );
+        assertTrue( cache.lookup( "maven/group/b", JAR ).isEmpty() );
+
+        read( tee( cache, "maven/group/b", JAR, fromB, fromB.length ) );
+        assertEquals( 2, cache.count() );
+        assertEquals( 100, cache.lookup( STORE, JAR ).orElseThrow().getSize() );
+        assertEquals( 50, cache.lookup( "maven/group/b", JAR ).orElseThrow().getSize() );
+        assertArrayEquals( fromA, Files.readAllBytes( cache.lookup( STORE, JAR ).orElseThrow().getFile().toPath() ) );
+        assertArrayEquals( fromB, Files.readAllBytes(
+                        cache.lookup( "maven/group/b", JAR ).orElseThrow().getFile().toPath() ) );
+    }
+
+    @Test
+    public void testNotCachedWhenIncomplete() throws IOException
+    {
+        byte[] content = getBytes( 100 );
+        ProxyContentCache cache = new ProxyContentCache( root, 1024, ".part" );
+
+        // the client went away half way
+        try (InputStream in = tee( cache, STORE, JAR, content, content.length ))
+        {
+            assertEquals( 50, in.read( new byte[50] ) );
+        }
+        // upstream sent less than it announced
+        read( tee( cache, STORE, POM, content, content.length + 1 ) );
+
+        assertFalse( cache.contains( STORE, JAR ) );
+        assertFalse( cache.contains( STORE, POM ) );
+        assertFalse( Files.exists( root.resolve( STORE + "/" + JAR ) ) );
+        assertFalse( Files.exists( root.resolve( STORE + "/" + POM ) ) );
+        assertEquals( 0, countPartFiles() );
+    }
+
+    @Test
+    public void testNothingWrittenUntilRead() throws IOException
+    {
+        byte[] content = getBytes( 100 );
+        ProxyContentCache cache = new ProxyContentCache( root, 1024, ".part" );
+
+        // a response that is never sent leaves nothing behind, and doesn't keep the path from being cached
+        tee( cache, STORE, JAR, content, content.length ).close();
+        assertFalse( Files.exists( root.resolve( STORE ) ) );
+
+        InputStream in = tee( cache, STORE, JAR, content, content.length );
+        assertFalse( Files.exists( root.resolve( STORE ) ) );
+        assertArrayEquals( content, read( in ) );
+        assertTrue( cache.contains( STORE, JAR ) );
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException
+    {
+        ProxyContentCache cache = new ProxyContentCache( root, 250, ".part" );
+        read( tee( cache, STORE, JAR, getBytes( 100 ), 100 ) );
+        read( tee( cache, STORE, POM, getBytes( 100 ), 100 ) );
+        cache.lookup( STORE, JAR );
+        read( tee( cache, STORE, TGZ, getBytes( 100 ), -1 ) );
+
+        assertTrue( cache.contains( STORE, JAR ) );
+        assertFalse( cache.contains( STORE, POM ) );
+        assertTrue( cache.contains( STORE, TGZ ) );
+        assertFalse( Files.exists( root.resolve( STORE + "/" + POM ) ) );
+        assertEquals( 200, cache.size() );
+    }
+
+    private InputStream tee( ProxyContentCache cache, String store, String path, byte[] content, long length )
+    {
+        return cache.tee( store, path, new ByteArrayInputStream( content ), length, ORIGIN + path );
+    }
+
+    private byte[] read( InputStream in ) throws IOException
+    {
+        try (InputStream stream = in)
+        {
+            return IOUtils.toByteArray( stream );
+        }
+    }
+
+    private long countPartFiles() throws IOException
+    {
+        try (Stream<Path> files = Files.walk( root ))
+        {
+            return files.filter( f -> f.toString().endsWith( ".part" ) ).count();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.sun.net.httpserver.HttpServer;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.model.AccessChannel;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+import org.commonjava.util.sidecar.util.OtelAdapter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProxyServiceTest
+{
+    private static final String PATH = "/api/content/maven/hosted/build/org/foo/bar/1.0/bar-1.0.jar";
+
+    private final byte[] content = getBytes( 100 * 1024 );
+
+    private HttpServer server;
+
+    private volatile byte[] received;
+
+    private volatile int status = 201;
+
+    private ProxyService proxyService;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( "/", exchange -> {
+            received = IOUtils.toByteArray( exchange.getRequestBody() );
+            exchange.sendResponseHeaders( status, -1 );
+            exchange.close();
+        } );
+        server.start();
+
+        JsonObject service = new JsonObject().put( "host", "localhost" )
+                                             .put( "port", server.getAddress().getPort() )
+                                             .put( "path-pattern", "/api/.+" );
+        ProxyConfiguration config = new JsonObject().put( "read-timeout", "30s" )
+                                                    .put( "retry", new JsonObject().put( "count", 0 ) )
+                                                    .put( "services", new JsonArray().add( service ) )
+                                                    .mapTo( ProxyConfiguration.class );
+        Classifier classifier = new Classifier();
+        classifier.otel = new OtelAdapter();
+        classifier.vertx = Vertx.vertx();
+        classifier.proxyConfiguration = config;
+        classifier.init();
+
+        proxyService = new ProxyService();
+        proxyService.proxyConfiguration = config;
+        proxyService.classifier = classifier;
+        proxyService.otel = new OtelAdapter();
+        proxyService.reportService = new ReportService();
+    }
+
+    @AfterEach
+    public void teardown()
+    {
+        proxyService.classifier.destroy();
+        proxyService.classifier.vertx.close();
+        server.stop( 0 );
+    }
+
+    @Test
+    public void testTrackedUploadForwardsBody() throws Exception
+    {
+        Response response = put();
+
+        assertEquals( 201, response.getStatus() );
+        // the body used to be drained by the tracking before it was forwarded
+        assertArrayEquals( content, received );
+        TrackedContentEntry upload = proxyService.reportService.getTrackedContent().getUploads().iterator().next();
+        assertEquals( Long.valueOf( content.length ), upload.getSize() );
+        assertEquals( DigestUtils.md5Hex( content ), upload.getMd5() );
+        assertEquals( DigestUtils.sha1Hex( content ), upload.getSha1() );
+        assertEquals( DigestUtils.sha256Hex( content ), upload.getSha256() );
+    }
+
+    @Test
+    public void testFailedUploadNotTracked() throws Exception
+    {
+        status = 409;
+        Response response = put();
+
+        assertEquals( 409, response.getStatus() );
+        assertArrayEquals( content, received );
+        assertTrue( proxyService.reportService.getTrackedContent().getUploads().isEmpty() );
+    }
+
+    private Response put() throws Exception
+    {
+        TrackedContentEntry entry =
+                        new TrackedContentEntry( new TrackingKey( "1000" ), new StoreKey( "maven", StoreType.hosted,
+                                                                                          "build" ),
+                                                 AccessChannel.NATIVE, "http://localhost" + PATH, PATH,
+                                                 StoreEffect.UPLOAD, (long) 0, "", "", "" );
+        return proxyService.doPut( PATH, new ByteArrayInputStream( content ), request(), entry )
+                           .await()
+                           .indefinitely();
+    }
+
+    /**
+     * Just what forwarding a PUT asks of the incoming request.
+     */
+    private static HttpServerRequest request()
+    {
+        MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+        return (HttpServerRequest) Proxy.newProxyInstance( HttpServerRequest.class.getClassLoader(),
+                                                           new Class<?>[] { HttpServerRequest.class },
+                                                           ( proxy, method, args ) -> {
+                                                               switch ( method.getName() )
+                                                               {
+                                                                   case "method":
+                                                                       return HttpMethod.PUT;
+                                                                   case "headers":
+                                                                       return headers;
+                                                                   case "absoluteURI":
+                                                                       return "http://localhost" + PATH;
+                                                                   default:
+                                                                       return null;
+                                                               }
+                                                           } );
+    }
+}
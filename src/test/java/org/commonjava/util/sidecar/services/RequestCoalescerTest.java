@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.smallrye.mutiny.Uni;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class RequestCoalescerTest
+{
+    private static final String KEY = "localhost:80|api/content/maven/group/build/org/foo/bar/1.0/bar-1.0.jar";
+
+    @Test
+    public void testConcurrentGetsShareOneCall() throws Exception
+    {
+        byte[] content = getBytes( 2 * 1024 * 1024 );
+        AtomicInteger calls = new AtomicInteger();
+        RequestCoalescer coalescer = new RequestCoalescer();
+
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+        for ( int i = 0; i < 5; i++ )
+        {
+            responses.add( coalescer.enqueue( KEY, () -> {
+                calls.incrementAndGet();
+                return Uni.createFrom().item( response( content ) ).onItem().delayIt().by( Duration.ofMillis( 200 ) );
+            } ).subscribeAsCompletionStage() );
+        }
+
+        for ( CompletableFuture<Response> response : responses )
+        {
+            try (Response resp = response.get())
+            {
+                assertEquals( 200, resp.code() );
+                assertArrayEquals( content, resp.body().bytes() );
+            }
+        }
+        assertEquals( 1, calls.get() );
+        assertEquals( 4, coalescer.getCoalesced() );
+
+        // the finished flight is gone, the next request goes upstream again, and alone it gets the response as it is
+        Response upstream = response( content );
+        try (Response resp = coalescer.enqueue( KEY, () -> {
+            calls.incrementAndGet();
+            return Uni.createFrom().item( upstream );
+        } ).await().indefinitely())
+        {
+            assertSame( upstream, resp );
+            assertArrayEquals( content, resp.body().bytes() );
+        }
+        assertEquals( 2, calls.get() );
+    }
+
+    private Response response( byte[] content )
+    {
+        return new Response.Builder().request( new Request.Builder().url( "http://localhost/" ).build() )
+                                     .protocol( Protocol.HTTP_1_1 )
+                                     .code( 200 )
+                                     .message( "OK" )
+                                     .body( ResponseBody.create( content, null ) )
+                                     .build();
+    }
+}
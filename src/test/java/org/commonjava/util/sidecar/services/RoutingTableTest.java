@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.vertx.core.http.HttpMethod;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class RoutingTableTest
+{
+    private static final int BENCH_LOOKUPS = 1000000;
+
+    private static final int BENCH_ROUNDS = 5;
+
+    private static long blackhole;
+
+    @Test
+    public void testFirstMatchInConfigOrder()
+    {
+        ServiceConfig upload = service( "PUT,POST", "/api/content/.+" );
+        ServiceConfig browse = service( null, "/api/browse/.+" );
+        ServiceConfig any = service( null, "/api/.+" );
+        RoutingTable table = new RoutingTable( Arrays.asList( upload, browse, any ) );
+
+        assertSame( upload, table.route( "/api/content/maven/hosted/local/foo.jar", HttpMethod.PUT ) );
+        assertSame( any, table.route( "/api/content/maven/hosted/local/foo.jar", HttpMethod.GET ) );
+        assertSame( browse, table.route( "/api/browse/maven/group/public", HttpMethod.GET ) );
+        assertNull( table.route( "/foo", HttpMethod.GET ) );
+        // served from the cache the second time
+        assertSame( upload, table.route( "/api/content/maven/hosted/local/foo.jar", HttpMethod.PUT ) );
+        assertNull( table.route( "/foo", HttpMethod.GET ) );
+    }
+
+    @Test
+    public void testPatternsWithoutLiteralPrefix()
+    {
+        ServiceConfig promote = service( "POST", "(?i)/API/promotion/.+" );
+        ServiceConfig either = service( null, "/api/(admin|stats)/.+|/health" );
+        RoutingTable table = new RoutingTable( Arrays.asList( promote, either ) );
+
+        assertSame( promote, table.route( "/api/promotion/paths/promote", HttpMethod.POST ) );
+        assertSame( either, table.route( "/health", HttpMethod.GET ) );
+        assertSame( either, table.route( "/api/stats/version-info", HttpMethod.GET ) );
+    }
+
+    @Test
+    public void testLiteralPrefix()
+    {
+        assertEquals( "/api/", RoutingTable.literalPrefix( "/api/.+" ) );
+        assertEquals( "/api/content/maven", RoutingTable.literalPrefix( "^/api/content/maven/?.*" ) );
+        assertEquals( "/api/", RoutingTable.literalPrefix( "/api/[a-z]+" ) );
+        assertEquals( "/api/v1.", RoutingTable.literalPrefix( "/api/v1\\.\\d+" ) );
+        assertEquals( "", RoutingTable.literalPrefix( "/a|/b" ) );
+        assertEquals( "", RoutingTable.literalPrefix( "(?i)/api" ) );
+    }
+
+    /**
+     * Compares the per request String.matches() loop with the routing table, cached and uncached, for 1 and 50
+     * services. Run with <code>mvn test -Dtest=RoutingTableTest -Dbenchmark=true</code>.
+     */
+    @Test
+    @EnabledIfSystemProperty( named = "benchmark", matches = "true" )
+    public void benchmarkRoute()
+    {
+        for ( int count : new int[] { 1, 50 } )
+        {
+            List<ServiceConfig> services = new ArrayList<>();
+            for ( int i = 1; i < count; i++ )
+            {
+                services.add( service( "GET,HEAD", "/api/content/npm/hosted/repo-" + i + "/.+" ) );
+            }
+            services.add( service( null, "/api/.+" ) );
+
+            // fewer paths than cache slots, so the cached run mostly hits
+            String[] paths = new String[1024];
+            for ( int i = 0; i < paths.length; i++ )
+            {
+                paths[i] = "/api/content/maven/group/build-" + i + "/org/foo/bar/1.0/bar-1.0.jar";
+            }
+            RoutingTable cached = new RoutingTable( services, 8192 );
+            RoutingTable uncached = new RoutingTable( services, 1 );
+
+            for ( int round = 0; round < BENCH_ROUNDS; round++ )
+            {
+                long start = System.nanoTime();
+                for ( int i = 0; i < BENCH_LOOKUPS; i++ )
+                {
+                    blackhole += System.identityHashCode( matchEach( services, paths[i & 1023], HttpMethod.GET ) );
+                }
+                long matchesNanos = ( System.nanoTime() - start ) / BENCH_LOOKUPS;
+
+                start = System.nanoTime();
+                for ( int i = 0; i < BENCH_LOOKUPS; i++ )
+                {
+                    // alternate the method so every lookup misses the one slot
+                    blackhole += System.identityHashCode(
+                                    uncached.route( paths[i & 1023], ( i & 1 ) == 0 ? HttpMethod.GET : HttpMethod.HEAD ) );
+                }
+                long tableNanos = ( System.nanoTime() - start ) / BENCH_LOOKUPS;
+
+                start = System.nanoTime();
+                for ( int i = 0; i < BENCH_LOOKUPS; i++ )
+                {
+                    blackhole += System.identityHashCode( cached.route( paths[i & 1023], HttpMethod.GET ) );
+                }
+                long cachedNanos = ( System.nanoTime() - start ) / BENCH_LOOKUPS;
+
+                System.out.printf( "Round %d, %d services: String.matches %dns, table %dns, cached %dns per lookup%n",
+                                   round, count, matchesNanos, tableNanos, cachedNanos );
+            }
+        }
+    }
+
+    /**
+     * What Classifier did before.
+     */
+    private static ServiceConfig matchEach( List<ServiceConfig> services, String path, HttpMethod method )
+    {
+        for ( ServiceConfig sv : services )
+        {
+            if ( path.matches( sv.pathPattern ) && ( sv.methods == null || sv.methods.contains( method.name() ) ) )
+            {
+                return sv;
+            }
+        }
+        return null;
+    }
+
+    private static ServiceConfig service( String methods, String pathPattern )
+    {
+        ServiceConfig sv = new ServiceConfig();
+        sv.host = "localhost";
+        sv.methods = methods;
+        sv.pathPattern = pathPattern;
+        return sv;
+    }
+}
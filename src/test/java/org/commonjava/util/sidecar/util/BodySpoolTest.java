@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BodySpoolTest
+{
+    private static final int THRESHOLD = 64 * 1024;
+
+    @Test
+    public void testSmallBodyStaysInMemory() throws IOException
+    {
+        byte[] content = getBytes( 1024 );
+        try (BodySpool spool = new BodySpool( THRESHOLD ))
+        {
+            spool.write( content, 0, content.length );
+
+            assertTrue( spool.isInMemory() );
+            assertEquals( content.length, spool.length() );
+            // replayable, e.g. for a retry
+            assertArrayEquals( content, IOUtils.toByteArray( spool.openStream() ) );
+            assertArrayEquals( content, IOUtils.toByteArray( spool.openStream() ) );
+        }
+    }
+
+    @Test
+    public void testLargeBodyOverflowsToDisk() throws IOException
+    {
+        byte[] content = getBytes( THRESHOLD * 3 + 17 );
+        BodySpool spool = new BodySpool( THRESHOLD );
+        for ( int off = 0; off < content.length; off += 1000 )
+        {
+            spool.write( content, off, Math.min( 1000, content.length - off ) );
+        }
+
+        assertFalse( spool.isInMemory() );
+        assertEquals( content.length, spool.length() );
+        assertArrayEquals( content, IOUtils.toByteArray( spool.openStream() ) );
+        assertArrayEquals( content, IOUtils.toByteArray( spool.openStream() ) );
+
+        spool.close();
+        assertThrows( IOException.class, () -> spool.openStream().read() );
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.commonjava.util.sidecar.util.TestUtil.SIZE_50K;
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChecksumInputStreamTest
+{
+    @Test
+    public void testChecksumsMatchAfterFullRead() throws IOException
+    {
+        byte[] bytes = getBytes( SIZE_50K );
+        AtomicInteger completions = new AtomicInteger();
+        ChecksumInputStream in =
+                        new ChecksumInputStream( new ByteArrayInputStream( bytes ), cs -> completions.incrementAndGet() );
+        IOUtils.copy( in, NullOutputStream.NULL_OUTPUT_STREAM );
+        in.read();
+        in.close();
+
+        assertEquals( 1, completions.get() );
+        assertEquals( SIZE_50K, in.getSize() );
+        assertEquals( DigestUtils.md5Hex( bytes ), in.getMd5() );
+        assertEquals( DigestUtils.sha1Hex( bytes ), in.getSha1() );
+        assertEquals( DigestUtils.sha256Hex( bytes ), in.getSha256() );
+    }
+
+    @Test
+    public void testPartialReadNeverCompletes() throws IOException
+    {
+        AtomicInteger completions = new AtomicInteger();
+        try (InputStream in = new ChecksumInputStream( new ByteArrayInputStream( getBytes( SIZE_50K ) ),
+                                                       cs -> completions.incrementAndGet() ))
+        {
+            in.read( new byte[1024] );
+            assertFalse( ( (ChecksumInputStream) in ).isCompleted() );
+        }
+        assertEquals( 0, completions.get() );
+    }
+
+    @Test
+    public void testSkippedBytesAreDigested() throws IOException
+    {
+        byte[] bytes = getBytes( SIZE_50K );
+        ChecksumInputStream in = new ChecksumInputStream( new ByteArrayInputStream( bytes ), null );
+        assertEquals( 1000, in.skip( 1000 ) );
+        IOUtils.copy( in, NullOutputStream.NULL_OUTPUT_STREAM );
+
+        assertTrue( in.isCompleted() );
+        assertEquals( DigestUtils.sha256Hex( bytes ), in.getSha256() );
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.sidecar.util.CircuitBreaker.REJECTED;
+import static org.commonjava.util.sidecar.util.CircuitBreaker.State.CLOSED;
+import static org.commonjava.util.sidecar.util.CircuitBreaker.State.HALF_OPEN;
+import static org.commonjava.util.sidecar.util.CircuitBreaker.State.OPEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CircuitBreakerTest
+{
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+    private static final long SLOW = TimeUnit.SECONDS.toNanos( 10 );
+
+    @Test
+    public void testOpensOnFailureRate() throws InterruptedException
+    {
+        CircuitBreaker breaker = new CircuitBreaker( "indy", config( "0.2s" ) );
+        for ( int i = 0; i < 5; i++ )
+        {
+            breaker.onResult( breaker.acquire(), FAST, false );
+        }
+        for ( int i = 0; i < 4; i++ )
+        {
+            breaker.onResult( breaker.acquire(), FAST, true );
+        }
+        assertEquals( CLOSED, breaker.getState() );
+
+        // 5 of 10 failed
+        breaker.onResult( breaker.acquire(), FAST, true );
+        assertEquals( OPEN, breaker.getState() );
+        assertEquals( REJECTED, breaker.acquire() );
+        assertTrue( breaker.getRetryAfterMillis() > 0 );
+
+        Thread.sleep( 300 );
+        assertEquals( HALF_OPEN, breaker.getState() );
+        long first = breaker.acquire();
+        long second = breaker.acquire();
+        assertNotEquals( REJECTED, first );
+        assertNotEquals( REJECTED, second );
+        assertEquals( REJECTED, breaker.acquire() );
+
+        breaker.onResult( first, FAST, false );
+        breaker.onResult( second, FAST, false );
+        assertEquals( CLOSED, breaker.getState() );
+    }
+
+    @Test
+    public void testOpensOnSlowCalls()
+    {
+        CircuitBreaker breaker = new CircuitBreaker( "indy", config( "30s" ) );
+        for ( int i = 0; i < 10; i++ )
+        {
+            breaker.onResult( breaker.acquire(), SLOW, false );
+        }
+        assertEquals( OPEN, breaker.getState() );
+    }
+
+    @Test
+    public void testFailedTrialOpensAgain() throws InterruptedException
+    {
+        CircuitBreaker breaker = new CircuitBreaker( "indy", config( "0.1s" ) );
+        long stale = breaker.acquire();
+        for ( int i = 0; i < 10; i++ )
+        {
+            breaker.onResult( breaker.acquire(), FAST, true );
+        }
+        Thread.sleep( 200 );
+
+        long trial = breaker.acquire();
+        // a call from before the breaker opened does not count as trial
+        breaker.onResult( stale, FAST, false );
+        assertEquals( HALF_OPEN, breaker.getState() );
+
+        breaker.onResult( trial, FAST, true );
+        assertEquals( OPEN, breaker.getState() );
+    }
+
+    private ProxyConfiguration.Breaker config( String openDuration )
+    {
+        ProxyConfiguration.Breaker config = new ProxyConfiguration.Breaker();
+        config.window = 10;
+        config.minimumCalls = 10;
+        config.failureRate = 50;
+        config.slowCallRate = 80;
+        config.slowCallDuration = "1s";
+        config.openDuration = openDuration;
+        config.halfOpenCalls = 2;
+        return config;
+    }
+}
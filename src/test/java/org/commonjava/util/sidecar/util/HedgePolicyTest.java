@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HedgePolicyTest
+{
+    @Test
+    public void testDelayFollowsP95()
+    {
+        HedgePolicy policy = new HedgePolicy();
+        policy.configure( config( null, 5 ) );
+        assertEquals( -1, policy.getDelayMillis() );
+
+        for ( int i = 1; i <= 100; i++ )
+        {
+            policy.record( i );
+        }
+        // computed over the first 96 samples
+        assertTrue( policy.getDelayMillis() >= 90 && policy.getDelayMillis() <= 100, "" + policy.getDelayMillis() );
+    }
+
+    @Test
+    public void testBudgetLimitsHedges()
+    {
+        HedgePolicy policy = new HedgePolicy();
+        policy.configure( config( "1s", 10 ) );
+        assertEquals( 1000, policy.getDelayMillis() );
+
+        int hedges = 0;
+        for ( int i = 0; i < 100; i++ )
+        {
+            policy.onCall();
+            if ( policy.tryHedge() )
+            {
+                hedges++;
+            }
+        }
+        assertEquals( 10, hedges );
+        assertFalse( policy.tryHedge() );
+    }
+
+    private ProxyConfiguration.Hedge config( String delay, int budget )
+    {
+        ProxyConfiguration.Hedge config = new ProxyConfiguration.Hedge();
+        config.enabled = true;
+        config.delay = delay;
+        config.budget = budget;
+        return config;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.commonjava.util.sidecar.util.LoadBalancer.LEAST_REQUESTS;
+import static org.commonjava.util.sidecar.util.LoadBalancer.P2C;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LoadBalancerTest
+{
+    private final LoadBalancer.Endpoint a = LoadBalancer.Endpoint.parse( "indy-1:8080" );
+
+    private final LoadBalancer.Endpoint b = LoadBalancer.Endpoint.parse( "indy-2:8080" );
+
+    @Test
+    public void testLeastOutstandingPreferred()
+    {
+        for ( String strategy : Arrays.asList( P2C, LEAST_REQUESTS ) )
+        {
+            LoadBalancer balancer = new LoadBalancer( Arrays.asList( a, b ), strategy, 3, 60000 );
+            LoadBalancer.Endpoint busy = balancer.acquire();
+            for ( int i = 0; i < 10; i++ )
+            {
+                LoadBalancer.Endpoint next = balancer.acquire();
+                assertTrue( next != busy, strategy );
+                balancer.release( next, false );
+            }
+            balancer.release( busy, false );
+        }
+    }
+
+    @Test
+    public void testFailingEndpointEjected()
+    {
+        LoadBalancer balancer = new LoadBalancer( Arrays.asList( a, b ), P2C, 3, 60000 );
+        for ( int i = 0; i < 3; i++ )
+        {
+            balancer.release( acquire( balancer, a ), true );
+        }
+        assertFalse( a.isAvailable( System.currentTimeMillis() ) );
+        for ( int i = 0; i < 10; i++ )
+        {
+            LoadBalancer.Endpoint next = balancer.acquire();
+            assertSame( b, next );
+            balancer.release( next, false );
+        }
+
+        // a passing health check brings it back
+        balancer.probed( a, true );
+        assertTrue( a.isAvailable( System.currentTimeMillis() ) );
+    }
+
+    @Test
+    public void testAllEjectedStillUsed()
+    {
+        LoadBalancer balancer = new LoadBalancer( Arrays.asList( a, b ), P2C, 1, 60000 );
+        balancer.probed( a, false );
+        balancer.probed( b, false );
+        LoadBalancer.Endpoint next = balancer.acquire();
+        assertTrue( next == a || next == b );
+        assertEquals( 1, next.getOutstanding() );
+    }
+
+    private LoadBalancer.Endpoint acquire( LoadBalancer balancer, LoadBalancer.Endpoint wanted )
+    {
+        // keep the other one busy, so the wanted one is picked
+        LoadBalancer.Endpoint other = wanted == a ? b : a;
+        LoadBalancer.Endpoint got = balancer.acquire();
+        while ( got != wanted )
+        {
+            got = balancer.acquire();
+        }
+        while ( other.getOutstanding() > 0 )
+        {
+            balancer.release( other, false );
+        }
+        return got;
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class SharedBodyTest
+{
+    @Test
+    public void testConcurrentReaders() throws Exception
+    {
+        byte[] content = getBytes( 3 * 1024 * 1024 );
+        CountingInputStream upstream = new CountingInputStream( new ByteArrayInputStream( content ) );
+        SharedBody body = new SharedBody( upstream, 1024 * 1024 );
+
+        List<InputStream> readers = new ArrayList<>();
+        for ( int i = 0; i < 4; i++ )
+        {
+            readers.add( body.open() );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( readers.size() );
+        try
+        {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for ( InputStream reader : readers )
+            {
+                results.add( executor.submit( () -> {
+                    try (InputStream in = reader)
+                    {
+                        return IOUtils.toByteArray( in );
+                    }
+                } ) );
+            }
+            for ( Future<byte[]> result : results )
+            {
+                assertArrayEquals( content, result.get() );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // read from upstream once, and gone once the last reader is closed
+        assertEquals( content.length, upstream.getByteCount() );
+        assertNull( body.open() );
+    }
+
+    @Test
+    public void testConsumedChunksDropped() throws Exception
+    {
+        byte[] content = getBytes( 3 * 1024 * 1024 );
+        SharedBody body = new SharedBody( new ByteArrayInputStream( content ), 128 * 1024 );
+        InputStream first = body.open();
+        InputStream second = body.open();
+
+        byte[] read = new byte[content.length];
+        byte[] ignored = new byte[content.length];
+        int pos = 0;
+        while ( pos < content.length )
+        {
+            int n = IOUtils.read( first, read, pos, Math.min( 64 * 1024, content.length - pos ) );
+            IOUtils.readFully( second, ignored, pos, n );
+            pos += n;
+            // nothing is kept once both readers are past it
+            assertEquals( 0, body.keptLength() );
+        }
+        assertArrayEquals( content, read );
+        assertArrayEquals( content, ignored );
+
+        // the start is gone, no reader can be opened any more
+        assertNull( body.open() );
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testSlowReaderSpilled() throws Exception
+    {
+        byte[] content = getBytes( 1024 * 1024 );
+        SharedBody body = new SharedBody( new ByteArrayInputStream( content ), 128 * 1024 );
+        try (InputStream fast = body.open(); InputStream slow = body.open())
+        {
+            // the slow reader keeps all of it, past the memory threshold
+            assertArrayEquals( content, IOUtils.toByteArray( fast ) );
+            assertEquals( content.length, body.keptLength() );
+            assertArrayEquals( content, IOUtils.toByteArray( slow ) );
+            assertEquals( 0, body.keptLength() );
+        }
+    }
+}
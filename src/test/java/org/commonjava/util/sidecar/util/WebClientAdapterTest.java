@@ -0,0 +1,474 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import com.sun.management.ThreadMXBean;
+import com.sun.net.httpserver.HttpServer;
+import io.vertx.core.Vertx;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.exception.CircuitOpenException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.commonjava.util.sidecar.util.UpstreamTransport.OKHTTP;
+import static org.commonjava.util.sidecar.util.UpstreamTransport.VERTX;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WebClientAdapterTest
+{
+    private static final String PATH = "/api/content/maven/group/build/org/foo/bar/1.0/bar-1.0.pom";
+
+    private static final String SLOW_PATH = "/slow";
+
+    private static final String HEDGE_PATH = "/hedge";
+
+    private static final int BENCH_CALLS = 200000;
+
+    private static final int BENCH_ROUNDS = 5;
+
+    private static long blackhole;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final byte[] content = getBytes( 2 * 1024 * 1024 );
+
+    private final CountDownLatch release = new CountDownLatch( 1 );
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    private Vertx vertx;
+
+    private ProxyConfiguration proxyConfig;
+
+    private volatile int failures;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( "/", exchange -> {
+            if ( requests.incrementAndGet() <= failures )
+            {
+                // so the next try does not race the server closing a pooled connection
+                exchange.getResponseHeaders().add( "Connection", "close" );
+                exchange.sendResponseHeaders( 503, -1 );
+                exchange.close();
+                return;
+            }
+            // PUT echoes the request body
+            byte[] body = "PUT".equals( exchange.getRequestMethod() ) ?
+                            IOUtils.toByteArray( exchange.getRequestBody() ) :
+                            content;
+            exchange.sendResponseHeaders( 200, body.length );
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write( body );
+            }
+        } );
+        server.createContext( SLOW_PATH, exchange -> {
+            try
+            {
+                release.await( 30, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders( 200, -1 );
+            exchange.close();
+        } );
+        // only the first request hangs, its hedge is answered right away
+        AtomicInteger hedgeRequests = new AtomicInteger();
+        server.createContext( HEDGE_PATH, exchange -> {
+            if ( hedgeRequests.incrementAndGet() == 1 )
+            {
+                try
+                {
+                    release.await( 30, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.sendResponseHeaders( 200, content.length );
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write( content );
+            }
+        } );
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor( executor );
+        server.start();
+        vertx = Vertx.vertx();
+
+        proxyConfig = new JsonObject().put( "read-timeout", "30s" )
+                                      .put( "retry", new JsonObject().put( "count", 3 )
+                                                                     .put( "interval", 10 )
+                                                                     .put( "maxBackOff", 50 ) )
+                                      .mapTo( ProxyConfiguration.class );
+    }
+
+    @AfterEach
+    public void teardown()
+    {
+        release.countDown();
+        server.stop( 0 );
+        executor.shutdownNow();
+        vertx.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource( strings = { OKHTTP, VERTX } )
+    public void testServerErrorRetried( String transport ) throws IOException
+    {
+        failures = 2;
+        try (Response response = get( newClient( transport ) ))
+        {
+            assertEquals( 200, response.code() );
+            assertArrayEquals( content, response.body().bytes() );
+        }
+        assertEquals( 3, requests.get() );
+    }
+
+    @ParameterizedTest
+    @ValueSource( strings = { OKHTTP, VERTX } )
+    public void testRetriesExhausted( String transport )
+    {
+        failures = Integer.MAX_VALUE;
+        try (Response response = get( newClient( transport ) ))
+        {
+            assertEquals( 503, response.code() );
+        }
+        // the first try and 3 retries
+        assertEquals( 4, requests.get() );
+    }
+
+    @ParameterizedTest
+    @ValueSource( strings = { OKHTTP, VERTX } )
+    public void testRequestBody( String transport ) throws IOException
+    {
+        byte[] body = getBytes( 1024 * 1024 );
+        WebClientAdapter client = newClient( transport );
+        String url = "http://localhost:" + server.getAddress().getPort() + PATH;
+        try (Response response = client.new RequestAdapter(
+                        new Request.Builder().put( RequestBody.create( body, null ) ).url( url ), PATH ).call()
+                                                                                                .enqueue()
+                                                                                                .await()
+                                                                                                .indefinitely())
+        {
+            assertEquals( 200, response.code() );
+            assertArrayEquals( body, response.body().bytes() );
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource( strings = { OKHTTP, VERTX } )
+    public void testBodySentDownstream( String transport )
+                    throws IOException, ExecutionException, InterruptedException
+    {
+        WebClientAdapter client = newClient( transport );
+        io.vertx.core.http.HttpServer downstream = vertx.createHttpServer().requestHandler( request -> {
+            HttpServerResponse out = request.response();
+            client.get( PATH, request ).call().enqueue().subscribe().with( resp -> {
+                out.putHeader( "Content-Length", Long.toString( resp.body().contentLength() ) );
+                VertxTransport.sendBody( vertx, resp, out ).onComplete( ar -> out.end() );
+            }, t -> out.setStatusCode( 502 ).end() );
+        } ).listen( 0 ).toCompletionStage().toCompletableFuture().get();
+
+        String url = "http://localhost:" + downstream.actualPort() + PATH;
+        try (Response response = new OkHttpClient().newCall( new Request.Builder().get().url( url ).build() ).execute())
+        {
+            assertEquals( 200, response.code() );
+            assertArrayEquals( content, response.body().bytes() );
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource( strings = { OKHTTP, VERTX } )
+    public void testCallsOverLimitQueued( String transport ) throws InterruptedException
+    {
+        ServiceConfig service = newService( transport );
+        service.maxRequestsPerHost = 2;
+        WebClientAdapter client = new WebClientAdapter( service, proxyConfig, new AtomicLong( 30000 ),
+                                                        new OtelAdapter(), vertx );
+
+        String url = "http://localhost:" + server.getAddress().getPort() + SLOW_PATH;
+        List<Uni<Response>> calls = new ArrayList<>();
+        for ( int i = 0; i < 4; i++ )
+        {
+            Uni<Response> call = client.new RequestAdapter( new Request.Builder().get().url( url ), SLOW_PATH ).call()
+                                                                                                          .enqueue()
+                                                                                                          .memoize()
+                                                                                                          .indefinitely();
+            call.subscribe().with( r -> {
+            }, t -> {
+            } );
+            calls.add( call );
+        }
+
+        assertTrue( awaitGauges( client, 2, 2 ) );
+
+        release.countDown();
+        for ( Uni<Response> call : calls )
+        {
+            try (Response response = call.await().indefinitely())
+            {
+                assertEquals( 200, response.code() );
+            }
+        }
+        assertTrue( awaitGauges( client, 0, 0 ) );
+    }
+
+    @ParameterizedTest
+    @ValueSource( strings = { OKHTTP, VERTX } )
+    public void testDeadEndpointEjected( String transport ) throws IOException
+    {
+        int deadPort;
+        try (ServerSocket socket = new ServerSocket( 0 ))
+        {
+            deadPort = socket.getLocalPort();
+        }
+        ServiceConfig service = newService( transport );
+        service.endpoints = Arrays.asList( "localhost:" + deadPort, "localhost:" + server.getAddress().getPort() );
+        service.maxFailures = 1;
+        WebClientAdapter client = new WebClientAdapter( service, proxyConfig, new AtomicLong( 30000 ),
+                                                        new OtelAdapter(), vertx );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            try (Response response = get( client ))
+            {
+                assertEquals( 200, response.code() );
+            }
+        }
+        assertEquals( 10, requests.get() );
+        assertFalse( client.getBalancer().getEndpoints().get( 0 ).isAvailable( System.currentTimeMillis() ) );
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast()
+    {
+        failures = Integer.MAX_VALUE;
+        proxyConfig = new JsonObject().put( "read-timeout", "30s" )
+                                      .put( "retry", new JsonObject().put( "count", 0 ) )
+                                      .put( "circuit-breaker", new JsonObject().put( "window", 4 )
+                                                                               .put( "minimum-calls", 4 )
+                                                                               .put( "open-duration", "1m" ) )
+                                      .mapTo( ProxyConfiguration.class );
+        WebClientAdapter client = newClient( OKHTTP );
+        for ( int i = 0; i < 4; i++ )
+        {
+            try (Response response = get( client ))
+            {
+                assertEquals( 503, response.code() );
+            }
+        }
+
+        // await() wraps checked exceptions
+        Throwable error = assertThrows( CompletionException.class, () -> get( client ) ).getCause();
+        assertTrue( error instanceof CircuitOpenException );
+        assertTrue( ( (CircuitOpenException) error ).getRetryAfterMillis() > 0 );
+        assertEquals( 4, requests.get() );
+        assertEquals( CircuitBreaker.State.OPEN, client.getCircuitBreaker().getState() );
+    }
+
+    @Test
+    public void testBreakerAskedOnSubscription() throws InterruptedException
+    {
+        failures = 4;
+        proxyConfig = new JsonObject().put( "read-timeout", "30s" )
+                                      .put( "retry", new JsonObject().put( "count", 0 ) )
+                                      .put( "circuit-breaker", new JsonObject().put( "window", 4 )
+                                                                               .put( "minimum-calls", 4 )
+                                                                               .put( "open-duration", "0.1s" )
+                                                                               .put( "half-open-calls", 1 ) )
+                                      .mapTo( ProxyConfiguration.class );
+        WebClientAdapter client = newClient( OKHTTP );
+        for ( int i = 0; i < 4; i++ )
+        {
+            try (Response response = get( client ))
+            {
+                assertEquals( 503, response.code() );
+            }
+        }
+        Thread.sleep( 200 );
+
+        // calls nobody subscribes to take no trial permit from the half open breaker
+        String url = "http://localhost:" + server.getAddress().getPort() + PATH;
+        for ( int i = 0; i < 3; i++ )
+        {
+            client.new RequestAdapter( new Request.Builder().get().url( url ), PATH ).call().enqueue();
+        }
+        try (Response response = get( client ))
+        {
+            assertEquals( 200, response.code() );
+        }
+        assertEquals( CircuitBreaker.State.CLOSED, client.getCircuitBreaker().getState() );
+    }
+
+    @ParameterizedTest
+    @ValueSource( strings = { OKHTTP, VERTX } )
+    public void testSlowGetHedged( String transport ) throws IOException
+    {
+        proxyConfig = new JsonObject().put( "read-timeout", "30s" )
+                                      .put( "hedge", new JsonObject().put( "enabled", true )
+                                                                     .put( "delay", "0.1s" )
+                                                                     .put( "budget", 100 ) )
+                                      .mapTo( ProxyConfiguration.class );
+        WebClientAdapter client = newClient( transport );
+        String url = "http://localhost:" + server.getAddress().getPort() + HEDGE_PATH;
+
+        long start = System.currentTimeMillis();
+        try (Response response = client.new RequestAdapter( new Request.Builder().get().url( url ), HEDGE_PATH ).call()
+                                                                                                             .enqueue()
+                                                                                                             .await()
+                                                                                                             .indefinitely())
+        {
+            assertEquals( 200, response.code() );
+            assertArrayEquals( content, response.body().bytes() );
+        }
+        assertTrue( System.currentTimeMillis() - start < 10000 );
+        assertEquals( 1, client.getHedgePolicy().getHedged() );
+    }
+
+    /**
+     * Compares allocation and CPU time of preparing a call with and without the per-call client rebuild it used to do. Run with
+     * <code>mvn test -Dtest=WebClientAdapterTest -Dbenchmark=true</code>.
+     */
+    @Test
+    @EnabledIfSystemProperty( named = "benchmark", matches = "true" )
+    public void benchmarkCall()
+    {
+        WebClientAdapter client = newClient( OKHTTP );
+        String url = "http://localhost:" + server.getAddress().getPort() + PATH;
+        OkHttpClient base = new OkHttpClient.Builder().build();
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        for ( int round = 0; round < BENCH_ROUNDS; round++ )
+        {
+            long bytes = threads.getThreadAllocatedBytes( tid );
+            long start = System.nanoTime();
+            for ( int i = 0; i < BENCH_CALLS; i++ )
+            {
+                // what call() did before: the same work plus a timeout parse and a client rebuild
+                blackhole += client.new RequestAdapter( new Request.Builder().get().url( url ), PATH ).call()
+                                                                                                   .hashCode();
+                Duration d = Duration.parse( "pt30s" );
+                blackhole += base.newBuilder()
+                                 .callTimeout( d )
+                                 .readTimeout( d )
+                                 .writeTimeout( d )
+                                 .connectTimeout( d )
+                                 .build()
+                                 .hashCode();
+            }
+            long rebuildNanos = ( System.nanoTime() - start ) / BENCH_CALLS;
+            long rebuildBytes = ( threads.getThreadAllocatedBytes( tid ) - bytes ) / BENCH_CALLS;
+
+            bytes = threads.getThreadAllocatedBytes( tid );
+            start = System.nanoTime();
+            for ( int i = 0; i < BENCH_CALLS; i++ )
+            {
+                blackhole += client.new RequestAdapter( new Request.Builder().get().url( url ), PATH ).call()
+                                                                                                   .hashCode();
+            }
+            long callNanos = ( System.nanoTime() - start ) / BENCH_CALLS;
+            long callBytes = ( threads.getThreadAllocatedBytes( tid ) - bytes ) / BENCH_CALLS;
+
+            System.out.printf( "Round %d, %d calls: with client rebuild %dns %dB per call, with precomputed client "
+                                               + "%dns %dB per call%n", round, BENCH_CALLS, rebuildNanos,
+                               rebuildBytes, callNanos, callBytes );
+        }
+    }
+
+    private WebClientAdapter newClient( String transport )
+    {
+        return new WebClientAdapter( newService( transport ), proxyConfig, new AtomicLong( 30000 ), new OtelAdapter(),
+                                     vertx );
+    }
+
+    private ServiceConfig newService( String transport )
+    {
+        ServiceConfig service = new ServiceConfig();
+        service.host = "localhost";
+        service.port = server.getAddress().getPort();
+        service.transport = transport;
+        return service;
+    }
+
+    private static boolean awaitGauges( WebClientAdapter client, int running, int queued ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( client.getRunningCalls() != running || client.getQueuedCalls() != queued )
+        {
+            if ( System.currentTimeMillis() > deadline )
+            {
+                return false;
+            }
+            Thread.sleep( 10 );
+        }
+        return true;
+    }
+
+    private Response get( WebClientAdapter client )
+    {
+        String url = "http://localhost:" + server.getAddress().getPort() + PATH;
+        return client.new RequestAdapter( new Request.Builder().get().url( url ), PATH ).call()
+                                                                                        .enqueue()
+                                                                                        .await()
+                                                                                        .indefinitely();
+    }
+}
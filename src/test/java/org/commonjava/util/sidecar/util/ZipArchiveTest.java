@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.commonjava.util.sidecar.util.TestUtil.SIZE_50K;
+import static org.commonjava.util.sidecar.util.TestUtil.getBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ZipArchiveTest
+{
+    private Path zip;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        zip = Files.createTempFile( "archive-", ".zip" );
+    }
+
+    @AfterEach
+    public void teardown() throws IOException
+    {
+        Files.deleteIfExists( zip );
+    }
+
+    @Test
+    public void testStoredAndDeflatedEntries() throws IOException
+    {
+        byte[] jar = getBytes( SIZE_50K );
+        byte[] pom = "<project/>\n".repeat( 1000 ).getBytes();
+        try (ZipOutputStream out = new ZipOutputStream( Files.newOutputStream( zip ) ))
+        {
+            ZipEntry stored = new ZipEntry( "org/foo/bar/1.0/bar-1.0.jar" );
+            stored.setMethod( ZipEntry.STORED );
+            stored.setSize( jar.length );
+            CRC32 crc = new CRC32();
+            crc.update( jar );
+            stored.setCrc( crc.getValue() );
+            out.putNextEntry( stored );
+            out.write( jar );
+            out.putNextEntry( new ZipEntry( "/org/foo/bar/1.0/bar-1.0.pom" ) );
+            out.write( pom );
+            out.putNextEntry( new ZipEntry( "org/foo/bar/1.0/" ) );
+            out.closeEntry();
+        }
+
+        try (ZipArchive archive = new ZipArchive( zip ))
+        {
+            assertEquals( 2, archive.size() );
+            assertFalse( archive.getEntry( "org/foo/bar/1.0/" ).isPresent() );
+
+            ZipArchive.Entry jarEntry = archive.getEntry( "/org/foo/bar/1.0/bar-1.0.jar" ).get();
+            assertTrue( jarEntry.isStored() );
+            assertArrayEquals( jar, read( archive, jarEntry ) );
+
+            byte[] region = new byte[jar.length];
+            try (RandomAccessFile raf = new RandomAccessFile( zip.toFile(), "r" ))
+            {
+                raf.seek( archive.getDataOffset( jarEntry ) );
+                raf.readFully( region );
+            }
+            assertArrayEquals( jar, region );
+
+            ZipArchive.Entry pomEntry = archive.getEntry( "org/foo/bar/1.0/bar-1.0.pom" ).get();
+            assertFalse( pomEntry.isStored() );
+            assertEquals( pom.length, pomEntry.getSize() );
+            assertArrayEquals( pom, read( archive, pomEntry ) );
+        }
+    }
+
+    @Test
+    public void testZip64EntryCount() throws IOException
+    {
+        int count = 70000; // more than the 65535 entries a plain end of central directory can hold
+        try (ZipOutputStream out = new ZipOutputStream( Files.newOutputStream( zip ) ))
+        {
+            for ( int i = 0; i < count; i++ )
+            {
+                out.putNextEntry( new ZipEntry( "entry-" + i ) );
+                out.write( Integer.toString( i ).getBytes() );
+            }
+        }
+
+        try (ZipArchive archive = new ZipArchive( zip ))
+        {
+            assertEquals( count, archive.size() );
+            assertEquals( "69999", new String( read( archive, archive.getEntry( "entry-69999" ).get() ) ) );
+        }
+    }
+
+    private byte[] read( ZipArchive archive, ZipArchive.Entry entry ) throws IOException
+    {
+        try (InputStream in = archive.openStream( entry ))
+        {
+            return IOUtils.toByteArray( in );
+        }
+    }
+}